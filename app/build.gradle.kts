@@ -79,6 +79,10 @@ android {
         compose = true
         buildConfig = true
     }
+    sourceSets {
+        // Exported Room schemas, for the migration tests
+        getByName("test").assets.srcDir("$projectDir/schemas")
+    }
     testOptions {
         // Isolate each instrumented test in its own process; pairs with clearPackageData above.
         execution = "ANDROIDX_TEST_ORCHESTRATOR"
@@ -5,6 +5,8 @@ import androidx.room.Room
 import androidx.test.core.app.ApplicationProvider
 import androidx.test.ext.junit.runners.AndroidJUnit4
 import org.distrinet.lanshield.database.AppDatabase
+import org.distrinet.lanshield.vpnservice.DpiClassifier
+import org.distrinet.lanshield.vpnservice.FlowStore
 import org.junit.After
 import org.junit.Assert.assertEquals
 import org.junit.Assert.assertTrue
@@ -35,6 +37,7 @@ class ConcurrentDownloadInstrumentedTest {
     private lateinit var writer: CapturingWriter
     private lateinit var nioService: SocketNIODataService
     private lateinit var nioThread: Thread
+    private lateinit var flowStore: FlowStore
     private lateinit var sessionManager: SessionManager
     private lateinit var sessionHandler: SessionHandler
     private lateinit var tempTun: File
@@ -47,7 +50,10 @@ class ConcurrentDownloadInstrumentedTest {
 
     private class CapturingWriter(out: FileOutputStream) : ClientPacketWriter(out) {
         val queue = LinkedBlockingQueue<ByteArray>()
-        override fun write(data: ByteArray) { queue.add(data) }
+        override fun write(packet: PacketBuffer) {
+            queue.add(packet.toByteArray())
+            release(packet)
+        }
     }
 
     @Before
@@ -61,10 +67,11 @@ class ConcurrentDownloadInstrumentedTest {
 
         tempTun = File.createTempFile("tun", ".bin").apply { deleteOnExit() }
         writer = CapturingWriter(FileOutputStream(tempTun))
-        nioService = SocketNIODataService(writer, db)
+        flowStore = FlowStore(db).apply { start() }
+        sessionManager = SessionManager(DpiClassifier(db), flowStore)
+        nioService = SocketNIODataService(writer, flowStore)
         nioThread = Thread(nioService, "nio-concurrent").apply { isDaemon = true; start() }
-        sessionManager = SessionManager(db)
-        sessionHandler = SessionHandler(sessionManager, nioService, writer, db)
+        sessionHandler = SessionHandler(sessionManager, nioService, writer)
     }
 
     @After
@@ -72,6 +79,7 @@ class ConcurrentDownloadInstrumentedTest {
         executor.shutdownNow()
         runCatching { nioService.shutdown() }
         runCatching { nioThread.join(1000) }
+        runCatching { flowStore.shutdown(); flowStore.awaitTermination(1000) }
         runCatching { db.close() }
         runCatching { tempTun.delete() }
     }
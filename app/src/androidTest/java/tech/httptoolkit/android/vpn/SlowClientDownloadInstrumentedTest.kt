@@ -5,6 +5,8 @@ import androidx.room.Room
 import androidx.test.core.app.ApplicationProvider
 import androidx.test.ext.junit.runners.AndroidJUnit4
 import org.distrinet.lanshield.database.AppDatabase
+import org.distrinet.lanshield.vpnservice.DpiClassifier
+import org.distrinet.lanshield.vpnservice.FlowStore
 import org.junit.After
 import org.junit.Assert.assertEquals
 import org.junit.Assert.assertTrue
@@ -34,6 +36,7 @@ class SlowClientDownloadInstrumentedTest {
     private lateinit var writer: CapturingWriter
     private lateinit var nioService: SocketNIODataService
     private lateinit var nioThread: Thread
+    private lateinit var flowStore: FlowStore
     private lateinit var sessionManager: SessionManager
     private lateinit var sessionHandler: SessionHandler
     private lateinit var tempTun: File
@@ -51,7 +54,10 @@ class SlowClientDownloadInstrumentedTest {
 
     private class CapturingWriter(out: FileOutputStream) : ClientPacketWriter(out) {
         val queue = LinkedBlockingQueue<ByteArray>()
-        override fun write(data: ByteArray) { queue.add(data) }
+        override fun write(packet: PacketBuffer) {
+            queue.add(packet.toByteArray())
+            release(packet)
+        }
     }
 
     @Before
@@ -65,10 +71,11 @@ class SlowClientDownloadInstrumentedTest {
 
         tempTun = File.createTempFile("tun", ".bin").apply { deleteOnExit() }
         writer = CapturingWriter(FileOutputStream(tempTun))
-        nioService = SocketNIODataService(writer, db)
+        flowStore = FlowStore(db).apply { start() }
+        sessionManager = SessionManager(DpiClassifier(db), flowStore)
+        nioService = SocketNIODataService(writer, flowStore)
         nioThread = Thread(nioService, "nio-instrumented").apply { isDaemon = true; start() }
-        sessionManager = SessionManager(db)
-        sessionHandler = SessionHandler(sessionManager, nioService, writer, db)
+        sessionHandler = SessionHandler(sessionManager, nioService, writer)
 
         server = ServerSocket(0, 50, InetAddress.getByName(peerIp))
         peerPort = server.localPort
@@ -80,6 +87,7 @@ class SlowClientDownloadInstrumentedTest {
         runCatching { server.close() }
         runCatching { nioService.shutdown() }
         runCatching { nioThread.join(1000) }
+        runCatching { flowStore.shutdown(); flowStore.awaitTermination(1000) }
         runCatching { db.close() }
         runCatching { tempTun.delete() }
     }
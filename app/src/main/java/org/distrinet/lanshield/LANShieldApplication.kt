@@ -141,11 +141,9 @@ fun packageNameIsSystem(packageName: String, packageManager: PackageManager): Bo
     return applicationMetadata.isSystem
 }
 
-private val packageMetadataCache = mutableMapOf<String, PackageMetadata>()
-
 fun getPackageMetadata(packageName: String, packageManager: PackageManager): PackageMetadata {
-    return packageMetadataCache.getOrPut(packageName) {
-        lookupPackageMetadata(packageName, packageManager)
+    return packageInfoCache.metadataForPackage(packageName) {
+        lookupPackageMetadata(it, packageManager)
     }
 }
 
@@ -195,15 +193,16 @@ fun getPackageNameFromUid(appUid: Int, packageManager: PackageManager): String {
         0 -> PACKAGE_NAME_ROOT
         -1 -> PACKAGE_NAME_UNKNOWN
         1000 -> PACKAGE_NAME_SYSTEM
-        else -> {
-            val packages = packageManager.getPackagesForUid(appUid)
-            if (packages != null && packages.size == 1) {
-                packages[0]
-            } else {
-                val sharedName = packageManager.getNameForUid(appUid) ?: return PACKAGE_NAME_UNKNOWN
-                return sharedName
-            }
-        }
+        else -> packageInfoCache.packageNameForUid(appUid) { lookupPackageNameForUid(it, packageManager) }
+    }
+}
+
+private fun lookupPackageNameForUid(appUid: Int, packageManager: PackageManager): String {
+    val packages = packageManager.getPackagesForUid(appUid)
+    return if (packages != null && packages.size == 1) {
+        packages[0]
+    } else {
+        packageManager.getNameForUid(appUid) ?: PACKAGE_NAME_UNKNOWN
     }
 }
 
@@ -233,6 +232,11 @@ class LANShieldApplication : Application(), Configuration.Provider {
             .setWorkerFactory(workerFactory)
             .setMinimumLoggingLevel(Log.DEBUG)
             .build()
+
+    override fun onCreate() {
+        super.onCreate()
+        packageInfoCache.registerPackageChangeReceiver(this)
+    }
 }
 
 
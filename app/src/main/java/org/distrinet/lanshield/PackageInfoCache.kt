@@ -0,0 +1,99 @@
+package org.distrinet.lanshield
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import androidx.core.content.ContextCompat
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Memoizes UID to package name and package name to metadata lookups, which are binder calls to
+ * the PackageManager, for every thread that needs them: the VPN and NIO threads, the open port
+ * scanner and the UI. Reads are lock-free map lookups. UIDs that resolve to no package are cached
+ * as [PACKAGE_NAME_UNKNOWN] too.
+ *
+ * Installs, updates and removals invalidate the cache once [registerPackageChangeReceiver] has
+ * been called. A lookup that was in flight during an invalidation isn't stored, so it can't put
+ * back what the PackageManager returned before the change. Each map is cleared when it reaches
+ * [maxEntries], which only matters on devices with an unusual number of apps.
+ */
+class PackageInfoCache(private val maxEntries: Int = DEFAULT_MAX_ENTRIES) {
+
+    companion object {
+        const val DEFAULT_MAX_ENTRIES = 1024
+    }
+
+    private val packageNames = ConcurrentHashMap<Int, String>()
+    private val packageMetadata = ConcurrentHashMap<String, PackageMetadata>()
+    private val currentGeneration = AtomicInteger()
+
+    private val packageChangeReceiver = object : BroadcastReceiver() {
+        override fun onReceive(context: Context?, intent: Intent?) {
+            invalidatePackage(intent?.data?.schemeSpecificPart)
+        }
+    }
+
+    /** Changes whenever cached lookups are invalidated. */
+    val generation: Int
+        get() = currentGeneration.get()
+
+    fun packageNameForUid(uid: Int, lookup: (Int) -> String): String {
+        packageNames[uid]?.let { return it }
+        return load(packageNames, uid, lookup)
+    }
+
+    fun metadataForPackage(packageName: String, lookup: (String) -> PackageMetadata): PackageMetadata {
+        packageMetadata[packageName]?.let { return it }
+        return load(packageMetadata, packageName, lookup)
+    }
+
+    private fun <K : Any, V : Any> load(map: ConcurrentHashMap<K, V>, key: K, lookup: (K) -> V): V {
+        val loadedGeneration = currentGeneration.get()
+        val value = lookup(key)
+        if (loadedGeneration == currentGeneration.get()) {
+            if (map.size >= maxEntries) map.clear()
+            map[key] = value
+        }
+        return value
+    }
+
+    /**
+     * Forget a package that was installed, updated or removed. UIDs can move between packages
+     * (and unknown UIDs become known), so every UID mapping is dropped as well.
+     */
+    fun invalidatePackage(packageName: String?) {
+        currentGeneration.incrementAndGet()
+        packageNames.clear()
+        if (packageName != null) {
+            packageMetadata.remove(packageName)
+        } else {
+            packageMetadata.clear()
+        }
+    }
+
+    fun invalidateAll() {
+        currentGeneration.incrementAndGet()
+        packageNames.clear()
+        packageMetadata.clear()
+    }
+
+    fun registerPackageChangeReceiver(context: Context) {
+        val filter = IntentFilter().apply {
+            addAction(Intent.ACTION_PACKAGE_ADDED)
+            addAction(Intent.ACTION_PACKAGE_REMOVED)
+            addAction(Intent.ACTION_PACKAGE_REPLACED)
+            addDataScheme("package")
+        }
+        // Package broadcasts aren't delivered to manifest receivers, so this is registered at runtime
+        ContextCompat.registerReceiver(
+            context.applicationContext,
+            packageChangeReceiver,
+            filter,
+            ContextCompat.RECEIVER_NOT_EXPORTED
+        )
+    }
+}
+
+val packageInfoCache = PackageInfoCache()
@@ -21,7 +21,7 @@ import org.distrinet.lanshield.database.model.OpenPorts
 
 @Database(
     entities = [LanAccessPolicy::class, LANFlow::class, LANShieldSession::class, OpenPorts::class],
-    version = 3,
+    version = 4,
     exportSchema = true
 )
 @TypeConverters(
@@ -50,6 +50,7 @@ abstract class AppDatabase : RoomDatabase() {
                     "lanshield_database"
                 ).addMigrations(MIGRATION_1_2)
                     .addMigrations(MIGRATION_2_3)
+                    .addMigrations(MIGRATION_3_4)
                     .build()
                 INSTANCE = instance
                 return instance
@@ -92,3 +93,14 @@ val MIGRATION_2_3 = object : Migration(2, 3) {
 
 }
 
+val MIGRATION_3_4 = object : Migration(3, 4) {
+    override fun migrate(db: SupportSQLiteDatabase) {
+        db.execSQL("ALTER TABLE `flow` ADD COLUMN `dpiMasterProtocol` INTEGER")
+        db.execSQL("ALTER TABLE `flow` ADD COLUMN `dpiAppProtocol` INTEGER")
+        db.execSQL("ALTER TABLE `flow` ADD COLUMN `dpiCategory` INTEGER")
+        db.execSQL("ALTER TABLE `flow` ADD COLUMN `dpiHostname` TEXT")
+        db.execSQL("ALTER TABLE `flow` ADD COLUMN `dpiSni` TEXT")
+        db.execSQL("ALTER TABLE `flow` ADD COLUMN `dpiJa3` TEXT")
+    }
+
+}
@@ -30,6 +30,33 @@ interface  FlowDao {
     @Update
     fun updateFlow(LANFlow: LANFlow)
 
+    // For FlowStore's batches: new flows are inserted once, then only ever updated, so a flow
+    // deleted meanwhile stays deleted
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    fun insertFlows(flows: List<LANFlow>)
+
+    @Update
+    fun updateFlows(flows: List<LANFlow>)
+
+    @Query(
+        """
+        UPDATE flow SET dpiProtocol = :dpiProtocol, dpiMasterProtocol = :dpiMasterProtocol,
+            dpiAppProtocol = :dpiAppProtocol, dpiCategory = :dpiCategory, dpiHostname = :dpiHostname,
+            dpiSni = :dpiSni, dpiJa3 = :dpiJa3
+        WHERE uuid = :flowId
+    """
+    )
+    fun updateFlowDpi(
+        flowId: UUID,
+        dpiProtocol: String?,
+        dpiMasterProtocol: Int?,
+        dpiAppProtocol: Int?,
+        dpiCategory: Int?,
+        dpiHostname: String?,
+        dpiSni: String?,
+        dpiJa3: String?
+    )
+
     @Delete
     fun deleteFlow(LANFlow: LANFlow)
 
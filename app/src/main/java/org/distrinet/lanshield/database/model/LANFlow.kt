@@ -41,8 +41,23 @@ data class LANFlow(
     var protocols: List<String>,
     val timeEndAtLastSync: Long,
     val scheduledForDeletion: Boolean = false,
-    var dpiReport: String? = null,
-    var dpiProtocol: String? = null
+    // Full nDPI JSON report, only present on flows stored before the typed DPI columns below
+    val dpiReport: String? = null,
+    // Written by the DPI workers while the forwarding threads keep updating the flow
+    @Volatile
+    var dpiProtocol: String? = null,
+    @Volatile
+    var dpiMasterProtocol: Int? = null,
+    @Volatile
+    var dpiAppProtocol: Int? = null,
+    @Volatile
+    var dpiCategory: Int? = null,
+    @Volatile
+    var dpiHostname: String? = null,
+    @Volatile
+    var dpiSni: String? = null,
+    @Volatile
+    var dpiJa3: String? = null
 ) {
 
     fun toJSON(): JSONObject {
@@ -62,7 +77,7 @@ data class LANFlow(
         json.put("data_ingress", dataIngress)
         json.put("detected_protocols", protocols.joinToString(","))
         json.put("time_end_at_last_sync", timeEndAtLastSync)
-        json.put("dpi_report", dpiReport ?: "{}")
+        json.put("dpi_report", dpiReportJson())
         json.put("dpi_protocol", dpiProtocol ?: "")
 
         if (transportLayerProtocol.contentEquals("TCP")) {
@@ -90,7 +105,7 @@ data class LANFlow(
         writer.name("data_ingress").value(dataIngress)
         writer.name("detected_protocols").value(protocols.joinToString(","))
         writer.name("time_end_at_last_sync").value(timeEndAtLastSync)
-        writer.name("dpi_report").value(dpiReport ?: "{}")
+        writer.name("dpi_report").value(dpiReportJson())
         writer.name("dpi_protocol").value(dpiProtocol ?: "")
 
         if (transportLayerProtocol.contentEquals("TCP")) {
@@ -100,6 +115,28 @@ data class LANFlow(
         writer.endObject()
     }
 
+    /** The DPI result as a JSON string, built from the typed columns only when exporting. */
+    private fun dpiReportJson(): String {
+        if (dpiReport != null) return dpiReport
+        if (dpiMasterProtocol == null && dpiAppProtocol == null) return "{}"
+
+        val ndpi = JSONObject()
+        ndpi.put("proto", dpiProtocol ?: "")
+        ndpi.put("proto_id", "${dpiMasterProtocol ?: 0}.${dpiAppProtocol ?: 0}")
+        ndpi.put("category_id", dpiCategory ?: 0)
+
+        val report = JSONObject()
+        report.put("ndpi", ndpi)
+        dpiHostname?.let { report.put("hostname", it) }
+        if (dpiSni != null || dpiJa3 != null) {
+            val tls = JSONObject()
+            dpiSni?.let { tls.put("client_requested_server_name", it) }
+            dpiJa3?.let { tls.put("ja3", it) }
+            report.put("tls", tls)
+        }
+        return report.toString()
+    }
+
     fun increaseEgress(amountPackets: Long, amountBytes: Long) {
         synchronized(this) {
             packetCountEgress += amountPackets
@@ -0,0 +1,116 @@
+package org.distrinet.lanshield.vpnservice
+
+import android.os.SystemClock
+import org.distrinet.lanshield.Policy.BLOCK
+import org.distrinet.lanshield.database.model.LANFlow
+import tech.httptoolkit.android.vpn.FlowKey
+import tech.httptoolkit.android.vpn.SessionProtocol
+import tech.httptoolkit.android.vpn.transport.PacketView
+
+/**
+ * Counts blocked packets into one flow per 5-tuple, like sessions do for forwarded traffic, so an
+ * app that keeps retrying a blocked connection or multicasting adds to one row instead of
+ * creating a row per packet.
+ *
+ * A blocked flow ends once no packet has matched it for [windowMs]; the next packet starts a
+ * new one. Flows are persisted through the shared [FlowStore]. Only used on the VPN thread.
+ */
+class BlockedFlowTracker(
+    private val flowStore: FlowStore,
+    private val windowMs: Long = DEFAULT_WINDOW_MS,
+    private val maxFlows: Int = DEFAULT_MAX_FLOWS,
+    private val clock: () -> Long = { SystemClock.elapsedRealtime() }
+) {
+
+    companion object {
+        const val DEFAULT_WINDOW_MS = 60_000L
+        const val DEFAULT_MAX_FLOWS = 1024
+    }
+
+    private class Entry(val flow: LANFlow, var lastSeenMs: Long)
+
+    // Protocols without ports, such as ICMP, aren't sessions and so have no FlowKey
+    private data class PortlessKey(
+        val protocol: Int,
+        val sourceHigh: Long,
+        val sourceLow: Long,
+        val destinationHigh: Long,
+        val destinationLow: Long
+    )
+
+    private val flows = HashMap<Any, Entry>()
+    private var probeKey: FlowKey? = null
+    private var lastSweepMs = 0L
+
+    val size: Int
+        get() = flows.size
+
+    /**
+     * Count a blocked packet. Returns the flow it started, which the caller may classify, or
+     * null if it was added to a flow that was already being tracked.
+     */
+    fun record(packet: PacketView, packageName: String): LANFlow? {
+        val now = clock()
+        if (now - lastSweepMs > windowMs) {
+            removeExpired(now)
+            lastSweepMs = now
+        }
+
+        val entry = flows[probe(packet)]
+        if (entry != null && now - entry.lastSeenMs <= windowMs) {
+            entry.lastSeenMs = now
+            entry.flow.increaseEgress(1, packet.totalLength.toLong())
+            flowStore.markDirty(entry.flow)
+            return null
+        }
+
+        val flow = LANFlow.createFlow(
+            appId = packageName,
+            remoteEndpoint = packet.destinationSocketAddress,
+            localEndpoint = packet.sourceSocketAddress,
+            transportLayerProtocol = IPHeader.protocolNumberAsString(packet.protocol),
+            appliedPolicy = BLOCK
+        )
+        flow.dataEgress = packet.totalLength.toLong()
+        flow.packetCountEgress = 1
+
+        if (flows.size >= maxFlows) {
+            removeExpired(now)
+            // Everything is stored already, so dropping live flows only splits their counts
+            if (flows.size >= maxFlows) flows.clear()
+        }
+        flows[newKey(packet)] = Entry(flow, now)
+        flowStore.markNew(flow)
+        return flow
+    }
+
+    private fun removeExpired(now: Long) {
+        flows.values.removeAll { now - it.lastSeenMs > windowMs }
+    }
+
+    private fun probe(packet: PacketView): Any {
+        val protocol = sessionProtocol(packet) ?: return portlessKey(packet)
+        val key = probeKey
+        if (key != null) return key.set(protocol, packet)
+        return FlowKey.of(protocol, packet).also { probeKey = it }
+    }
+
+    private fun newKey(packet: PacketView): Any {
+        val protocol = sessionProtocol(packet) ?: return portlessKey(packet)
+        return FlowKey.of(protocol, packet)
+    }
+
+    private fun portlessKey(packet: PacketView) = PortlessKey(
+        packet.protocol,
+        packet.sourceAddressHigh,
+        packet.sourceAddressLow,
+        packet.destinationAddressHigh,
+        packet.destinationAddressLow
+    )
+
+    private fun sessionProtocol(packet: PacketView): SessionProtocol? = when {
+        packet.isTcp -> SessionProtocol.TCP
+        packet.isUdp -> SessionProtocol.UDP
+        else -> null
+    }
+}
@@ -0,0 +1,145 @@
+package org.distrinet.lanshield.vpnservice
+
+import org.distrinet.lanshield.Policy
+import org.distrinet.lanshield.Policy.ALLOW
+import org.distrinet.lanshield.Policy.DEFAULT
+
+/** Everything a policy decision depends on, besides the packet and the app that sent it. */
+data class PolicySettings(
+    val appPolicies: Map<String, Policy> = emptyMap(),
+    val defaultForwardPolicy: Policy = ALLOW,
+    val systemAppsForwardPolicy: Policy = ALLOW,
+    val allowMulticast: Boolean = false,
+    val allowDns: Boolean = false,
+    val hideDnsNotifications: Boolean = false,
+    val hideMulticastNotifications: Boolean = false,
+)
+
+/**
+ * An immutable snapshot of [PolicySettings] with every decision worked out in advance.
+ *
+ * A decision only depends on which kind of sender a packet has (its profile: no TCP/UDP, no
+ * valid uid, or an app with a per-app policy and system flag) and which class its destination
+ * is in (unicast, multicast/broadcast and/or DNS). [compile] runs [PolicyEngine.decide] once for
+ * every combination and packs the results into a table, so deciding for a packet is an array
+ * read and a few bit tests.
+ *
+ * The profile of each app uid is resolved on first use and remembered in a table indexed by app
+ * id. That table is only used by the VPN thread; the rest of the snapshot may be shared freely.
+ */
+class CompiledPolicy private constructor(
+    val settings: PolicySettings,
+    private val verdicts: ByteArray
+) {
+
+    companion object {
+        const val PROFILE_NOT_TCP_OR_UDP = 0
+        const val PROFILE_NO_VALID_UID = 1
+        private const val FIRST_APP_PROFILE = 2
+        private const val PROFILE_COUNT = FIRST_APP_PROFILE + 6
+
+        private const val CLASS_MULTICAST = 1
+        private const val CLASS_DNS = 2
+        private const val CLASS_COUNT = 4
+
+        // Packed verdicts: the applied policy's ordinal in the low two bits, then two flags
+        private const val POLICY_MASK = 3
+        private const val FORWARD = 4
+        private const val NOTIFY = 8
+
+        // App ids repeat across users (uid = user * 100000 + app id), as do their packages
+        private const val PER_USER_RANGE = 100_000
+        private const val FIRST_APP_ID = 10_000
+        private const val APP_ID_COUNT = 10_000
+
+        private val POLICIES = Policy.entries.toTypedArray()
+
+        fun compile(settings: PolicySettings): CompiledPolicy {
+            val verdicts = ByteArray(PROFILE_COUNT * CLASS_COUNT)
+            for (profile in 0 until PROFILE_COUNT) {
+                for (destinationClass in 0 until CLASS_COUNT) {
+                    val decision = PolicyEngine.decide(decisionInput(settings, profile, destinationClass))
+                    verdicts[profile * CLASS_COUNT + destinationClass] = pack(decision).toByte()
+                }
+            }
+            return CompiledPolicy(settings, verdicts)
+        }
+
+        private fun decisionInput(settings: PolicySettings, profile: Int, destinationClass: Int): PacketDecisionInput {
+            val isAppProfile = profile >= FIRST_APP_PROFILE
+            return PacketDecisionInput(
+                isTcpOrUdp = profile != PROFILE_NOT_TCP_OR_UDP,
+                hasValidUid = isAppProfile,
+                isMulticastDest = destinationClass and CLASS_MULTICAST != 0,
+                destPort = if (destinationClass and CLASS_DNS != 0) 53 else 0,
+                perAppPolicy = if (isAppProfile) POLICIES[(profile - FIRST_APP_PROFILE) / 2] else DEFAULT,
+                isSystemApp = isAppProfile && (profile - FIRST_APP_PROFILE) % 2 == 1,
+                defaultForwardPolicy = settings.defaultForwardPolicy,
+                systemAppsForwardPolicy = settings.systemAppsForwardPolicy,
+                allowMulticast = settings.allowMulticast,
+                allowDns = settings.allowDns,
+                hideDnsNotifications = settings.hideDnsNotifications,
+                hideMulticastNotifications = settings.hideMulticastNotifications,
+            )
+        }
+
+        private fun pack(decision: PacketDecision): Int {
+            var verdict = decision.appliedPolicy.ordinal
+            if (decision.shouldForward) verdict = verdict or FORWARD
+            if (decision.shouldNotify) verdict = verdict or NOTIFY
+            return verdict
+        }
+
+        fun destinationClass(isMulticastDest: Boolean, destPort: Int): Int {
+            var destinationClass = 0
+            if (isMulticastDest) destinationClass = destinationClass or CLASS_MULTICAST
+            if (destPort == 53) destinationClass = destinationClass or CLASS_DNS
+            return destinationClass
+        }
+
+        fun appliedPolicy(verdict: Int): Policy = POLICIES[verdict and POLICY_MASK]
+
+        fun shouldForward(verdict: Int): Boolean = verdict and FORWARD != 0
+
+        fun shouldNotify(verdict: Int): Boolean = verdict and NOTIFY != 0
+    }
+
+    // Profile + 1 per app id, 0 while unresolved
+    private val appIdProfiles = ByteArray(APP_ID_COUNT)
+    private val otherUidProfiles = HashMap<Int, Int>()
+    private var packageGeneration = 0
+
+    /** The profile of an app with a valid uid. */
+    fun appProfile(packageName: String, isSystemApp: Boolean): Int {
+        val policy = settings.appPolicies[packageName] ?: DEFAULT
+        return FIRST_APP_PROFILE + policy.ordinal * 2 + if (isSystemApp) 1 else 0
+    }
+
+    /**
+     * The profile of the app with a valid [uid], from the uid table or else from [resolve].
+     * The table is emptied whenever [packageGeneration] changes, as installs can move uids to
+     * other packages. VPN thread only.
+     */
+    fun uidProfile(uid: Int, packageGeneration: Int, resolve: (Int) -> Int): Int {
+        if (packageGeneration != this.packageGeneration) {
+            appIdProfiles.fill(0)
+            otherUidProfiles.clear()
+            this.packageGeneration = packageGeneration
+        }
+
+        val index = uid % PER_USER_RANGE - FIRST_APP_ID
+        if (index !in 0 until APP_ID_COUNT) {
+            return otherUidProfiles.getOrPut(uid) { resolve(uid) }
+        }
+        val cached = appIdProfiles[index].toInt()
+        if (cached != 0) return cached - 1
+        val profile = resolve(uid)
+        appIdProfiles[index] = (profile + 1).toByte()
+        return profile
+    }
+
+    /** The packed verdict for a sender [profile] and a [destinationClass]. */
+    fun verdict(profile: Int, destinationClass: Int): Int {
+        return verdicts[profile * CLASS_COUNT + destinationClass].toInt()
+    }
+}
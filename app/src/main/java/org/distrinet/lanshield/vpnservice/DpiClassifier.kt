@@ -0,0 +1,181 @@
+package org.distrinet.lanshield.vpnservice
+
+import android.util.Log
+import org.distrinet.lanshield.TAG
+import org.distrinet.lanshield.database.AppDatabase
+import org.distrinet.lanshield.database.model.LANFlow
+import tech.httptoolkit.android.vpn.Session
+import java.nio.ByteBuffer
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.min
+
+/**
+ * Runs nDPI off the packet forwarding path.
+ *
+ * Packets are copied into bounded queues together with the flow they belong to and classified
+ * by a small pool of worker threads, which write the result back to the flow when detection
+ * completes. All packets of a session go to the same worker, so its native nDPI flow sees them
+ * in order. When a queue is full the packet is dropped and counted, the caller never blocks.
+ *
+ * With a [flowStore], classified flows are handed to it rather than written directly, so a
+ * flow it hasn't stored yet still gets its DPI columns. Callers then store new flows themselves.
+ */
+class DpiClassifier(
+    private val appDatabase: AppDatabase,
+    private val workerCount: Int = DEFAULT_WORKER_COUNT,
+    queueCapacity: Int = DEFAULT_QUEUE_CAPACITY,
+    private val flowStore: FlowStore? = null
+) {
+
+    companion object {
+        const val DEFAULT_WORKER_COUNT = 2
+        const val DEFAULT_QUEUE_CAPACITY = 256
+
+        // nDPI only needs the start of a flow, so packets are copied up to this size
+        const val MAX_CLASSIFIED_BYTES = MAX_PACKET_LEN
+    }
+
+    private class Task(
+        val session: Session?,
+        val flow: LANFlow,
+        val packet: ByteArray,
+        val insertFlow: Boolean
+    )
+
+    private val queues = Array(workerCount) { ArrayBlockingQueue<Task>(queueCapacity) }
+    private val workers = ArrayList<Thread>(workerCount)
+
+    private val droppedPackets = AtomicLong()
+
+    @Volatile
+    private var running = false
+
+    /** Number of packets that were not classified because the queue was full. */
+    val droppedCount: Long
+        get() = droppedPackets.get()
+
+    @Synchronized
+    fun start() {
+        if (running) return
+        running = true
+        for (i in 0 until workerCount) {
+            val worker = Thread({ runWorker(queues[i]) }, "DPI worker $i")
+            worker.isDaemon = true
+            worker.priority = Thread.NORM_PRIORITY - 1
+            workers.add(worker)
+            worker.start()
+        }
+    }
+
+    @Synchronized
+    fun shutdown() {
+        running = false
+        workers.forEach { it.interrupt() }
+        workers.clear()
+        queues.forEach { it.clear() }
+    }
+
+    /**
+     * Queue a packet of [session] for classification. When detection completes, the session's
+     * flow is updated in memory and in the database. Returns false if the packet was dropped.
+     */
+    fun classifySessionPacket(session: Session, packet: ByteArray, packetSize: Int, packetOffset: Int): Boolean {
+        val flow = session.flow ?: return false
+        if (session.isDpiComplete) return false
+        val task = Task(session, flow, copyPacket(packet, packetSize, packetOffset), insertFlow = false)
+        return enqueue(queueIndex(System.identityHashCode(session)), task)
+    }
+
+    /**
+     * Queue a single packet for a flow that has no session, such as a blocked packet. Without a
+     * [flowStore], the flow is inserted once it has been classified, unless this returns false
+     * because the packet was dropped. With one, the caller has already marked the flow new in
+     * the store, and a DPI result is written to it as an update.
+     */
+    fun classifyAndInsertFlow(flow: LANFlow, packet: ByteArray, packetSize: Int, packetOffset: Int): Boolean {
+        val task = Task(null, flow, copyPacket(packet, packetSize, packetOffset), insertFlow = true)
+        return enqueue(queueIndex(flow.uuid.hashCode()), task)
+    }
+
+    private fun queueIndex(hash: Int): Int {
+        return (hash and Int.MAX_VALUE) % workerCount
+    }
+
+    private fun copyPacket(packet: ByteArray, packetSize: Int, packetOffset: Int): ByteArray {
+        return packet.copyOfRange(packetOffset, packetOffset + min(packetSize, MAX_CLASSIFIED_BYTES))
+    }
+
+    private fun enqueue(queueIndex: Int, task: Task): Boolean {
+        if (queues[queueIndex].offer(task)) return true
+
+        val dropped = droppedPackets.incrementAndGet()
+        if (dropped == 1L || dropped % 1000 == 0L) {
+            Log.w(TAG, "DPI queue full, $dropped packets dropped so far")
+        }
+        return false
+    }
+
+    private fun runWorker(queue: ArrayBlockingQueue<Task>) {
+        // Native DPI reads packets in place from a direct buffer, so each worker stages its
+        // packets in one instead of handing a heap array through JNI
+        val packetBuffer = ByteBuffer.allocateDirect(MAX_CLASSIFIED_BYTES)
+        while (running) {
+            val task = try {
+                queue.take()
+            } catch (_: InterruptedException) {
+                break
+            }
+            try {
+                classify(task, packetBuffer)
+            } catch (e: Exception) {
+                Log.e(TAG, "Error classifying flow ${task.flow.uuid}: ${e.message}")
+            }
+        }
+    }
+
+    private fun classify(task: Task, packetBuffer: ByteBuffer) {
+        packetBuffer.clear()
+        packetBuffer.put(task.packet)
+
+        val dpiResult = if (task.session != null) {
+            VPNRunnable.doSessionDpi(task.session, packetBuffer, task.packet.size, 0)
+        } else {
+            VPNRunnable.doDpi(packetBuffer, task.packet.size, 0)
+        }
+
+        if (dpiResult != null) {
+            applyResult(task.flow, dpiResult)
+        }
+
+        if (flowStore != null) {
+            // The store may have written the flow already, so the result can only be an update
+            if (dpiResult != null) {
+                flowStore.markDirty(task.flow)
+            }
+        } else if (task.insertFlow) {
+            appDatabase.FlowDao().insertFlow(task.flow)
+        } else if (dpiResult != null) {
+            appDatabase.FlowDao().updateFlowDpi(
+                task.flow.uuid,
+                dpiResult.protocolName,
+                dpiResult.masterProtocol,
+                dpiResult.appProtocol,
+                dpiResult.category,
+                dpiResult.hostname,
+                dpiResult.sni,
+                dpiResult.ja3
+            )
+        }
+    }
+
+    private fun applyResult(flow: LANFlow, dpiResult: DpiResult) {
+        flow.dpiProtocol = dpiResult.protocolName
+        flow.dpiMasterProtocol = dpiResult.masterProtocol
+        flow.dpiAppProtocol = dpiResult.appProtocol
+        flow.dpiCategory = dpiResult.category
+        flow.dpiHostname = dpiResult.hostname
+        flow.dpiSni = dpiResult.sni
+        flow.dpiJa3 = dpiResult.ja3
+    }
+}
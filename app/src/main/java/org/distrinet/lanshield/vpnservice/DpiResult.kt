@@ -1,3 +1,15 @@
 package org.distrinet.lanshield.vpnservice
 
-data class DpiResult(var jsonBuffer: String? = null, var protocolName: String? = null)
\ No newline at end of file
+/**
+ * Outcome of nDPI for one flow. Protocol and category ids are nDPI's own; [sni] and [ja3] are only
+ * set for TLS/QUIC flows, [hostname] (e.g. a DNS query or HTTP host) for the others.
+ */
+data class DpiResult(
+    val masterProtocol: Int,
+    val appProtocol: Int,
+    val category: Int,
+    val protocolName: String,
+    val hostname: String? = null,
+    val sni: String? = null,
+    val ja3: String? = null
+)
@@ -0,0 +1,164 @@
+package org.distrinet.lanshield.vpnservice
+
+import android.util.Log
+import org.distrinet.lanshield.TAG
+import org.distrinet.lanshield.database.AppDatabase
+import org.distrinet.lanshield.database.model.LANFlow
+import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Write-behind storage for the flows of live sessions.
+ *
+ * The forwarding threads only update a flow's counters in memory and mark it dirty, which is a
+ * map insert. A background writer stores the dirty flows in one Room transaction every
+ * [flushIntervalMs], or sooner once [maxDirtyFlows] are waiting or a session closes, so no
+ * SQLite commit happens on the packet path. [shutdown] writes whatever is left before the
+ * writer exits.
+ *
+ * A flow is only inserted by the flush after [markNew]; later flushes update it. Flows the user
+ * deleted meanwhile (e.g. all flows of an app) are therefore not brought back by live sessions.
+ */
+class FlowStore(
+    private val appDatabase: AppDatabase,
+    private val flushIntervalMs: Long = DEFAULT_FLUSH_INTERVAL_MS,
+    private val maxDirtyFlows: Int = DEFAULT_MAX_DIRTY_FLOWS
+) {
+
+    companion object {
+        const val DEFAULT_FLUSH_INTERVAL_MS = 1_000L
+        const val DEFAULT_MAX_DIRTY_FLOWS = 128
+    }
+
+    private val dirtyFlows = ConcurrentHashMap<UUID, LANFlow>()
+
+    // Flows passed to markNew that haven't been inserted yet
+    private val unstoredFlows = ConcurrentHashMap.newKeySet<UUID>()
+
+    // Guards flushRequested and running, and is waited on by the writer between flushes
+    private val wakeup = Object()
+    private var flushRequested = false
+    private var running = false
+    private var writer: Thread? = null
+
+    // Serializes flushes, so an older snapshot of a flow is never written after a newer one
+    private val flushLock = Any()
+
+    @Volatile
+    var flushCount = 0L
+        private set
+
+    @Volatile
+    var flushedFlowCount = 0L
+        private set
+
+    val dirtyCount: Int
+        get() = dirtyFlows.size
+
+    fun start() {
+        synchronized(wakeup) {
+            if (running) return
+            running = true
+            writer = Thread({ runWriter() }, "Flow store").apply {
+                isDaemon = true
+                priority = Thread.NORM_PRIORITY - 1
+                start()
+            }
+        }
+    }
+
+    /** Stop the writer after it has stored every dirty flow. Doesn't wait for it. */
+    fun shutdown() {
+        synchronized(wakeup) {
+            running = false
+            wakeup.notifyAll()
+        }
+    }
+
+    fun awaitTermination(timeoutMs: Long) {
+        writer?.join(timeoutMs)
+    }
+
+    /** Insert [flow], which isn't in the database yet, with the next batch. */
+    fun markNew(flow: LANFlow) {
+        unstoredFlows.add(flow.uuid)
+        markDirty(flow)
+    }
+
+    /** Update [flow] with the next batch, if it's still in the database. */
+    fun markDirty(flow: LANFlow) {
+        dirtyFlows[flow.uuid] = flow
+        if (dirtyFlows.size >= maxDirtyFlows) requestFlush()
+    }
+
+    /** Update [flow] without waiting for the flush interval, e.g. because its session closed. */
+    fun flushSoon(flow: LANFlow) {
+        dirtyFlows[flow.uuid] = flow
+        requestFlush()
+    }
+
+    private fun requestFlush() {
+        synchronized(wakeup) {
+            flushRequested = true
+            wakeup.notifyAll()
+        }
+    }
+
+    /** Store every dirty flow on the calling thread, which must not be a forwarding thread. */
+    fun flushNow() {
+        synchronized(flushLock) {
+            if (dirtyFlows.isEmpty()) return
+
+            val flows = ArrayList<LANFlow>(dirtyFlows.size)
+            val inserts = ArrayList<LANFlow>()
+            val updates = ArrayList<LANFlow>(dirtyFlows.size)
+            val iterator = dirtyFlows.values.iterator()
+            while (iterator.hasNext()) {
+                val flow = iterator.next()
+                // Removed before the snapshot, so an update made meanwhile marks it dirty again
+                iterator.remove()
+                flows.add(flow)
+                val snapshot = synchronized(flow) { flow.copy() }
+                if (unstoredFlows.remove(flow.uuid)) inserts.add(snapshot) else updates.add(snapshot)
+            }
+
+            val dao = appDatabase.FlowDao()
+            try {
+                appDatabase.runInTransaction(Runnable {
+                    if (inserts.isNotEmpty()) dao.insertFlows(inserts)
+                    if (updates.isNotEmpty()) dao.updateFlows(updates)
+                })
+            } catch (e: Exception) {
+                // Nothing was written, so the next flush retries all of it, inserting the new flows
+                inserts.forEach { unstoredFlows.add(it.uuid) }
+                flows.forEach { dirtyFlows.putIfAbsent(it.uuid, it) }
+                throw e
+            }
+            flushCount++
+            flushedFlowCount += inserts.size + updates.size
+        }
+    }
+
+    private fun runWriter() {
+        while (true) {
+            val stopping = synchronized(wakeup) {
+                if (running && !flushRequested) {
+                    try {
+                        wakeup.wait(flushIntervalMs)
+                    } catch (_: InterruptedException) {
+                        running = false
+                    }
+                }
+                flushRequested = false
+                !running
+            }
+
+            try {
+                flushNow()
+            } catch (e: Exception) {
+                Log.e(TAG, "Error storing flows: ${e.message}")
+            }
+            if (stopping) break
+        }
+    }
+}
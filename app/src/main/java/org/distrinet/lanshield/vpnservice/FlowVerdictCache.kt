@@ -0,0 +1,124 @@
+package org.distrinet.lanshield.vpnservice
+
+import android.os.SystemClock
+import org.distrinet.lanshield.Policy
+import tech.httptoolkit.android.vpn.FlowKey
+import tech.httptoolkit.android.vpn.SessionProtocol
+import tech.httptoolkit.android.vpn.transport.PacketView
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/** The outcome of the policy check for a flow, as computed for its first packet. */
+class FlowVerdict(
+    val uid: Int,
+    val packageName: String,
+    val appliedPolicy: Policy,
+    val shouldForward: Boolean,
+    val shouldNotify: Boolean,
+)
+
+/**
+ * Caches the policy verdict of each TCP and UDP flow by its 5-tuple, so the owner UID lookup,
+ * the package queries and PolicyEngine run once per connection instead of once per packet.
+ *
+ * Lookups and inserts happen on the VPN thread. [invalidate] may be called from any thread when
+ * a policy changes. It bumps [generation], and a verdict is only stored under the generation
+ * that was current before it was computed, so a verdict based on an old policy is never served.
+ * Entries are removed when their session closes ([remove]) and ignored once idle for longer than
+ * [idleTimeoutMs], which covers blocked flows that never get a session.
+ */
+class FlowVerdictCache(
+    private val maxEntries: Int = DEFAULT_MAX_ENTRIES,
+    private val idleTimeoutMs: Long = DEFAULT_IDLE_TIMEOUT_MS,
+    private val clock: () -> Long = { SystemClock.elapsedRealtime() }
+) {
+
+    companion object {
+        const val DEFAULT_MAX_ENTRIES = 4096
+        const val DEFAULT_IDLE_TIMEOUT_MS = 60_000L
+    }
+
+    private class Entry(val verdict: FlowVerdict, val generation: Int, var lastUsedMs: Long)
+
+    private val entries = ConcurrentHashMap<FlowKey, Entry>()
+    private val currentGeneration = AtomicInteger()
+
+    // Only used on the VPN thread
+    private var probeKey: FlowKey? = null
+
+    @Volatile
+    var hitCount = 0L
+        private set
+
+    @Volatile
+    var missCount = 0L
+        private set
+
+    /** Read this before computing a verdict, and pass it to [put] with the result. */
+    val generation: Int
+        get() = currentGeneration.get()
+
+    val size: Int
+        get() = entries.size
+
+    /** The cached verdict for the flow of [packet], or null if it has to be computed. */
+    fun get(packet: PacketView): FlowVerdict? {
+        val protocol = protocolOf(packet) ?: return null
+        val entry = entries[probe(protocol, packet)]
+        val now = clock()
+        if (entry == null || entry.generation != currentGeneration.get() ||
+            now - entry.lastUsedMs > idleTimeoutMs
+        ) {
+            missCount++
+            return null
+        }
+        entry.lastUsedMs = now
+        hitCount++
+        return entry.verdict
+    }
+
+    /** Store the verdict for the flow of [packet], computed while [generation] was current. */
+    fun put(packet: PacketView, generation: Int, verdict: FlowVerdict) {
+        val protocol = protocolOf(packet) ?: return
+        if (generation != currentGeneration.get()) return
+
+        val now = clock()
+        if (entries.size >= maxEntries) {
+            evictIdle(now)
+            if (entries.size >= maxEntries) entries.clear()
+        }
+        entries[FlowKey.of(protocol, packet)] = Entry(verdict, generation, now)
+    }
+
+    fun remove(key: FlowKey) {
+        entries.remove(key)
+    }
+
+    /** Forget every verdict, e.g. because a policy that they were based on changed. */
+    fun invalidate() {
+        currentGeneration.incrementAndGet()
+        entries.clear()
+    }
+
+    private fun evictIdle(now: Long) {
+        val iterator = entries.values.iterator()
+        while (iterator.hasNext()) {
+            val entry = iterator.next()
+            if (now - entry.lastUsedMs > idleTimeoutMs || entry.generation != currentGeneration.get()) {
+                iterator.remove()
+            }
+        }
+    }
+
+    private fun probe(protocol: SessionProtocol, packet: PacketView): FlowKey {
+        val key = probeKey
+        if (key != null) return key.set(protocol, packet)
+        return FlowKey.of(protocol, packet).also { probeKey = it }
+    }
+
+    private fun protocolOf(packet: PacketView): SessionProtocol? = when {
+        packet.isTcp -> SessionProtocol.TCP
+        packet.isUdp -> SessionProtocol.UDP
+        else -> null
+    }
+}
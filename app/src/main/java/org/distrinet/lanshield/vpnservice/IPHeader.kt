@@ -104,24 +104,7 @@ class IPHeader(packetBuffer: ByteBuffer) {
     }
 
     fun protocolNumberAsString(): String {
-        return when (protocol) {
-            0 -> "Hop-by-Hop Options Header"
-            1 -> "ICMPv4"
-            6 -> "TCP"
-            17 -> "UDP"
-            41 -> "IPv6 encapsulation"
-            47 -> "GRE"
-            50 -> "ESP"
-            51 -> "AH"
-            58 -> "ICMPv6"
-            59 -> "No Next Header for IPv6"
-            60 -> "Destination Options for IPv6"
-            88 -> "EIGRP"
-            89 -> "OSPF"
-            115 -> "L2TP"
-            413 -> "Segment Routing over IPv6"
-            else -> "Unknown: $protocol"
-        }
+        return protocolNumberAsString(protocol)
     }
 
     fun ipVersion(): Int {
@@ -129,14 +112,7 @@ class IPHeader(packetBuffer: ByteBuffer) {
     }
 
     fun protocolNumberAsOSConstant(): Int {
-        return when (protocol) {
-            0 -> IPPROTO_HOPOPTS
-            1 -> OsConstants.IPPROTO_ICMP
-            6 -> OsConstants.IPPROTO_TCP
-            17 -> OsConstants.IPPROTO_UDP
-            58 -> OsConstants.IPPROTO_ICMPV6
-            else -> 0
-        }
+        return protocolNumberAsOSConstant(protocol)
     }
 
     override fun toString(): String {
@@ -154,5 +130,37 @@ class IPHeader(packetBuffer: ByteBuffer) {
         }
 
         public val IPPROTO_HOPOPTS = 0
+
+        fun protocolNumberAsString(protocol: Int): String {
+            return when (protocol) {
+                0 -> "Hop-by-Hop Options Header"
+                1 -> "ICMPv4"
+                6 -> "TCP"
+                17 -> "UDP"
+                41 -> "IPv6 encapsulation"
+                47 -> "GRE"
+                50 -> "ESP"
+                51 -> "AH"
+                58 -> "ICMPv6"
+                59 -> "No Next Header for IPv6"
+                60 -> "Destination Options for IPv6"
+                88 -> "EIGRP"
+                89 -> "OSPF"
+                115 -> "L2TP"
+                413 -> "Segment Routing over IPv6"
+                else -> "Unknown: $protocol"
+            }
+        }
+
+        fun protocolNumberAsOSConstant(protocol: Int): Int {
+            return when (protocol) {
+                0 -> IPPROTO_HOPOPTS
+                1 -> OsConstants.IPPROTO_ICMP
+                6 -> OsConstants.IPPROTO_TCP
+                17 -> OsConstants.IPPROTO_UDP
+                58 -> OsConstants.IPPROTO_ICMPV6
+                else -> 0
+            }
+        }
     }
 }
\ No newline at end of file
@@ -9,6 +9,10 @@ import android.content.Intent
 import android.content.pm.PackageManager
 import android.graphics.Bitmap
 import android.net.Uri
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.Looper
+import android.os.SystemClock
 import androidx.core.app.NotificationCompat
 import androidx.core.graphics.drawable.toBitmap
 import org.distrinet.lanshield.LANShieldBroadcastReceiver
@@ -22,30 +26,71 @@ import org.distrinet.lanshield.SERVICE_NOTIFICATION_CHANNEL_ID
 import org.distrinet.lanshield.getPackageMetadata
 import org.distrinet.lanshield.ui.lantraffic.getLanTrafficPerAppRoute
 import java.net.InetSocketAddress
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
 
-class LANShieldNotificationManager(private val context: Context) {
+/**
+ * Posts the LAN traffic and service notifications.
+ *
+ * [postNotification] is called from the VPN thread for every packet that should be notified,
+ * so it only queues the event. A background handler drains the queue, merges the events into
+ * one notification per package and posts each package's notification at most once per
+ * [coalesceIntervalMs]. All notification state is owned by that handler.
+ */
+class LANShieldNotificationManager(
+    private val context: Context,
+    looper: Looper? = null,
+    private val coalesceIntervalMs: Long = DEFAULT_COALESCE_INTERVAL_MS
+) {
+
+    companion object {
+        const val DEFAULT_COALESCE_INTERVAL_MS = 2_000L
+        const val MAX_MESSAGE_LINES = 5
+        const val MAX_QUEUED_EVENTS = 1024
+    }
 
     data class ActiveNotification(
         val notificationId: Int,
         val messageLines: MutableList<String>,
-        val notificationBuilder: NotificationCompat.Builder
+        val notificationBuilder: NotificationCompat.Builder,
+        var hasNewLines: Boolean = false,
+        var lastPostedMs: Long? = null
+    )
+
+    private class LanTrafficEvent(
+        val packageName: String,
+        val appliedPolicy: Policy,
+        val remotePeer: InetSocketAddress
     )
 
     private val activeNotifications = mutableMapOf<String, ActiveNotification>()
     private val notificationManager =
         context.getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager
-    private var _notificationIdCounter =
-        2 // Notification ID can not be 1 (https://stackoverflow.com/questions/13062798/)
-    private var _intentRequestCodeCounter = 2
+    private val _notificationIdCounter =
+        AtomicInteger(2) // Notification ID can not be 1 (https://stackoverflow.com/questions/13062798/)
+    private val _intentRequestCodeCounter = AtomicInteger(2)
+
+    private val handler: Handler by lazy {
+        Handler(looper ?: HandlerThread("LAN traffic notifications").apply { start() }.looper)
+    }
+    private val events = ConcurrentLinkedQueue<LanTrafficEvent>()
+    private val queuedEvents = AtomicInteger()
+    private val drainScheduled = AtomicBoolean()
+    private val drainEvents = Runnable { drainEvents() }
+    private val postDue = Runnable { postDueNotifications() }
+
+    /** Number of LAN traffic notifications posted to the system. */
+    @Volatile
+    var notifyCount = 0L
+        private set
 
     private fun getNewNotificationId(): Int {
-        _notificationIdCounter += 1
-        return _notificationIdCounter
+        return _notificationIdCounter.incrementAndGet()
     }
 
     private fun getNewIntentRequestCode(): Int {
-        _intentRequestCodeCounter += 1
-        return _intentRequestCodeCounter
+        return _intentRequestCodeCounter.incrementAndGet()
     }
 
     private fun createUpdatePolicyIntent(
@@ -68,10 +113,10 @@ class LANShieldNotificationManager(private val context: Context) {
     }
 
     fun dismissNotification(packageName: String) {
-        activeNotifications[packageName]?.let {
-            val notificationId = it.notificationId
-            notificationManager.cancel(notificationId)
-            activeNotifications.remove(packageName)
+        handler.post {
+            activeNotifications.remove(packageName)?.let {
+                notificationManager.cancel(it.notificationId)
+            }
         }
     }
 
@@ -147,38 +192,88 @@ class LANShieldNotificationManager(private val context: Context) {
         return ActiveNotification(getNewNotificationId(), mutableListOf(), builder)
     }
 
-    private fun buildNotification(
-        activeNotification: ActiveNotification,
-        appliedPolicy: Policy,
-        remotePeer: InetSocketAddress
-    ): Notification {
+    private fun addMessageLine(event: LanTrafficEvent) {
+        val activeNotification = activeNotifications.getOrPut(event.packageName) {
+            createActiveNotification(event.packageName)
+        }
         val line = context.getString(
             R.string.peer,
-            remotePeer.toString().drop(1),
-            policyToActionString(appliedPolicy)
+            event.remotePeer.toString().drop(1),
+            policyToActionString(event.appliedPolicy)
         )
-        activeNotification.messageLines.add(0, line)
+        val lines = activeNotification.messageLines
+        if (lines.firstOrNull() == line) return
+
+        // A peer seen again moves to the top instead of being listed twice
+        lines.remove(line)
+        lines.add(0, line)
+        while (lines.size > MAX_MESSAGE_LINES) lines.removeAt(lines.lastIndex)
+        activeNotification.hasNewLines = true
+    }
 
+    private fun buildNotification(activeNotification: ActiveNotification): Notification {
         val inboxStyle = NotificationCompat.InboxStyle()
         activeNotification.messageLines.forEach { inboxStyle.addLine(it) }
 
         return activeNotification.notificationBuilder
-            .setContentText(line)
+            .setContentText(activeNotification.messageLines.first())
             .setStyle(inboxStyle)
             .build()
 
     }
 
+    /** Queue a LAN traffic event. Safe to call from any thread; never waits on the system. */
     fun postNotification(
         packageName: String,
         appliedPolicy: Policy,
         remotePeer: InetSocketAddress
     ) {
+        // Past the bound the handler is behind anyway, and the notification already shows traffic
+        if (queuedEvents.incrementAndGet() > MAX_QUEUED_EVENTS) {
+            queuedEvents.decrementAndGet()
+            return
+        }
+        events.add(LanTrafficEvent(packageName, appliedPolicy, remotePeer))
+        if (drainScheduled.compareAndSet(false, true)) {
+            handler.post(drainEvents)
+        }
+    }
+
+    private fun drainEvents() {
+        // Cleared first, so an event queued while draining schedules another drain
+        drainScheduled.set(false)
+        while (true) {
+            val event = events.poll() ?: break
+            queuedEvents.decrementAndGet()
+            addMessageLine(event)
+        }
+        postDueNotifications()
+    }
 
-        val activeNotification =
-            activeNotifications.getOrPut(packageName) { createActiveNotification(packageName) }
-        val notification = buildNotification(activeNotification, appliedPolicy, remotePeer)
-        notificationManager.notify(activeNotification.notificationId, notification)
+    private fun postDueNotifications() {
+        val now = SystemClock.uptimeMillis()
+        var nextDueMs = Long.MAX_VALUE
+        for (activeNotification in activeNotifications.values) {
+            if (!activeNotification.hasNewLines) continue
+
+            val dueMs = activeNotification.lastPostedMs?.plus(coalesceIntervalMs) ?: now
+            if (dueMs <= now) {
+                notificationManager.notify(
+                    activeNotification.notificationId,
+                    buildNotification(activeNotification)
+                )
+                activeNotification.hasNewLines = false
+                activeNotification.lastPostedMs = now
+                notifyCount++
+            } else {
+                nextDueMs = minOf(nextDueMs, dueMs)
+            }
+        }
+
+        handler.removeCallbacks(postDue)
+        if (nextDueMs != Long.MAX_VALUE) {
+            handler.postAtTime(postDue, nextDueMs)
+        }
     }
 
     fun postServiceErrorNotification(title: String, text: String) {
@@ -12,7 +12,8 @@ data class PacketDecisionInput(
     val isTcpOrUdp: Boolean,
     /** True when a usable app uid was found (uid != -1, != 1000, != 0). */
     val hasValidUid: Boolean,
-    val destAddress: InetAddress,
+    /** True for multicast and broadcast destinations, see [PolicyEngine.isMulticastDest]. */
+    val isMulticastDest: Boolean,
     val destPort: Int,
     /** The per-app policy; only meaningful when [hasValidUid] is true. */
     val perAppPolicy: Policy,
@@ -51,7 +52,7 @@ object PolicyEngine {
             return resolveDefaultPolicy(DEFAULT, input.defaultForwardPolicy, shouldNotify = false)
         }
 
-        val isMulticast = isMulticastDest(input.destAddress)
+        val isMulticast = input.isMulticastDest
         val isDns = input.destPort == 53
 
         if (!input.hasValidUid) {
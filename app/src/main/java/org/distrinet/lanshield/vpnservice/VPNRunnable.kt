@@ -4,45 +4,60 @@ import android.content.Context
 import android.net.ConnectivityManager
 import android.net.VpnService
 import android.os.ParcelFileDescriptor
-import android.system.OsConstants.IPPROTO_TCP
-import android.system.OsConstants.IPPROTO_UDP
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants
+import android.system.StructPollfd
 import android.util.Log
 import android.util.SparseArray
 import androidx.lifecycle.Observer
-import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Runnable
-import kotlinx.coroutines.launch
 import org.distrinet.lanshield.PACKAGE_NAME_UNKNOWN
 import org.distrinet.lanshield.Policy
-import org.distrinet.lanshield.Policy.ALLOW
-import org.distrinet.lanshield.Policy.BLOCK
-import org.distrinet.lanshield.Policy.DEFAULT
 import org.distrinet.lanshield.TAG
 import org.distrinet.lanshield.crashreport.crashReporter
 import org.distrinet.lanshield.database.AppDatabase
-import org.distrinet.lanshield.database.model.LANFlow
 import org.distrinet.lanshield.database.model.LanAccessPolicy
 import org.distrinet.lanshield.getPackageMetadata
 import org.distrinet.lanshield.getPackageNameFromUid
+import org.distrinet.lanshield.packageInfoCache
 import tech.httptoolkit.android.vpn.ClientPacketWriter
+import tech.httptoolkit.android.vpn.Session
 import tech.httptoolkit.android.vpn.SessionHandler
 import tech.httptoolkit.android.vpn.SessionManager
 import tech.httptoolkit.android.vpn.socket.SocketNIODataService
+import tech.httptoolkit.android.vpn.transport.PacketView
 import java.io.FileInputStream
 import java.io.FileOutputStream
 import java.io.IOException
 import java.io.InterruptedIOException
 import java.net.ConnectException
 import java.nio.ByteBuffer
+import java.nio.ByteOrder
 
 // Set on our VPN as the MTU, which should guarantee all packets fit this
 const val MAX_PACKET_LEN = 1500
 
+// Read the TUN fd non-blocking, in bursts of up to TUN_READ_BATCH_SIZE packets per wakeup,
+// instead of one blocking read per packet
+const val TUN_BATCHED_READS = true
+const val TUN_READ_BATCH_SIZE = 32
+private const val TUN_POLL_TIMEOUT_MS = 500
+
+// Selector threads forwarding upstream socket traffic, each owning the sessions that hash to it
+val NIO_SHARD_COUNT = SocketNIODataService.DEFAULT_SHARD_COUNT
+
+// Client TCP data is forwarded without waiting for PSH: at once past this many queued bytes,
+// otherwise after this delay. A negative delay waits for PSH, as the engine used to.
+const val TCP_WRITE_COALESCE_BYTES = SessionHandler.DEFAULT_WRITE_COALESCE_BYTES
+const val TCP_WRITE_COALESCE_DELAY_MS = SessionHandler.DEFAULT_WRITE_COALESCE_DELAY_MS
+
 class VPNRunnable(
     vpnInterface: ParcelFileDescriptor,
     private val vpnNotificationManager: LANShieldNotificationManager,
-    private val context: Context
+    private val context: Context,
+    // Must match how the TUN fd was configured: non-blocking when true, blocking otherwise
+    private val batchedReads: Boolean
 ) : Runnable {
 
     companion object {
@@ -58,37 +73,157 @@ class VPNRunnable(
             }
         }
 
-        private val dpiLock = Any()
+        // Return codes of _doDPI, see lanshield-dpi.c
+        private const val DPI_DONE = 0
+        private const val DPI_NEED_MORE_PACKETS = 1
+
+        // Layout of the _doDPI result buffer, see struct lanshield_dpi_result_header
+        private const val DPI_RESULT_BUFFER_SIZE = 512
+        private const val DPI_RESULT_MASTER_PROTOCOL_OFFSET = 0
+        private const val DPI_RESULT_APP_PROTOCOL_OFFSET = 2
+        private const val DPI_RESULT_CATEGORY_OFFSET = 4
+        private const val DPI_RESULT_PROTOCOL_NAME_LEN_OFFSET = 6
+        private const val DPI_RESULT_HOSTNAME_LEN_OFFSET = 7
+        private const val DPI_RESULT_SNI_LEN_OFFSET = 8
+        private const val DPI_RESULT_JA3_LEN_OFFSET = 9
+        private const val DPI_RESULT_HEADER_SIZE = 10
+
+        // Reused for every call on the same thread; only decoded once a flow is classified
+        private val dpiResultBuffer = ThreadLocal.withInitial {
+            ByteBuffer.allocateDirect(DPI_RESULT_BUFFER_SIZE).order(ByteOrder.nativeOrder())
+        }
+
+        private external fun _newDpiFlow(): Long
+
+        private external fun _freeDpiFlow(flowHandle: Long)
 
         private external fun _doDPI(
-            packet: ByteArray,
+            flowHandle: Long,
+            packet: ByteBuffer,
             packetSize: Int,
             packetOffset: Int,
-            dpiResult: DpiResult
+            result: ByteBuffer
         ): Int
 
         external fun terminateNDPI()
 
-        fun doDpi(packet: ByteArray, packetSize: Int, packetOffset: Int): DpiResult? {
-            val dpiResult = DpiResult()
-            return synchronized(dpiLock) {
-                try {
-                    val res = _doDPI(packet, packetSize, packetOffset, dpiResult)
-                    if (res == 0) {
-                        Log.d(TAG, "Dpi result: $dpiResult")
-                        dpiResult
-                    } else {
-                        null
+        /**
+         * Classify a single packet on its own, for packets that don't belong to a session.
+         * [packet] must be a direct buffer, it is read in place by the native code.
+         */
+        fun doDpi(packet: ByteBuffer, packetSize: Int, packetOffset: Int): DpiResult? {
+            return doDpi(0L, packet, packetSize, packetOffset)
+        }
+
+        /**
+         * Feed a packet of [session] into its native nDPI flow, allocating the flow on first use.
+         * [packet] must be a direct buffer. Returns null while detection still needs more packets;
+         * once a result is returned the native flow is freed and the session is marked as classified.
+         * Runs under the session's DPI lock rather than its monitor, so packets of the session
+         * keep being forwarded while nDPI inspects one of them.
+         */
+        fun doSessionDpi(session: Session, packet: ByteBuffer, packetSize: Int, packetOffset: Int): DpiResult? {
+            synchronized(session.dpiLock) {
+                if (session.isDpiComplete) return null
+                if (session.dpiFlowHandle == 0L) {
+                    session.dpiFlowHandle = newDpiFlow()
+                    if (session.dpiFlowHandle == 0L) {
+                        // DPI unavailable: don't retry on every packet of this flow
+                        session.isDpiComplete = true
+                        return null
                     }
+                }
+                val dpiResult = doDpi(session.dpiFlowHandle, packet, packetSize, packetOffset)
+                if (dpiResult != null) {
+                    releaseSessionDpi(session)
+                }
+                return dpiResult
+            }
+        }
+
+        /** Free the native nDPI flow of [session], if any, and stop inspecting its packets. */
+        fun releaseSessionDpi(session: Session) {
+            // Set first, so the worker skips anything still queued for this session
+            session.isDpiComplete = true
+            synchronized(session.dpiLock) {
+                val flowHandle = session.dpiFlowHandle
+                if (flowHandle == 0L) return
+                session.dpiFlowHandle = 0L
+                try {
+                    _freeDpiFlow(flowHandle)
                 } catch (e: Throwable) {
-                    // Catch Throwable (not just Exception) so a native failure such as an
-                    // UnsatisfiedLinkError degrades DPI gracefully instead of propagating up
-                    // and tearing down the whole VPN packet loop.
-                    Log.e(TAG, "Error during DPI: ${e.message}")
+                    Log.e(TAG, "Error freeing DPI flow: ${e.message}")
+                }
+            }
+        }
+
+        private fun newDpiFlow(): Long {
+            return try {
+                _newDpiFlow()
+            } catch (e: Throwable) {
+                Log.e(TAG, "Error allocating DPI flow: ${e.message}")
+                0L
+            }
+        }
+
+        private fun doDpi(flowHandle: Long, packet: ByteBuffer, packetSize: Int, packetOffset: Int): DpiResult? {
+            // The native side keeps a detection module per thread and a flow is only fed
+            // under its session's DPI lock, so no global lock is needed here.
+            return try {
+                val result = dpiResultBuffer.get()
+                val res = _doDPI(flowHandle, packet, packetSize, packetOffset, result)
+                if (res == DPI_DONE) {
+                    val dpiResult = readDpiResult(result)
+                    Log.d(TAG, "Dpi result: $dpiResult")
+                    dpiResult
+                } else {
+                    if (res != DPI_NEED_MORE_PACKETS) {
+                        Log.e(TAG, "DPI failed with code $res")
+                    }
                     null
                 }
+            } catch (e: Throwable) {
+                // Catch Throwable (not just Exception) so a native failure such as an
+                // UnsatisfiedLinkError degrades DPI gracefully instead of propagating up
+                // and tearing down the whole VPN packet loop.
+                Log.e(TAG, "Error during DPI: ${e.message}")
+                null
             }
         }
+
+        private fun readDpiResult(result: ByteBuffer): DpiResult {
+            val protocolNameLen = result.get(DPI_RESULT_PROTOCOL_NAME_LEN_OFFSET).toInt() and 0xFF
+            val hostnameLen = result.get(DPI_RESULT_HOSTNAME_LEN_OFFSET).toInt() and 0xFF
+            val sniLen = result.get(DPI_RESULT_SNI_LEN_OFFSET).toInt() and 0xFF
+            val ja3Len = result.get(DPI_RESULT_JA3_LEN_OFFSET).toInt() and 0xFF
+
+            var offset = DPI_RESULT_HEADER_SIZE
+            val protocolName = readUtf8(result, offset, protocolNameLen)
+            offset += protocolNameLen
+            val hostname = if (hostnameLen > 0) readUtf8(result, offset, hostnameLen) else null
+            offset += hostnameLen
+            val sni = if (sniLen > 0) readUtf8(result, offset, sniLen) else null
+            offset += sniLen
+            val ja3 = if (ja3Len > 0) readUtf8(result, offset, ja3Len) else null
+
+            return DpiResult(
+                masterProtocol = result.getShort(DPI_RESULT_MASTER_PROTOCOL_OFFSET).toInt() and 0xFFFF,
+                appProtocol = result.getShort(DPI_RESULT_APP_PROTOCOL_OFFSET).toInt() and 0xFFFF,
+                category = result.getShort(DPI_RESULT_CATEGORY_OFFSET).toInt() and 0xFFFF,
+                protocolName = protocolName,
+                hostname = hostname,
+                sni = sni,
+                ja3 = ja3
+            )
+        }
+
+        private fun readUtf8(buffer: ByteBuffer, offset: Int, length: Int): String {
+            val bytes = ByteArray(length)
+            val view = buffer.duplicate()
+            view.position(offset)
+            view.get(bytes)
+            return String(bytes, Charsets.UTF_8)
+        }
     }
 
 
@@ -106,96 +241,107 @@ class VPNRunnable(
     private val vpnPacketWriterRunnable = ClientPacketWriter(vpnWriteStream)
     private val vpnPacketWriterThread = Thread(vpnPacketWriterRunnable)
 
-    private val nioServiceRunnable = SocketNIODataService(vpnPacketWriterRunnable, appDatabase)
+    // Counters of live flows are stored in batches, off the forwarding threads
+    private val flowStore = FlowStore(appDatabase)
+
+    private val nioServiceRunnable = SocketNIODataService(vpnPacketWriterRunnable, flowStore, NIO_SHARD_COUNT)
     private val dataServiceThread = Thread(nioServiceRunnable, "Socket NIO thread")
 
-    private val httpToolkitSessionManager = SessionManager(appDatabase)
+    private val dpiClassifier = DpiClassifier(appDatabase, flowStore = flowStore)
+
+    private val blockedFlows = BlockedFlowTracker(flowStore)
+
+    private val verdictCache = FlowVerdictCache()
+
+    private val httpToolkitSessionManager = SessionManager(dpiClassifier, flowStore).apply {
+        // A verdict lives as long as its session; the cache's idle timeout covers the rest
+        setSessionCloseListener { session -> verdictCache.remove(session.flowKey) }
+        // Idle sessions, most of all UDP ones, are closed from the NIO thread
+        nioServiceRunnable.setSessionManager(this)
+    }
     private val httpToolkitSessionHandler =
         SessionHandler(
             httpToolkitSessionManager,
             nioServiceRunnable,
-            vpnPacketWriterRunnable,
-            appDatabase
-        )
+            vpnPacketWriterRunnable
+        ).apply { setWriteCoalescing(TCP_WRITE_COALESCE_BYTES, TCP_WRITE_COALESCE_DELAY_MS) }
 
     // Allocate the buffer for a single packet.
     private val packetBuffer = ByteBuffer.allocate(MAX_PACKET_LEN)
 
+    // Shared by the policy checks and the session engine, rewrapped for every packet read
+    private val packetView = PacketView()
 
+    // Only written by the VPN thread, read for diagnostics
     @Volatile
-    private var defaultForwardPolicy = ALLOW
-
-    @Volatile
-    private var systemAppsForwardPolicy = ALLOW
+    var tunReadBatches = 0L
+        private set
 
     @Volatile
-    private var allowMulticast = false
+    var tunPacketsRead = 0L
+        private set
 
-    @Volatile
-    private var allowDns = false
 
-    @Volatile
-    private var hideMulticastNotifications = false
+    // Inputs of compiledPolicy, only changed through updatePolicySettings()
+    private var policySettings = PolicySettings()
 
     @Volatile
-    private var hideDnsNotifications = false
+    private var compiledPolicy = CompiledPolicy.compile(policySettings)
 
     @Synchronized
-    fun setDefaultForwardPolicy(policy: Policy) {
-        defaultForwardPolicy = policy
+    private fun updatePolicySettings(update: (PolicySettings) -> PolicySettings) {
+        policySettings = update(policySettings)
+        compiledPolicy = CompiledPolicy.compile(policySettings)
+        verdictCache.invalidate()
     }
 
-    @Synchronized
-    fun setSystemAppsForwardPolicy(policy: Policy) {
-        systemAppsForwardPolicy = policy
+    fun setDefaultForwardPolicy(policy: Policy) {
+        updatePolicySettings { it.copy(defaultForwardPolicy = policy) }
     }
 
-    @Volatile
-    private var accessPoliciesCache = HashMap<String, Policy>()
-
-    @Synchronized
-    private fun updateAccessPoliciesCache(newCache: HashMap<String, Policy>) {
-        accessPoliciesCache = newCache
+    fun setSystemAppsForwardPolicy(policy: Policy) {
+        updatePolicySettings { it.copy(systemAppsForwardPolicy = policy) }
     }
 
     var accessPoliesObserver =
         Observer<List<LanAccessPolicy>> { policies ->
-            val newCache = HashMap<String, Policy>()
+            val appPolicies = HashMap<String, Policy>()
             policies.forEach {
-                newCache[it.packageName] = it.accessPolicy
+                appPolicies[it.packageName] = it.accessPolicy
             }
-            updateAccessPoliciesCache(newCache)
+            updatePolicySettings { it.copy(appPolicies = appPolicies) }
         }
 
     var defaultPolicyObserver = Observer<Policy> { setDefaultForwardPolicy(it) }
     var systemAppsPolicyObserver = Observer<Policy> { setSystemAppsForwardPolicy(it) }
-    var allowMulticastObserver = Observer<Boolean> { allowMulticast = it }
-    var allowDnsObserver = Observer<Boolean> { allowDns = it }
-    var hideMulticastNotificationsObserver = Observer<Boolean> { hideMulticastNotifications = it }
-    var hideDnsNotificationsObserver = Observer<Boolean> { hideDnsNotifications = it }
+    var allowMulticastObserver = Observer<Boolean> { allow ->
+        updatePolicySettings { it.copy(allowMulticast = allow) }
+    }
+    var allowDnsObserver = Observer<Boolean> { allow ->
+        updatePolicySettings { it.copy(allowDns = allow) }
+    }
+    var hideMulticastNotificationsObserver = Observer<Boolean> { hide ->
+        updatePolicySettings { it.copy(hideMulticastNotifications = hide) }
+    }
+    var hideDnsNotificationsObserver = Observer<Boolean> { hide ->
+        updatePolicySettings { it.copy(hideDnsNotifications = hide) }
+    }
 
 
     private fun logBlockedPacket(
-        packetHeader: IPHeader,
+        packet: PacketView,
         rawPacket: ByteBuffer,
         packageName: String
     ) {
-        val lanFlow = LANFlow.createFlow(
-            appId = packageName,
-            remoteEndpoint = packetHeader.destination,
-            localEndpoint = packetHeader.source,
-            transportLayerProtocol = packetHeader.protocolNumberAsString(),
-            appliedPolicy = BLOCK
-        )
-        lanFlow.dataEgress = packetHeader.size.toLong()
-        lanFlow.packetCountEgress = 1
-        val dpiResult = getDpiResult(packetHeader, rawPacket)
-        if (dpiResult != null) {
-            lanFlow.dpiReport = dpiResult.jsonBuffer
-            lanFlow.dpiProtocol = dpiResult.protocolName
-        }
-        CoroutineScope(Dispatchers.IO).launch {
-            appDatabase.FlowDao().insertFlow(lanFlow)
+        // Only the first packet of a blocked flow is classified, later ones just add to its counters
+        val newFlow = blockedFlows.record(packet, packageName) ?: return
+        if (hasPayloadForDpi(packet)) {
+            dpiClassifier.classifyAndInsertFlow(
+                newFlow,
+                rawPacket.array(),
+                rawPacket.limit(),
+                rawPacket.arrayOffset()
+            )
         }
     }
 
@@ -212,6 +358,8 @@ class VPNRunnable(
         vpnPacketWriterThread.priority = Thread.NORM_PRIORITY
         dataServiceThread.start()
         vpnPacketWriterThread.start()
+        dpiClassifier.start()
+        flowStore.start()
 
         var packetLength: Int
 
@@ -226,49 +374,25 @@ class VPNRunnable(
         }
         while (threadMainLoopActive) {
             try {
-                packetBuffer.clear()
-                packetLength = vpnReadStream.read(
-                    packetBufferArray,
-                    packetBuffer.arrayOffset(),
-                    MAX_PACKET_LEN
-                )
-
-                if (packetLength > 0) {
-                    try {
-                        packetBuffer.limit(packetLength)
-                        val packetHeader = IPHeader(packetBuffer)
-                        val (shouldForward, packageName) = shouldForwardPacket(packetHeader)
-
-                        packetBuffer.rewind()
-                        if (shouldForward) {
-                            httpToolkitSessionHandler.handlePacket(packetBuffer, packageName)
-                        } else {
-                            logBlockedPacket(packetHeader, packetBuffer, packageName)
-                        }
-
-                    } catch (e: Exception) {
-                        val errorMessage = (e.message ?: e.toString())
-                        Log.e(TAG, errorMessage)
-
-                        val isIgnorable =
-                            (e is ConnectException && errorMessage == "Permission denied") ||
-                                    // Nothing we can do if the internet goes down:
-                                    (e is ConnectException && errorMessage == "Network is unreachable") ||
-                                    (e is ConnectException && errorMessage.contains("ENETUNREACH")) ||
-                                    // Too many open files - can't make more sockets, not much we can do:
-                                    (e is ConnectException && errorMessage == "Too many open files") ||
-                                    (e is ConnectException && errorMessage.contains("EMFILE"))
-
-                        if (!isIgnorable) {
-                            Log.e(TAG, e.toString())
-                        }
-                    }
-                } else if (packetLength == 0) {
-                    Thread.sleep(10)
-                    Log.wtf(TAG, "vpnReadStream not configured as blocking!")
+                if (batchedReads) {
+                    readPacketBatch(packetBufferArray)
                 } else {
-                    threadMainLoopActive = false
-                    Log.e(TAG, "TUN socket closed unexpected")
+                    packetBuffer.clear()
+                    packetLength = vpnReadStream.read(
+                        packetBufferArray,
+                        packetBuffer.arrayOffset(),
+                        MAX_PACKET_LEN
+                    )
+
+                    if (packetLength > 0) {
+                        processPacket(packetLength)
+                    } else if (packetLength == 0) {
+                        Thread.sleep(10)
+                        Log.wtf(TAG, "vpnReadStream not configured as blocking!")
+                    } else {
+                        threadMainLoopActive = false
+                        Log.e(TAG, "TUN socket closed unexpected")
+                    }
                 }
             } catch (e: InterruptedException) {
                 Log.i(TAG, "Sleep interrupted: " + e.message)
@@ -282,25 +406,102 @@ class VPNRunnable(
         Log.d(TAG, "Vpn thread shutting down")
     }
 
-    private fun getDpiResult(
-        packetHeader: IPHeader,
-        packetRaw: ByteBuffer,
-    ): DpiResult? {
-        if (packetHeader.protocolNumberAsOSConstant() == IPPROTO_UDP
-            || (packetHeader.protocolNumberAsOSConstant() == IPPROTO_TCP && packetHeader.hasPayloadForDpi())
-        ) {
-            return doDpi(packetRaw.array(), packetRaw.limit(), packetRaw.arrayOffset())
+    /**
+     * Read every packet that is already queued on the non-blocking TUN fd, up to
+     * [TUN_READ_BATCH_SIZE], then wait in poll() for more. Selector wakeups requested while
+     * handling the burst are deferred and issued once at its end.
+     */
+    private fun readPacketBatch(packetBufferArray: ByteArray) {
+        var packetLength = 0
+        var batchSize = 0
+        nioServiceRunnable.beginBatch()
+        try {
+            while (batchSize < TUN_READ_BATCH_SIZE && threadMainLoopActive) {
+                packetBuffer.clear()
+                // Returns 0 rather than throwing EAGAIN once the queue is empty
+                packetLength = vpnReadStream.read(
+                    packetBufferArray,
+                    packetBuffer.arrayOffset(),
+                    MAX_PACKET_LEN
+                )
+                if (packetLength <= 0) break
+                processPacket(packetLength)
+                batchSize++
+            }
+        } finally {
+            nioServiceRunnable.endBatch()
+        }
+        tunReadBatches++
+        tunPacketsRead += batchSize
+
+        if (packetLength < 0) {
+            threadMainLoopActive = false
+            Log.e(TAG, "TUN socket closed unexpected")
+        } else if (packetLength == 0) {
+            awaitReadable()
         }
-        return null
+        // Otherwise the batch was full, so there is probably more to read right away
     }
 
-    private fun getPacketOwnerUid(pkt: IPHeader): Int {
+    private fun awaitReadable() {
+        val pollFd = StructPollfd()
+        pollFd.fd = vpnReadStream.fd
+        pollFd.events = OsConstants.POLLIN.toShort()
+        try {
+            // Time out now and then so stop() is noticed even if nothing arrives
+            Os.poll(arrayOf(pollFd), TUN_POLL_TIMEOUT_MS)
+        } catch (e: ErrnoException) {
+            if (e.errno != OsConstants.EINTR) throw e.rethrowAsIOException()
+        }
+    }
+
+    private fun processPacket(packetLength: Int) {
+        try {
+            packetBuffer.limit(packetLength)
+            packetView.wrap(packetBuffer)
+            val (shouldForward, packageName) = shouldForwardPacket(packetView)
+
+            packetBuffer.rewind()
+            if (shouldForward) {
+                httpToolkitSessionHandler.handlePacket(packetBuffer, packetView, packageName)
+            } else {
+                logBlockedPacket(packetView, packetBuffer, packageName)
+            }
+
+        } catch (e: Exception) {
+            val errorMessage = (e.message ?: e.toString())
+            Log.e(TAG, errorMessage)
+
+            val isIgnorable =
+                (e is ConnectException && errorMessage == "Permission denied") ||
+                        // Nothing we can do if the internet goes down:
+                        (e is ConnectException && errorMessage == "Network is unreachable") ||
+                        (e is ConnectException && errorMessage.contains("ENETUNREACH")) ||
+                        // Too many open files - can't make more sockets, not much we can do:
+                        (e is ConnectException && errorMessage == "Too many open files") ||
+                        (e is ConnectException && errorMessage.contains("EMFILE"))
+
+            if (!isIgnorable) {
+                Log.e(TAG, e.toString())
+            }
+        }
+    }
+
+    private fun hasPayloadForDpi(packet: PacketView): Boolean {
+        return packet.isUdp || (packet.isTcp && packet.hasPayloadForDpi())
+    }
+
+    private fun getPacketOwnerUid(pkt: PacketView): Int {
+        // The lookup API takes socket addresses, so this is the one place the hot path copies them
+        val source = pkt.sourceSocketAddress
+        val destination = pkt.destinationSocketAddress
+        val protocol = IPHeader.protocolNumberAsOSConstant(pkt.protocol)
         repeat(5) {
             try {
                 val uid = connectivityManager.getConnectionOwnerUid(
-                    pkt.protocolNumberAsOSConstant(),
-                    pkt.source,
-                    pkt.destination
+                    protocol,
+                    source,
+                    destination
                 )
                 if (uid != 0 && uid != -1) {
                     return uid
@@ -313,52 +514,61 @@ class VPNRunnable(
         return -1
     }
 
-    private fun shouldForwardPacket(packetHeader: IPHeader): Pair<Boolean, String> {
+    private fun shouldForwardPacket(packet: PacketView): Pair<Boolean, String> {
+        val verdict = verdictCache.get(packet) ?: computeVerdict(packet)
 
-        val transportLayerProtocol = packetHeader.protocolNumberAsOSConstant()
-        val isTcpOrUdp = transportLayerProtocol == IPPROTO_TCP
-                || transportLayerProtocol == IPPROTO_UDP
+        if (verdict.shouldNotify) {
+            vpnNotificationManager.postNotification(
+                packageName = verdict.packageName,
+                verdict.appliedPolicy,
+                packet.destinationSocketAddress
+            )
+        }
+        return Pair(verdict.shouldForward, verdict.packageName)
+    }
+
+    private fun computeVerdict(packet: PacketView): FlowVerdict {
+        // Read before the policy, so a policy change while deciding discards this verdict
+        val generation = verdictCache.generation
+        val policy = compiledPolicy
 
         // We can only look up the app's uid for TCP and UDP packets.
+        var appUid = -1
         var appPackageName = PACKAGE_NAME_UNKNOWN
-        var perAppPolicy = DEFAULT
-        var isSystemApp = false
-        var hasValidUid = false
-        if (isTcpOrUdp) {
-            val appUid = getPacketOwnerUid(packetHeader)
-            hasValidUid = appUid != -1 && appUid != 1000 && appUid != 0
+        val profile = if (packet.isTcp || packet.isUdp) {
+            appUid = getPacketOwnerUid(packet)
+            val hasValidUid = appUid != -1 && appUid != 1000 && appUid != 0
             if (hasValidUid) {
                 appPackageName = getPackageNameFromUid(appUid, context.packageManager)
-                perAppPolicy = accessPoliciesCache.getOrDefault(appPackageName, DEFAULT)
-                isSystemApp = getPackageMetadata(appPackageName, context.packageManager).isSystem
+                policy.uidProfile(appUid, packageInfoCache.generation) {
+                    val isSystemApp = getPackageMetadata(appPackageName, context.packageManager).isSystem
+                    policy.appProfile(appPackageName, isSystemApp)
+                }
+            } else {
+                CompiledPolicy.PROFILE_NO_VALID_UID
             }
+        } else {
+            CompiledPolicy.PROFILE_NOT_TCP_OR_UDP
         }
 
-        val decision = PolicyEngine.decide(
-            PacketDecisionInput(
-                isTcpOrUdp = isTcpOrUdp,
-                hasValidUid = hasValidUid,
-                destAddress = packetHeader.destination.address,
-                destPort = packetHeader.destination.port,
-                perAppPolicy = perAppPolicy,
-                isSystemApp = isSystemApp,
-                defaultForwardPolicy = defaultForwardPolicy,
-                systemAppsForwardPolicy = systemAppsForwardPolicy,
-                allowMulticast = allowMulticast,
-                allowDns = allowDns,
-                hideDnsNotifications = hideDnsNotifications,
-                hideMulticastNotifications = hideMulticastNotifications,
-            )
+        val decision = policy.verdict(
+            profile,
+            CompiledPolicy.destinationClass(packet.isMulticastDestination, packet.destinationPort)
         )
 
-        if (decision.shouldNotify) {
-            vpnNotificationManager.postNotification(
-                packageName = appPackageName,
-                decision.appliedPolicy,
-                packetHeader.destination
-            )
+        val verdict = FlowVerdict(
+            uid = appUid,
+            packageName = appPackageName,
+            appliedPolicy = CompiledPolicy.appliedPolicy(decision),
+            shouldForward = CompiledPolicy.shouldForward(decision),
+            shouldNotify = CompiledPolicy.shouldNotify(decision)
+        )
+        // A failed owner lookup may just be a race with the socket's creation, so try again
+        // on the next packet rather than pinning the flow to the unknown app
+        if (appUid != -1) {
+            verdictCache.put(packet, generation, verdict)
         }
-        return Pair(decision.shouldForward, appPackageName)
+        return verdict
     }
 
     fun stop() {
@@ -369,6 +579,10 @@ class VPNRunnable(
 
             vpnPacketWriterRunnable.shutdown()
             vpnPacketWriterThread.interrupt()
+
+            dpiClassifier.shutdown()
+            // Writes out the counters of every flow that is still dirty before it stops
+            flowStore.shutdown()
         } else {
             Log.w(TAG, "Vpn runnable stopped, but it's not running")
         }
@@ -351,6 +351,9 @@ class VPNService : VpnService(), IProtectSocket {
         stopVPNThread()
         updateAlwaysOnStatus()
 
+        // The TUN fd must be non-blocking for batched reads and blocking otherwise, so the
+        // builder and the runnable take the mode from here
+        val batchedReads = TUN_BATCHED_READS
         val builder = Builder()
         builder.setSession(getString(R.string.app_name) + " LAN Firewall")
             .addAddress(TUN_IP4_ADDRESS, 32)
@@ -359,7 +362,7 @@ class VPNService : VpnService(), IProtectSocket {
         addIpv6Routes(builder)
         addInterfaceAddressRoutes(builder)
         builder.addDisallowedApplication(packageName)
-            .setBlocking(true)
+            .setBlocking(!batchedReads)
             .setMtu(MAX_PACKET_LEN)
             .setMetered(false)
 
@@ -383,7 +386,7 @@ class VPNService : VpnService(), IProtectSocket {
         this.vpnInterface = vpnInterface
         SocketProtector.getInstance().setProtector(this)
 
-        vpnRunnable = VPNRunnable(vpnInterface, vpnNotificationManager, this)
+        vpnRunnable = VPNRunnable(vpnInterface, vpnNotificationManager, this, batchedReads)
         accessPolicies.observeForever(vpnRunnable!!.accessPoliesObserver)
         defaultForwardPolicyLive.observeForever(vpnRunnable!!.defaultPolicyObserver)
         systemAppsForwardPolicyLive.observeForever(vpnRunnable!!.systemAppsPolicyObserver)
@@ -18,22 +18,29 @@ package tech.httptoolkit.android.vpn;
 
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.channels.AsynchronousFileChannel;
-import java.nio.channels.Selector;
-import java.util.Queue;
-import java.util.concurrent.BlockingDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import tech.httptoolkit.android.TagKt;
 import org.distrinet.lanshield.crashreport.CrashReporterKt;
 
 /**
  * write packet data back to VPN client stream. This class is thread safe.
+ *
+ * Packets wait in a bounded ring until the writer thread writes them out. Most are encoded into
+ * MTU-sized buffers from {@link #obtainBuffer()}, which return to a pool after the write, so a
+ * sustained download doesn't allocate an array per segment. When the ring is full, writers
+ * wait for the TUN to catch up rather than dropping packets.
+ *
+ * Each time the writer thread wakes up it drains everything already queued, up to
+ * {@link #MAX_BATCH_SIZE} packets, and writes it out before blocking again. Every packet is
+ * still its own write, as the TUN takes exactly one packet per write.
  * @author Borey Sao
  * Date: May 22, 2014
  */
@@ -48,48 +55,162 @@ public class ClientPacketWriter implements Runnable {
 	// so this should never trigger; if it does it's a logic error we drop rather than crash on.
 	private static final int MAX_WRITE_PACKET_SIZE = 30000;
 
+	static final int QUEUE_CAPACITY = 1024;
+	// Idle buffers kept for reuse; more can be in use at once, but are dropped when returned
+	static final int POOL_CAPACITY = 512;
+
+	// How long a blocked writer waits between checks for shutdown
+	private static final long ENQUEUE_WAIT_MS = 100;
+
+	// Most packets written per wakeup of the writer thread
+	static final int MAX_BATCH_SIZE = 64;
+
 	private volatile boolean shutdown = false;
 	private volatile boolean alreadyReportedOversize = false;
-	private final BlockingDeque<byte[]> packetQueue = new LinkedBlockingDeque<>();
+	private final BlockingQueue<PacketBuffer> packetQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	private final BlockingQueue<PacketBuffer> bufferPool = new ArrayBlockingQueue<>(POOL_CAPACITY);
+
+	// Statistics, only updated by the writer thread
+	private volatile long batchCount = 0;
+	private volatile long writtenPacketCount = 0;
+	private volatile int maxBatchSize = 0;
+	private volatile int maxQueueDepth = 0;
 
 	public ClientPacketWriter(FileOutputStream clientWriter) {
 		this.clientWriter = clientWriter;
 	}
 
+	/**
+	 * Get an empty {@link PacketBuffer#POOLED_CAPACITY} byte buffer to encode a packet into. It
+	 * must then be passed to {@link #write(PacketBuffer)}, or handed back with {@link #release}.
+	 */
+	@NonNull
+	public PacketBuffer obtainBuffer() {
+		PacketBuffer buffer = bufferPool.poll();
+		if (buffer == null) {
+			buffer = new PacketBuffer(new byte[PacketBuffer.POOLED_CAPACITY], true);
+		}
+		buffer.setLength(0);
+		return buffer;
+	}
+
+	/** Return a buffer to the pool once its packet has been written or discarded. */
+	public void release(@NonNull PacketBuffer buffer) {
+		if (buffer.isPooled()) {
+			bufferPool.offer(buffer);
+		}
+	}
+
 	public void write(byte[] data) {
 		if (data.length > MAX_WRITE_PACKET_SIZE) {
 			// Drop instead of throwing: this runs on the NIO thread, and an uncaught Error here
 			// would tear down the whole forwarding engine.
-			Log.w(TAG, "Dropping oversized packet (" + data.length + " bytes)");
-			if (!alreadyReportedOversize) {
-				alreadyReportedOversize = true;
-				CrashReporterKt.getCrashReporter().recordException(
-						new RuntimeException("Dropped oversized packet to TUN: " + data.length + " bytes"));
-			}
+			reportOversize(data.length);
+			return;
+		}
+		write(PacketBuffer.wrap(data));
+	}
+
+	/** Queue a packet for the TUN. The writer owns the buffer from here on. */
+	public void write(@NonNull PacketBuffer packet) {
+		if (packet.length() > MAX_WRITE_PACKET_SIZE) {
+			reportOversize(packet.length());
+			release(packet);
 			return;
 		}
-		packetQueue.addLast(data);
+		try {
+			while (!packetQueue.offer(packet, ENQUEUE_WAIT_MS, TimeUnit.MILLISECONDS)) {
+				if (shutdown) {
+					release(packet);
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			release(packet);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void reportOversize(int length) {
+		Log.w(TAG, "Dropping oversized packet (" + length + " bytes)");
+		if (!alreadyReportedOversize) {
+			alreadyReportedOversize = true;
+			CrashReporterKt.getCrashReporter().recordException(
+					new RuntimeException("Dropped oversized packet to TUN: " + length + " bytes"));
+		}
 	}
 
 	public void shutdown() {
 		this.shutdown = true;
 	}
 
+	/** Number of times the writer thread woke up and wrote a batch of packets. */
+	public long getBatchCount() {
+		return batchCount;
+	}
+
+	/** Number of packets taken off the queue and written to the TUN. */
+	public long getWrittenPacketCount() {
+		return writtenPacketCount;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/** Number of packets waiting to be written right now. */
+	public int getQueueDepth() {
+		return packetQueue.size();
+	}
+
+	/** Largest number of packets found waiting when the writer thread woke up. */
+	public int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
 	@Override
 	public void run() {
+		final ArrayList<PacketBuffer> batch = new ArrayList<>(MAX_BATCH_SIZE);
 		while (!this.shutdown) {
 			try {
-				byte[] data = this.packetQueue.take();
-				try {
-					this.clientWriter.write(data);
-				} catch (IOException e) {
-					Log.e(TAG, "Error writing " + data.length + " bytes to the VPN");
-					e.printStackTrace();
+				batch.add(this.packetQueue.take());
+			} catch (InterruptedException e) {
+				continue;
+			}
+			int queueDepth = 1 + this.packetQueue.size();
+			this.packetQueue.drainTo(batch, MAX_BATCH_SIZE - 1);
+			recordBatch(batch.size(), queueDepth);
 
-					this.packetQueue.addFirst(data); // Put the data back, so it's resent
-					Thread.sleep(10); // Add an arbitrary tiny pause, in case that helps
-				}
-			} catch (InterruptedException e) { }
+			for (int i = 0; i < batch.size(); i++) {
+				PacketBuffer packet = batch.get(i);
+				writeToTun(packet);
+				release(packet);
+			}
+			batch.clear();
+		}
+	}
+
+	private void recordBatch(int batchSize, int queueDepth) {
+		batchCount++;
+		writtenPacketCount += batchSize;
+		if (batchSize > maxBatchSize) maxBatchSize = batchSize;
+		if (queueDepth > maxQueueDepth) maxQueueDepth = queueDepth;
+	}
+
+	private void writeToTun(PacketBuffer packet) {
+		while (true) {
+			try {
+				this.clientWriter.write(packet.array(), 0, packet.length());
+				return;
+			} catch (IOException e) {
+				Log.e(TAG, "Error writing " + packet.length() + " bytes to the VPN");
+				e.printStackTrace();
+
+				if (this.shutdown) return;
+				try {
+					Thread.sleep(10); // Add an arbitrary tiny pause, in case that helps, then resend
+				} catch (InterruptedException ignored) { }
+			}
 		}
 	}
 }
@@ -0,0 +1,127 @@
+package tech.httptoolkit.android.vpn;
+
+import androidx.annotation.NonNull;
+
+import tech.httptoolkit.android.vpn.transport.PacketView;
+import tech.httptoolkit.android.vpn.transport.ip.IPAddress;
+
+/**
+ * Identity of a session: protocol, source and destination address and port. Addresses are
+ * packed into longs (IPv4 in the low word) and the hash is computed once, so comparing keys
+ * never builds or hashes strings.
+ *
+ * Keys stored in the session table are never modified. {@link #set} exists for reusable probe
+ * keys, which lets SessionManager look a session up for every packet without allocating.
+ */
+public final class FlowKey {
+
+    // protocol ordinal, shifted left once, with the low bit set for IPv6
+    private int kind;
+    private long sourceHigh;
+    private long sourceLow;
+    private long destHigh;
+    private long destLow;
+    // source port in the high 16 bits, destination port in the low 16 bits
+    private int ports;
+    private int hash;
+
+    FlowKey() {
+    }
+
+    @NonNull
+    public static FlowKey of(SessionProtocol protocol, IPAddress destIp, int destPort, IPAddress sourceIp, int sourcePort) {
+        return new FlowKey().set(protocol, destIp, destPort, sourceIp, sourcePort);
+    }
+
+    /** The key of the flow a packet from the VPN client belongs to. */
+    @NonNull
+    public static FlowKey of(SessionProtocol protocol, PacketView packet) {
+        return new FlowKey().set(protocol, packet);
+    }
+
+    /** Overwrite this key in place; only for probe keys that are never stored. */
+    @NonNull
+    FlowKey set(SessionProtocol protocol, IPAddress destIp, int destPort, IPAddress sourceIp, int sourcePort) {
+        byte[] source = sourceIp.getBytes();
+        byte[] dest = destIp.getBytes();
+
+        kind = (protocol.ordinal() << 1) | (source.length == 16 ? 1 : 0);
+        sourceHigh = highWord(source);
+        sourceLow = lowWord(source);
+        destHigh = highWord(dest);
+        destLow = lowWord(dest);
+        ports = (sourcePort << 16) | (destPort & 0xFFFF);
+        hash = computeHash();
+        return this;
+    }
+
+    /**
+     * Overwrite this key in place with the tuple of a packet, read straight from its buffer.
+     * The packet's source is the session's source, as for packets from the VPN client.
+     * Like the other setter, only for probe keys that are never stored.
+     */
+    @NonNull
+    public FlowKey set(SessionProtocol protocol, PacketView packet) {
+        kind = (protocol.ordinal() << 1) | (packet.isIPv6() ? 1 : 0);
+        sourceHigh = packet.getSourceAddressHigh();
+        sourceLow = packet.getSourceAddressLow();
+        destHigh = packet.getDestinationAddressHigh();
+        destLow = packet.getDestinationAddressLow();
+        ports = (packet.getSourcePort() << 16) | (packet.getDestinationPort() & 0xFFFF);
+        hash = computeHash();
+        return this;
+    }
+
+    private static long highWord(byte[] address) {
+        return address.length == 16 ? readLong(address, 0) : 0;
+    }
+
+    private static long lowWord(byte[] address) {
+        if (address.length == 16) return readLong(address, 8);
+        return ((address[0] & 0xFFL) << 24)
+                | ((address[1] & 0xFFL) << 16)
+                | ((address[2] & 0xFFL) << 8)
+                | (address[3] & 0xFFL);
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFFL);
+        }
+        return value;
+    }
+
+    private int computeHash() {
+        long h = kind;
+        h = h * 31 + sourceHigh;
+        h = h * 31 + sourceLow;
+        h = h * 31 + destHigh;
+        h = h * 31 + destLow;
+        h = h * 31 + ports;
+        // Spread the port and low address bits, which vary most between sessions
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof FlowKey)) return false;
+        FlowKey other = (FlowKey) o;
+        return hash == other.hash
+                && kind == other.kind
+                && ports == other.ports
+                && sourceLow == other.sourceLow
+                && destLow == other.destLow
+                && sourceHigh == other.sourceHigh
+                && destHigh == other.destHigh;
+    }
+}
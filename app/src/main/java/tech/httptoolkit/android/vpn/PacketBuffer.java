@@ -0,0 +1,66 @@
+package tech.httptoolkit.android.vpn;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+import tech.httptoolkit.android.vpn.socket.DataConst;
+
+/**
+ * A packet on its way to the TUN interface: a byte array, of which the first {@link #length()}
+ * bytes are the packet. Buffers from {@link ClientPacketWriter#obtainBuffer()} are MTU-sized and
+ * go back to the writer's pool once written, so the packet factories can encode into them
+ * instead of allocating an array per packet.
+ */
+public final class PacketBuffer {
+
+    public static final int POOLED_CAPACITY = DataConst.MTU;
+
+    private final byte[] array;
+    private final boolean pooled;
+    private int length;
+
+    PacketBuffer(@NonNull byte[] array, boolean pooled) {
+        this.array = array;
+        this.pooled = pooled;
+    }
+
+    /** Wrap an existing packet, which is never returned to a pool. */
+    @NonNull
+    public static PacketBuffer wrap(@NonNull byte[] packet) {
+        PacketBuffer buffer = new PacketBuffer(packet, false);
+        buffer.length = packet.length;
+        return buffer;
+    }
+
+    @NonNull
+    public byte[] array() {
+        return array;
+    }
+
+    public int capacity() {
+        return array.length;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public void setLength(int length) {
+        if (length < 0 || length > array.length) {
+            throw new IllegalArgumentException("Packet length " + length + " doesn't fit a "
+                    + array.length + " byte buffer");
+        }
+        this.length = length;
+    }
+
+    boolean isPooled() {
+        return pooled;
+    }
+
+    /** A copy of the packet bytes. */
+    @NonNull
+    public byte[] toByteArray() {
+        return Arrays.copyOf(array, length);
+    }
+}
@@ -0,0 +1,142 @@
+package tech.httptoolkit.android.vpn;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Upstream data of a TCP session waiting to be sent to the VPN client, in a ring buffer.
+ *
+ * Data is appended at the tail, or read into it straight from the upstream socket, and consumed
+ * from the head without shifting what's left, so draining the buffer one segment at a time
+ * copies every byte once. Segments are encoded straight from {@link #array()}, a run of
+ * {@link #contiguousSize()} bytes at {@link #readOffset()}, and then {@link #consume consumed}.
+ *
+ * The ring grows by doubling when a write doesn't fit; the reader's backpressure keeps it
+ * bounded. Not thread safe: sessions only use it under their monitor.
+ */
+public final class ReceiveBuffer {
+
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+
+    // Capacity is zero or a power of two, so positions wrap with a mask
+    private byte[] ring = EMPTY;
+    // Reused to read from a channel into the ring, replaced whenever the ring is
+    private ByteBuffer ringView;
+    private int head = 0;
+    private int size = 0;
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int capacity() {
+        return ring.length;
+    }
+
+    public void write(@NonNull byte[] data, int offset, int length) {
+        if (length <= 0) return;
+        ensureCapacity(size + length);
+
+        int tail = (head + size) & (ring.length - 1);
+        int first = Math.min(length, ring.length - tail);
+        System.arraycopy(data, offset, ring, tail, first);
+        System.arraycopy(data, offset + first, ring, 0, length - first);
+        size += length;
+    }
+
+    /**
+     * Read from channel straight into the free space after the tail, taking at most
+     * {@link #readSpan readSpan(maxBytes)}. Stops where the ring wraps, so it may read less than
+     * the channel has; call it again for the rest. Returns what channel.read returned.
+     */
+    public int readFrom(@NonNull ReadableByteChannel channel, int maxBytes) throws IOException {
+        int span = readSpan(maxBytes);
+        if (span <= 0) return 0;
+        ensureCapacity(size + span);
+        if (ringView == null) ringView = ByteBuffer.wrap(ring);
+
+        int tail = (head + size) & (ring.length - 1);
+        ringView.limit(tail + span).position(tail);
+
+        int read = channel.read(ringView);
+        if (read > 0) size += read;
+        return read;
+    }
+
+    /**
+     * Most that {@link #readFrom readFrom(channel, maxBytes)} will read in one go: maxBytes,
+     * unless the free space after the tail ends at the wrap first. Reading less than this means
+     * the channel had no more.
+     */
+    public int readSpan(int maxBytes) {
+        if (maxBytes <= 0) return 0;
+        // Too big for the ring: it grows, unwrapping everything to its front
+        if (size + maxBytes > ring.length) return maxBytes;
+
+        int tail = (head + size) & (ring.length - 1);
+        int contiguousFree = tail < head ? head - tail : ring.length - tail;
+        return Math.min(maxBytes, contiguousFree);
+    }
+
+    /** The ring itself. Only valid until the next write, which may replace it. */
+    @NonNull
+    public byte[] array() {
+        return ring;
+    }
+
+    /** Position of the first unread byte in {@link #array()}. */
+    public int readOffset() {
+        return head;
+    }
+
+    /** Number of unread bytes from {@link #readOffset()} before the ring wraps around. */
+    public int contiguousSize() {
+        return Math.min(size, ring.length - head);
+    }
+
+    /** Drop the first length unread bytes, once they've been sent. */
+    public void consume(int length) {
+        if (length < 0 || length > size) {
+            throw new IllegalArgumentException("Can't consume " + length + " of " + size + " bytes");
+        }
+        size -= length;
+        // Restarting at the front of the ring keeps the next segments contiguous
+        head = size == 0 ? 0 : (head + length) & (ring.length - 1);
+    }
+
+    /** Copy up to length unread bytes into data and consume them, returning how many there were. */
+    public int read(@NonNull byte[] data, int offset, int length) {
+        int count = Math.min(length, size);
+        int first = Math.min(count, ring.length - head);
+        System.arraycopy(ring, head, data, offset, first);
+        System.arraycopy(ring, 0, data, offset + first, count - first);
+        consume(count);
+        return count;
+    }
+
+    private void ensureCapacity(int required) {
+        if (required <= ring.length) return;
+
+        int capacity = Math.max(ring.length, INITIAL_CAPACITY);
+        while (capacity < required) {
+            capacity <<= 1;
+        }
+
+        // Unwrapped into the new ring, starting at its front
+        byte[] grown = new byte[capacity];
+        int first = contiguousSize();
+        System.arraycopy(ring, head, grown, 0, first);
+        System.arraycopy(ring, 0, grown, first, size - first);
+        ring = grown;
+        ringView = null;
+        head = 0;
+    }
+}
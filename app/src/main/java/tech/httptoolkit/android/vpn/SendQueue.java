@@ -0,0 +1,93 @@
+package tech.httptoolkit.android.vpn;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Data from the VPN client waiting to be written to the upstream TCP socket, as a queue of
+ * payload slices.
+ *
+ * Each payload is copied once, out of the reused TUN read buffer, when it's queued. Slices are
+ * written with one gathering write, and a slice the socket only partly took stays at the head
+ * of the queue with its position moved on, so unwritten data is never copied again.
+ *
+ * Not thread safe: sessions only use it under their monitor.
+ */
+public final class SendQueue {
+
+    // Slices passed to one gathering write, which is also about what the kernel takes in one go
+    private static final int MAX_GATHER = 64;
+
+    private final ArrayDeque<ByteBuffer> slices = new ArrayDeque<>();
+    private ByteBuffer[] gather;
+    private long size = 0;
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Queue a copy of length bytes of data. */
+    public void add(@NonNull byte[] data, int offset, int length) {
+        if (length <= 0) return;
+        slices.addLast(ByteBuffer.wrap(Arrays.copyOfRange(data, offset, offset + length)));
+        size += length;
+    }
+
+    /**
+     * Write as much queued data as the channel accepts without blocking, and drop it from the
+     * queue. Returns the number of bytes written.
+     */
+    public long writeTo(@NonNull GatheringByteChannel channel) throws IOException {
+        if (gather == null) gather = new ByteBuffer[MAX_GATHER];
+
+        long totalWritten = 0;
+        while (!slices.isEmpty()) {
+            int count = 0;
+            for (ByteBuffer slice : slices) {
+                gather[count++] = slice;
+                if (count == MAX_GATHER) break;
+            }
+
+            long written;
+            try {
+                written = channel.write(gather, 0, count);
+            } finally {
+                Arrays.fill(gather, 0, count, null);
+            }
+
+            while (!slices.isEmpty() && !slices.peekFirst().hasRemaining()) {
+                slices.pollFirst();
+            }
+            size -= written;
+            totalWritten += written;
+
+            // The socket's send buffer is full
+            if (written == 0) break;
+        }
+        return totalWritten;
+    }
+
+    /** Take all queued data out as one array. */
+    @NonNull
+    public byte[] drain() {
+        byte[] data = new byte[(int) size];
+        int offset = 0;
+        for (ByteBuffer slice : slices) {
+            int length = slice.remaining();
+            slice.get(data, offset, length);
+            offset += length;
+        }
+        slices.clear();
+        size = 0;
+        return data;
+    }
+}
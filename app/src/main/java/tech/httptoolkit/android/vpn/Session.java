@@ -16,23 +16,21 @@
 
 package tech.httptoolkit.android.vpn;
 
-import android.util.Log;
-
 import org.distrinet.lanshield.database.model.LANFlow;
 
 import kotlinx.coroutines.sync.Mutex;
 import tech.httptoolkit.android.vpn.transport.ip.IPAddress;
 import tech.httptoolkit.android.vpn.transport.ip.IPHeader;
+import tech.httptoolkit.android.vpn.socket.DataConst;
 import tech.httptoolkit.android.vpn.socket.ICloseSession;
 import tech.httptoolkit.android.vpn.transport.tcp.TCPHeader;
 import tech.httptoolkit.android.vpn.transport.udp.UDPHeader;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.spi.AbstractSelectableChannel;
 import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * store information about a socket connection from a VPN client.
@@ -54,6 +52,9 @@ public class Session {
 	
 	private final IPAddress sourceIp;
 	private final int sourcePort;
+
+	//key of this session in the SessionManager table
+	private final FlowKey flowKey;
 	
 	//sequence received from client
 	private long recSequence = 0;
@@ -71,11 +72,11 @@ public class Session {
 	//indicate that 3-way handshake has been completed or not
 	private boolean isConnected = false;
 	
-	//receiving buffer for storing data from remote host
-	private final ByteArrayOutputStream receivingStream;
+	//receiving buffer for storing data from remote host, until the client window lets it through
+	private final ReceiveBuffer receiveBuffer = new ReceiveBuffer();
 	
-	//sending buffer for storing data from vpn client to be send to destination host (TCP only)
-	private final ByteArrayOutputStream sendingStream;
+	//payloads from vpn client waiting to be sent to destination host (TCP only)
+	private final SendQueue sendQueue = new SendQueue();
 
 	//queue of discrete datagrams to be sent to the destination host (UDP only). UDP must
 	//preserve datagram boundaries, so unlike TCP it cannot use a flat byte stream.
@@ -97,6 +98,8 @@ public class Session {
 	//client-direction TCP flow control (download path)
 	private long clientWindow = 0;          // advertised receive window, scaled to bytes
 	private int clientWindowScale = 0;       // window scale from the client SYN (RFC 7323)
+	private int receiveWindowScale = 0;      // window scale we offered in the SYN-ACK, if the client takes it
+	private long advertisedWindow = 0;       // receive window we last advertised to the client, in bytes
 	private boolean upstreamEof = false;     // upstream hit EOF; FIN deferred until staging drains
 
 	//in ACK packet from client, if the previous packet was corrupted, client will send flag in options field
@@ -118,6 +121,27 @@ public class Session {
 	
 	public long connectionStartTime = 0;
 
+	//guards dpiFlowHandle instead of the session monitor, which the packet path holds: a DPI
+	//worker feeding the native flow must not stall forwarding
+	private final Object dpiLock = new Object();
+	//native nDPI flow state for this session (0 when none), see VPNRunnable.doSessionDpi
+	private long dpiFlowHandle = 0;
+	//DPI has produced a result for this session, so further packets are not inspected
+	private volatile boolean dpiComplete = false;
+
+	//tick of the last activity on this session, see SessionExpiry
+	private volatile long lastActiveTick = 0;
+	//filed in the SessionExpiry wheel (NIO thread only)
+	private boolean expiryTracked = false;
+
+	//selector commands queued for this session's NIO thread but not yet applied, see SelectorShard
+	private final AtomicInteger pendingCommands = new AtomicInteger();
+
+	//System.nanoTime() by which client data held back for coalescing must be written, or 0
+	private long writeFlushDeadline = 0;
+	//on its NIO shard's list of sessions waiting for a flush deadline (NIO thread only)
+	private boolean flushScheduled = false;
+
 	private final ICloseSession sessionCloser;
 
 	Session(
@@ -128,14 +152,13 @@ public class Session {
 		int destinationPort,
 		ICloseSession sessionCloser
 	) {
-		receivingStream = new ByteArrayOutputStream();
-		sendingStream = new ByteArrayOutputStream();
 
 		this.protocol = protocol;
 		this.sourceIp = sourceIp;
 		this.sourcePort = sourcePort;
 		this.destIp = destinationIp;
 		this.destPort = destinationPort;
+		this.flowKey = FlowKey.of(protocol, destinationIp, destinationPort, sourceIp, sourcePort);
 
 		this.sessionCloser = sessionCloser;
 	}
@@ -145,46 +168,67 @@ public class Session {
 	 * @param data Data
 	 */
 	public synchronized void addReceivedData(byte[] data){
-		try {
-			receivingStream.write(data);
-		} catch (IOException e) {
-			Log.e(TAG, e.toString());
-		}
+		receiveBuffer.write(data, 0, data.length);
+	}
+
+	public synchronized void addReceivedData(byte[] data, int offset, int length){
+		receiveBuffer.write(data, offset, length);
 	}
 
 	/**
-	 * get all data received in the buffer and empty it.
+	 * take up to maxSize bytes of received data out of the buffer.
 	 * @return byte[]
 	 */
 	public synchronized byte[] getReceivedData(int maxSize){
-		byte[] data = receivingStream.toByteArray();
-		receivingStream.reset();
-		if(data.length > maxSize){
-			byte[] small = new byte[maxSize];
-			System.arraycopy(data, 0, small, 0, maxSize);
-			int len = data.length - maxSize;
-			receivingStream.write(data, maxSize, len);
-			data = small;
-		}
+		byte[] data = new byte[Math.min(maxSize, receiveBuffer.size())];
+		receiveBuffer.read(data, 0, data.length);
 		return data;
 	}
 
+	/**
+	 * the received data itself, for sending it without copying it out first. Only to be used
+	 * while holding this session's monitor.
+	 */
+	public ReceiveBuffer getReceiveBuffer(){
+		return receiveBuffer;
+	}
+
 	/**
 	 * buffer has more data for vpn client
 	 * @return boolean
 	 */
 	public synchronized boolean hasReceivedData(){
-		return receivingStream.size() > 0;
+		return !receiveBuffer.isEmpty();
 	}
 
 	public synchronized int receivingStreamSize(){
-		return receivingStream.size();
+		return receiveBuffer.size();
 	}
 
 	public synchronized long getClientWindow(){ return clientWindow; }
 	public synchronized void setClientWindow(long clientWindow){ this.clientWindow = clientWindow; }
 	public synchronized int getClientWindowScale(){ return clientWindowScale; }
 	public synchronized void setClientWindowScale(int clientWindowScale){ this.clientWindowScale = clientWindowScale; }
+	public synchronized int getReceiveWindowScale(){ return receiveWindowScale; }
+	public synchronized void setReceiveWindowScale(int receiveWindowScale){ this.receiveWindowScale = receiveWindowScale; }
+	public synchronized long getAdvertisedWindow(){ return advertisedWindow; }
+
+	/**
+	 * Room left for client data in this session's send buffer, in bytes: the receive window.
+	 * Its right edge (recSequence + window) never moves left, as data only takes up the room it
+	 * was given.
+	 */
+	public synchronized long getReceiveWindow(){
+		long room = DataConst.MAX_SEND_BUFFER_SIZE - sendQueue.size();
+		return Math.max(0, Math.min(room, 0xFFFFL << receiveWindowScale));
+	}
+
+	/** The receive window as the 16-bit window field of a packet to the client, noted as advertised. */
+	public synchronized int advertiseReceiveWindow(){
+		int field = (int) (getReceiveWindow() >> receiveWindowScale);
+		advertisedWindow = (long) field << receiveWindowScale;
+		return field;
+	}
 
 	public synchronized boolean isUpstreamEof(){ return upstreamEof; }
 	public synchronized void setUpstreamEof(boolean upstreamEof){ this.upstreamEof = upstreamEof; }
@@ -203,13 +247,16 @@ public class Session {
 			System.arraycopy(data.array(), data.position(), datagram, 0, remaining);
 			sendingDatagrams.addLast(datagram);
 		} else {
-			sendingStream.write(data.array(), data.position(), remaining);
+			// Beyond the advertised window: only take what fits, and the client resends the rest
+			int accepted = (int) Math.min(remaining, getReceiveWindow());
+			sendQueue.add(data.array(), data.arrayOffset() + data.position(), accepted);
+			return accepted;
 		}
 		return remaining;
 	}
 
 	int getSendingDataSize(){
-		return sendingStream.size();
+		return (int) sendQueue.size();
 	}
 
 	/**
@@ -217,9 +264,15 @@ public class Session {
 	 * @return byte[]
 	 */
 	public synchronized byte[] getSendingData(){
-		byte[] data = sendingStream.toByteArray();
-		sendingStream.reset();
-		return data;
+		return sendQueue.drain();
+	}
+
+	/**
+	 * the queued stream data itself, for writing it to the server without copying it out first.
+	 * Only to be used while holding this session's monitor.
+	 */
+	public SendQueue getSendQueue(){
+		return sendQueue;
 	}
 
 	/**
@@ -244,7 +297,7 @@ public class Session {
 	public synchronized boolean hasDataToSend(){
 		return protocol == SessionProtocol.UDP
 				? !sendingDatagrams.isEmpty()
-				: sendingStream.size() > 0;
+				: !sendQueue.isEmpty();
 	}
 
 	public SessionProtocol getProtocol() {
@@ -392,6 +445,7 @@ public class Session {
 	}
 
 	public void cancelKey() {
+		if (this.selectionkey == null) return; // Not registered yet
 		synchronized (this.selectionkey) {
 			if (!this.selectionkey.isValid()) return;
 			this.selectionkey.cancel();
@@ -399,6 +453,7 @@ public class Session {
 	}
 
 	public void subscribeKey(int OP) {
+		if (this.selectionkey == null) return;
 		synchronized (this.selectionkey) {
 			if (!this.selectionkey.isValid()) return;
 			this.selectionkey.interestOps(this.selectionkey.interestOps() | OP);
@@ -406,6 +461,7 @@ public class Session {
 	}
 
 	public void unsubscribeKey(int OP) {
+		if (this.selectionkey == null) return;
 		synchronized (this.selectionkey) {
 			if (!this.selectionkey.isValid()) return;
 			this.selectionkey.interestOps(this.selectionkey.interestOps() & ~OP);
@@ -416,6 +472,10 @@ public class Session {
 		this.sessionCloser.closeSession(this);
 	}
 
+	public FlowKey getFlowKey() {
+		return flowKey;
+	}
+
 	public String getSessionKey() {
 		return Session.getSessionKey(this.protocol, this.destIp, this.destPort, this.sourceIp, this.sourcePort);
 	}
@@ -431,6 +491,67 @@ public class Session {
 		return "Session (" + this.getSessionKey() + ")";
 	}
 
+	/** Lock to hold while using the DPI flow handle, never the session monitor. */
+	public Object getDpiLock() {
+		return dpiLock;
+	}
+	/** Only valid while holding {@link #getDpiLock()}. */
+	public long getDpiFlowHandle() {
+		return dpiFlowHandle;
+	}
+	/** Only valid while holding {@link #getDpiLock()}. */
+	public void setDpiFlowHandle(long dpiFlowHandle) {
+		this.dpiFlowHandle = dpiFlowHandle;
+	}
+	public boolean isDpiComplete() {
+		return dpiComplete;
+	}
+	public void setDpiComplete(boolean dpiComplete) {
+		this.dpiComplete = dpiComplete;
+	}
+
+	long getLastActiveTick() {
+		return lastActiveTick;
+	}
+	void setLastActiveTick(long lastActiveTick) {
+		this.lastActiveTick = lastActiveTick;
+	}
+	boolean isExpiryTracked() {
+		return expiryTracked;
+	}
+	void setExpiryTracked(boolean expiryTracked) {
+		this.expiryTracked = expiryTracked;
+	}
+
+	public synchronized long getWriteFlushDeadline() {
+		return writeFlushDeadline;
+	}
+	public synchronized void setWriteFlushDeadline(long writeFlushDeadline) {
+		this.writeFlushDeadline = writeFlushDeadline;
+	}
+	public boolean isFlushScheduled() {
+		return flushScheduled;
+	}
+	public void setFlushScheduled(boolean flushScheduled) {
+		this.flushScheduled = flushScheduled;
+	}
+
+	/**
+	 * Add selector commands for the NIO thread. Returns the commands that were already pending:
+	 * when there were none, the caller must queue the session so they get applied.
+	 */
+	public int addPendingCommands(int commands) {
+		while (true) {
+			int pending = pendingCommands.get();
+			if ((pending | commands) == pending) return pending;
+			if (pendingCommands.compareAndSet(pending, pending | commands)) return pending;
+		}
+	}
+	/** Take every pending selector command, to apply them. */
+	public int takePendingCommands() {
+		return pendingCommands.getAndSet(0);
+	}
+
 	public LANFlow getFlow() {
 		return LANFlow;
 	}
@@ -0,0 +1,174 @@
+package tech.httptoolkit.android.vpn;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Finds sessions that have been idle for longer than their protocol's timeout, using a hashed
+ * timer wheel with one slot per second.
+ *
+ * Activity only stamps the session with the wheel's current tick ({@link #touch}), so it never
+ * moves the session between slots. When the NIO thread reaches a session's slot in
+ * {@link #advance}, it either reaps the session or files it again under its new deadline.
+ * Deadlines further away than the wheel is long are filed in the last slot and re-checked there,
+ * which stands in for the coarser levels of a hierarchical wheel.
+ *
+ * {@link #track} and {@link #touch} may be called from any thread; everything else belongs to
+ * the NIO thread.
+ */
+public class SessionExpiry {
+
+    public static final long TICK_MS = 1000;
+    private static final int WHEEL_SLOTS = 512; // a power of two, 8.5 minutes of one-second ticks
+
+    public static final long DEFAULT_DNS_TIMEOUT_MS = 15_000;
+    public static final long DEFAULT_UDP_TIMEOUT_MS = 60_000;
+    public static final long DEFAULT_TCP_CONNECTING_TIMEOUT_MS = 60_000;
+    public static final long DEFAULT_TCP_HALF_CLOSED_TIMEOUT_MS = 60_000;
+    public static final long DEFAULT_TCP_ESTABLISHED_TIMEOUT_MS = 60 * 60_000;
+
+    private final long dnsTimeoutTicks;
+    private final long udpTimeoutTicks;
+    private final long tcpConnectingTimeoutTicks;
+    private final long tcpHalfClosedTimeoutTicks;
+    private final long tcpEstablishedTimeoutTicks;
+
+    @SuppressWarnings("unchecked")
+    private final ArrayList<Session>[] slots = new ArrayList[WHEEL_SLOTS];
+    private ArrayList<Session> spareSlot = new ArrayList<>();
+    private final ConcurrentLinkedQueue<Session> newSessions = new ConcurrentLinkedQueue<>();
+
+    private volatile long currentTick;
+    private long processedTick;
+    private int trackedCount = 0;
+    private volatile long reapedCount = 0;
+
+    public SessionExpiry(long nowMs) {
+        this(nowMs, DEFAULT_DNS_TIMEOUT_MS, DEFAULT_UDP_TIMEOUT_MS, DEFAULT_TCP_CONNECTING_TIMEOUT_MS,
+                DEFAULT_TCP_HALF_CLOSED_TIMEOUT_MS, DEFAULT_TCP_ESTABLISHED_TIMEOUT_MS);
+    }
+
+    public SessionExpiry(long nowMs, long dnsTimeoutMs, long udpTimeoutMs, long tcpConnectingTimeoutMs,
+                         long tcpHalfClosedTimeoutMs, long tcpEstablishedTimeoutMs) {
+        this.dnsTimeoutTicks = toTicks(dnsTimeoutMs);
+        this.udpTimeoutTicks = toTicks(udpTimeoutMs);
+        this.tcpConnectingTimeoutTicks = toTicks(tcpConnectingTimeoutMs);
+        this.tcpHalfClosedTimeoutTicks = toTicks(tcpHalfClosedTimeoutMs);
+        this.tcpEstablishedTimeoutTicks = toTicks(tcpEstablishedTimeoutMs);
+        for (int i = 0; i < WHEEL_SLOTS; i++) {
+            slots[i] = new ArrayList<>();
+        }
+        currentTick = nowMs / TICK_MS;
+        processedTick = currentTick;
+    }
+
+    private static long toTicks(long ms) {
+        return Math.max(1, (ms + TICK_MS - 1) / TICK_MS);
+    }
+
+    /** Start watching a new session, as active now. */
+    public void track(@NonNull Session session, long nowMs) {
+        session.setLastActiveTick(nowMs / TICK_MS);
+        newSessions.add(session);
+    }
+
+    /** Note activity on a session. Only a volatile read and write. */
+    public void touch(@NonNull Session session) {
+        session.setLastActiveTick(currentTick);
+    }
+
+    /** Whether any session is being watched, i.e. whether the NIO thread needs to keep ticking. */
+    public boolean isEmpty() {
+        return trackedCount == 0 && newSessions.isEmpty();
+    }
+
+    /** Total number of sessions closed because they were idle for too long. */
+    public long getReapedCount() {
+        return reapedCount;
+    }
+
+    /**
+     * Move the wheel forward to nowMs, handing every session that has been idle for longer than
+     * its timeout to reap. Sessions for which isLive fails were closed elsewhere and are
+     * forgotten. Returns the number of sessions reaped.
+     */
+    public int advance(long nowMs, @NonNull Predicate<Session> isLive, @NonNull Consumer<Session> reap) {
+        long nowTick = nowMs / TICK_MS;
+        if (nowTick <= processedTick && newSessions.isEmpty()) return 0;
+
+        currentTick = Math.max(currentTick, nowTick);
+        int reaped = 0;
+
+        Session session;
+        while ((session = newSessions.poll()) != null) {
+            // A session put back into the session table is tracked again, but only filed once
+            if (session.isExpiryTracked()) continue;
+            session.setExpiryTracked(true);
+            trackedCount++;
+            // Filed from the last processed tick, so one that is already due is reaped below
+            file(session, session.getLastActiveTick() + timeoutTicks(session), processedTick);
+        }
+
+        // After a long select() every slot is due, and visiting each once is enough
+        long fromTick = Math.max(processedTick + 1, nowTick - WHEEL_SLOTS + 1);
+        for (long tick = fromTick; tick <= nowTick; tick++) {
+            int index = (int) (tick & (WHEEL_SLOTS - 1));
+            if (slots[index].isEmpty()) continue;
+
+            // Swapped out, so sessions filed again while iterating land in a fresh list
+            ArrayList<Session> due = slots[index];
+            slots[index] = spareSlot;
+            for (int i = 0; i < due.size(); i++) {
+                session = due.get(i);
+                if (!isLive.test(session)) {
+                    untrack(session);
+                    continue;
+                }
+
+                long deadline = session.getLastActiveTick() + timeoutTicks(session);
+                if (deadline <= nowTick) {
+                    untrack(session);
+                    reap.accept(session);
+                    reaped++;
+                } else {
+                    file(session, deadline, nowTick);
+                }
+            }
+            due.clear();
+            spareSlot = due;
+        }
+        processedTick = Math.max(processedTick, nowTick);
+
+        if (reaped > 0) reapedCount += reaped;
+        return reaped;
+    }
+
+    private void untrack(Session session) {
+        session.setExpiryTracked(false);
+        trackedCount--;
+    }
+
+    private void file(Session session, long deadline, long nowTick) {
+        long slotTick = Math.min(Math.max(deadline, nowTick + 1), nowTick + WHEEL_SLOTS - 1);
+        slots[(int) (slotTick & (WHEEL_SLOTS - 1))].add(session);
+    }
+
+    private long timeoutTicks(Session session) {
+        if (session.getProtocol() == SessionProtocol.UDP) {
+            int port = session.getDestPort();
+            return port == 53 || port == 5353 ? dnsTimeoutTicks : udpTimeoutTicks;
+        }
+
+        if (!session.isConnected()) return tcpConnectingTimeoutTicks;
+        boolean halfClosed;
+        synchronized (session) {
+            halfClosed = session.isClosingConnection() || session.isUpstreamEof()
+                    || session.isAbortingConnection();
+        }
+        return halfClosed ? tcpHalfClosedTimeoutTicks : tcpEstablishedTimeoutTicks;
+    }
+}
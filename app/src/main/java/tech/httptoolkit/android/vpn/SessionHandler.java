@@ -21,7 +21,6 @@ import static kotlinx.coroutines.CoroutineScopeKt.CoroutineScope;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -30,11 +29,12 @@ import java.util.concurrent.TimeUnit;
 import tech.httptoolkit.android.vpn.transport.ip.IPAddress;
 import tech.httptoolkit.android.vpn.transport.ip.IPPacketFactory;
 import tech.httptoolkit.android.vpn.transport.ip.IPHeader;
+import tech.httptoolkit.android.vpn.socket.DataConst;
 import tech.httptoolkit.android.vpn.socket.SocketNIODataService;
 import tech.httptoolkit.android.vpn.transport.PacketHeaderException;
+import tech.httptoolkit.android.vpn.transport.PacketView;
 import tech.httptoolkit.android.vpn.transport.icmp.ICMPPacket;
 import tech.httptoolkit.android.vpn.transport.icmp.ICMPPacketFactory;
-import tech.httptoolkit.android.vpn.transport.ip.IPProtocol;
 import tech.httptoolkit.android.vpn.transport.tcp.TCPHeader;
 import tech.httptoolkit.android.vpn.transport.tcp.TCPPacketFactory;
 import tech.httptoolkit.android.vpn.transport.udp.UDPHeader;
@@ -44,10 +44,7 @@ import tech.httptoolkit.android.vpn.util.PacketUtil;
 import androidx.annotation.NonNull;
 import android.util.Log;
 
-import org.distrinet.lanshield.database.AppDatabase;
 import org.distrinet.lanshield.database.model.LANFlow;
-import org.distrinet.lanshield.vpnservice.DpiResult;
-import org.distrinet.lanshield.vpnservice.VPNRunnable;
 
 import tech.httptoolkit.android.TagKt;
 
@@ -65,14 +62,25 @@ public class SessionHandler {
 
 	private final ExecutorService pingThreadpool;
 
-	private final AppDatabase appDatabase;
+	// TCP flags of an ACK that only acknowledges, see handlePureAck
+	private static final int TCP_FLAGS_ACK_ONLY = 0x10;
 
+	/** Client data queued for a session that's written upstream straight away, PSH or not. */
+	public static final int DEFAULT_WRITE_COALESCE_BYTES = 16 * 1024;
+	/** Longest that less client data than that waits for more before it's written anyway. */
+	public static final int DEFAULT_WRITE_COALESCE_DELAY_MS = 2;
 
-	public SessionHandler(SessionManager manager, SocketNIODataService nioService, ClientPacketWriter writer, AppDatabase appDatabase) {
+	private volatile int writeCoalesceBytes = DEFAULT_WRITE_COALESCE_BYTES;
+	private volatile int writeCoalesceDelayMs = DEFAULT_WRITE_COALESCE_DELAY_MS;
+
+	private volatile long fastPathAcks = 0;
+	private volatile long coalescedWrites = 0;
+
+
+	public SessionHandler(SessionManager manager, SocketNIODataService nioService, ClientPacketWriter writer) {
 		this.manager = manager;
 		this.nioService = nioService;
 		this.writer = writer;
-		this.appDatabase = appDatabase;
 
 		// Pool of threads to synchronously proxy ICMP ping requests in the background. We need to
 		// carefully limit these, or a ping flood can cause us big big problems.
@@ -84,6 +92,22 @@ public class SessionHandler {
 		);
 	}
 
+	/**
+	 * Set how client TCP data without PSH is forwarded upstream. Once a session holds at least
+	 * thresholdBytes it's written as soon as the socket is writable; less than that is written
+	 * after delayMs, unless more data or a PSH pushes it out first. A delay of 0 writes every
+	 * segment straight away, and a negative delay holds data back until the next PSH.
+	 */
+	public void setWriteCoalescing(int thresholdBytes, int delayMs) {
+		this.writeCoalesceBytes = thresholdBytes;
+		this.writeCoalesceDelayMs = delayMs;
+	}
+
+	/** Number of times client data was held back to be written by the coalescing timer. */
+	public long getCoalescedWrites() {
+		return coalescedWrites;
+	}
+
 	/**
 	 * Handle unknown raw IP packet data
 	 *
@@ -91,43 +115,111 @@ public class SessionHandler {
 	 */
 	public void handlePacket(@NonNull ByteBuffer stream, String packageName) throws PacketHeaderException, IOException {
 		stream.rewind();
-		final IPHeader ipHeader = IPPacketFactory.createIPHeader(stream);
-
-		if (ipHeader.getProtocol() == IPProtocol.TCP) {
-			handleTCPPacket(stream, ipHeader, packageName);
-		} else if (ipHeader.getProtocol() == IPProtocol.UDP) {
-			handleUDPPacket(stream, ipHeader, packageName);
-		} else if (ipHeader.getProtocol() == IPProtocol.ICMP) {
-			handleICMPPacket(stream, ipHeader);
+		PacketView packet = new PacketView();
+		packet.wrap(stream);
+		handlePacket(stream, packet, packageName);
+	}
+
+	/**
+	 * Handle raw IP packet data that has already been wrapped in a view, so the headers
+	 * checked by the caller aren't parsed a second time.
+	 *
+	 * @param stream ByteBuffer to be read, positioned at the start of the packet
+	 * @param packet view over the same packet
+	 */
+	public void handlePacket(@NonNull ByteBuffer stream, @NonNull PacketView packet, String packageName) throws PacketHeaderException, IOException {
+		if (packet.isUdp()) {
+			handleUDPPacket(stream, packet, packageName);
+		} else if (packet.isTcp()) {
+			if (!handlePureAck(packet)) {
+				handleTCPPacket(stream, IPPacketFactory.createIPHeader(stream), packet, packageName);
+			}
+		} else if (packet.isIcmp()) {
+			handleICMPPacket(stream, IPPacketFactory.createIPHeader(stream));
 		} else {
-			Log.w(TAG, "Unsupported IP protocol: " + ipHeader.getProtocol());
+			Log.w(TAG, "Unsupported IP protocol: " + packet.getProtocol());
 		}
 	}
 
-	private void handleUDPPacket(ByteBuffer clientPacketData, IPHeader ipHeader, String packageName) throws PacketHeaderException, IOException {
-		UDPHeader udpheader = UDPPacketFactory.createUDPHeader(clientPacketData);
+	/** Number of ACKs handled by {@link #handlePureAck}, without the full TCP path. */
+	public long getFastPathAcks() {
+		return fastPathAcks;
+	}
 
-		Session session = manager.getSession(
-			SessionProtocol.UDP,
-			ipHeader.getDestinationIP(),
-			udpheader.getDestinationPort(),
-			ipHeader.getSourceIP(),
-			udpheader.getSourcePort()
-		);
+	/**
+	 * Handle an ACK without payload straight from the packet view, allocating nothing: a client
+	 * sends one for every other segment of a download. Only a window that the ACK actually opened,
+	 * with staged data waiting for it, queues a pump on the NIO thread.
+	 *
+	 * Returns false, without changing anything, for packets the full path must see: other flags,
+	 * options other than timestamps and SACK blocks, and sessions that are still being set up or
+	 * are closing.
+	 */
+	private boolean handlePureAck(PacketView packet) {
+		if (packet.getTcpFlags() != TCP_FLAGS_ACK_ONLY) return false;
+		if (packet.getBuffer().limit() - packet.getStart() > packet.getPayloadOffset()) return false;
+		long timestampSender = packet.getTcpTimestampSender();
+		if (timestampSender < 0) return false;
+
+		Session session = manager.getSession(SessionProtocol.TCP, packet);
+		if (session == null) return false;
+
+		synchronized (session) {
+			if (session.getLastTcpHeader() == null || session.isClosingConnection()
+					|| session.isAckedToFin() || session.isAbortingConnection()) {
+				return false;
+			}
+
+			long roomBefore = clientWindowRoom(session);
+			session.setClientWindow((long) packet.getTcpWindowSize() << session.getClientWindowScale());
+			session.setPacketCorrupted(false);
+			updateAck(session, packet.getTcpAckNumber(), packet.getTcpSequenceNumber(), (int) timestampSender);
+
+			manager.keepSessionAlive(session);
+			long room = clientWindowRoom(session);
+			if (room > 0 && room > roomBefore && !session.getReceiveBuffer().isEmpty()) {
+				nioService.pumpToClient(session);
+			}
+		}
+		fastPathAcks++;
+		return true;
+	}
+
+	/** Bytes the client's window has room for, beyond what's already in flight. */
+	private static long clientWindowRoom(Session session) {
+		long inFlight = (session.getSendNext() - session.getSendUnack()) & 0xFFFFFFFFL;
+		return session.getClientWindow() - inFlight;
+	}
+
+	private void handleUDPPacket(ByteBuffer clientPacketData, PacketView packet, String packageName) throws PacketHeaderException, IOException {
+		Session session = manager.getSession(SessionProtocol.UDP, packet);
 
 		boolean newSession = session == null;
 
 		if (session == null) {
+			// Only a new session decodes the headers, which it keeps as templates for replies.
+			// Every later datagram of the flow has the same addresses and ports.
+			IPHeader ipHeader = IPPacketFactory.createIPHeader(clientPacketData);
+			UDPHeader udpheader = UDPPacketFactory.createUDPHeader(clientPacketData);
 			session = manager.createNewUDPSession(
 				ipHeader.getDestinationIP(), udpheader.getDestinationPort(),
 				ipHeader.getSourceIP(), udpheader.getSourcePort(),
 					ipHeader.getTotalLength(), packageName, clientPacketData
 			);
+			synchronized (session) {
+				session.setLastIpHeader(ipHeader);
+				session.setLastUdpHeader(udpheader);
+			}
 		}
 
+		clientPacketData.position(packet.getStart() + packet.getPayloadOffset());
+
 		synchronized (session) {
-			session.setLastIpHeader(ipHeader);
-			session.setLastUdpHeader(udpheader);
+			LANFlow lanFlow = session.getFlow();
+			if (!newSession && lanFlow != null && !session.isDpiComplete()) {
+				// Later datagrams of the flow, for protocols nDPI can't classify from the first one
+				manager.getDpiClassifier().classifySessionPacket(session, clientPacketData.array(), clientPacketData.limit(), clientPacketData.arrayOffset());
+			}
 			manager.addClientData(clientPacketData, session);
 			session.setDataForSendingReady(true);
 
@@ -135,14 +227,13 @@ public class SessionHandler {
 			if (newSession) nioService.registerSession(session);
 
 			// Ping the NIO thread to write this, when the session is next writable
-			session.subscribeKey(SelectionKey.OP_WRITE);
-			nioService.refreshSelect(session);
+			nioService.enableWrite(session);
 		}
 
 		manager.keepSessionAlive(session);
 	}
 
-	private void handleTCPPacket(ByteBuffer clientPacketData, IPHeader ipHeader, String packageName) throws PacketHeaderException, IOException {
+	private void handleTCPPacket(ByteBuffer clientPacketData, IPHeader ipHeader, PacketView packet, String packageName) throws PacketHeaderException, IOException {
 		TCPHeader tcpheader = TCPPacketFactory.createTCPHeader(clientPacketData);
 		int dataLength = clientPacketData.limit() - clientPacketData.position();
 		IPAddress sourceIP = ipHeader.getSourceIP();
@@ -154,11 +245,10 @@ public class SessionHandler {
 			// 3-way handshake + create new session
 			replySynAck(ipHeader,tcpheader, packageName);
 		} else if(tcpheader.isACK()) {
-			String key = Session.getSessionKey(SessionProtocol.TCP, destinationIP, destinationPort, sourceIP, sourcePort);
-			Session session = manager.getSessionByKey(key);
+			Session session = manager.getSession(SessionProtocol.TCP, packet);
 
 			if (session == null) {
-				Log.w(TAG, "Ack for unknown session: " + key);
+				Log.w(TAG, "Ack for unknown session: " + Session.getSessionKey(SessionProtocol.TCP, destinationIP, destinationPort, sourceIP, sourcePort));
 				if (tcpheader.isFIN()) {
 					sendLastAck(ipHeader, tcpheader);
 				} else if (!tcpheader.isRST()) {
@@ -186,17 +276,12 @@ public class SessionHandler {
 						int addedLength = manager.addClientData(clientPacketData, session);
 						//send ack to client only if new data was added
 						sendAck(ipHeader, tcpheader, addedLength, session);
-						if(lanFlow != null && (lanFlow.getDpiProtocol() == null || lanFlow.getDpiReport() == null)) {
-							//Should not necessarily do this on first ack
-							DpiResult dpiResult = VPNRunnable.Companion.doDpi(clientPacketData.array(), clientPacketData.limit(), clientPacketData.arrayOffset());
-							if(dpiResult != null) {
-								lanFlow.setDpiReport(dpiResult.getJsonBuffer());
-								lanFlow.setDpiProtocol(dpiResult.getProtocolName());
-								appDatabase.FlowDao().updateFlow(lanFlow);
-							}
+						if(lanFlow != null && !session.isDpiComplete()) {
+							// Each data segment goes into the session's nDPI flow until detection completes
+							manager.getDpiClassifier().classifySessionPacket(session, clientPacketData.array(), clientPacketData.limit(), clientPacketData.arrayOffset());
 						}
 					} else {
-						sendAckForDisorder(ipHeader, tcpheader, dataLength);
+						sendAckForDisorder(ipHeader, tcpheader, dataLength, session);
 					}
 				} else {
 					//an ack from client for previously sent data
@@ -210,6 +295,11 @@ public class SessionHandler {
 						Log.d(TAG, "got last ACK after FIN, session is now closed.");
 					}
 				}
+				if (dataLength > 0 && !tcpheader.isPSH()) {
+					// More may follow, but don't wait for a PSH to forward what we have
+					streamToDestination(session, tcpheader);
+				}
+
 				//received the last segment of data from vpn client
 				if (tcpheader.isPSH()) {
 					// Tell the NIO thread to immediately send data to the destination
@@ -227,12 +317,11 @@ public class SessionHandler {
 					manager.keepSessionAlive(session);
 					// This ACK may have reopened the window: flush staged data and resume reads.
 					nioService.pumpToClient(session);
-					nioService.refreshSelect(session);
 				}
 			}
 		} else if(tcpheader.isFIN()){
 			//case client sent FIN without ACK
-			Session session = manager.getSession(SessionProtocol.TCP, destinationIP, destinationPort, sourceIP, sourcePort);
+			Session session = manager.getSession(SessionProtocol.TCP, packet);
 			if(session == null)
 				ackFinAck(ipHeader, tcpheader, null);
 			else
@@ -274,7 +363,7 @@ public class SessionHandler {
 
 		writer.write(data);
 		if(session != null){
-			session.cancelKey();
+			nioService.unregisterSession(session);
 			manager.closeSession(session);
 			// Abort so the keepSessionAlive block below doesn't re-insert this just-closed
 			// session as a dead-channel zombie (which would block reuse of the client port).
@@ -318,15 +407,33 @@ public class SessionHandler {
 	}
 
 	private void pushDataToDestination(Session session, TCPHeader tcp){
+		session.setWriteFlushDeadline(0);
 		session.setDataForSendingReady(true);
 		session.setTimestampReplyto(tcp.getTimeStampSender());
 		session.setTimestampSender((int)System.currentTimeMillis());
 
 		// Ping the NIO thread to write this, when the session is next writable
-		session.subscribeKey(SelectionKey.OP_WRITE);
-		nioService.refreshSelect(session);
+		nioService.enableWrite(session);
 	}
 	
+	/**
+	 * Forward client data that came without PSH: straight away once enough is queued, otherwise
+	 * after the coalescing delay, so small writes are batched without waiting on a PSH that
+	 * some clients only send much later.
+	 */
+	private void streamToDestination(Session session, TCPHeader tcp){
+		int delayMs = writeCoalesceDelayMs;
+		if (delayMs < 0 || !session.hasDataToSend()) return;
+
+		if (delayMs == 0 || session.getSendingDataSize() >= writeCoalesceBytes) {
+			pushDataToDestination(session, tcp);
+		} else if (session.getWriteFlushDeadline() == 0 && !session.isDataForSendingReady()) {
+			session.setWriteFlushDeadline(System.nanoTime() + delayMs * 1_000_000L);
+			coalescedWrites++;
+			nioService.flushLater(session);
+		}
+	}
+
 	/**
 	 * send acknowledgment packet to VPN client
 	 * @param ipheader IP Header
@@ -337,9 +444,11 @@ public class SessionHandler {
 	private void sendAck(IPHeader ipheader, TCPHeader tcpheader, int acceptedDataLength, Session session){
 		long acknumber = session.getRecSequence() + acceptedDataLength;
 		session.setRecSequence(acknumber);
-		byte[] data = TCPPacketFactory.createResponseAckData(ipheader, tcpheader, acknumber);
+		PacketBuffer packet = writer.obtainBuffer();
+		TCPPacketFactory.writeResponseAckData(packet, ipheader, tcpheader, acknumber,
+				session.advertiseReceiveWindow());
 
-		writer.write(data);
+		writer.write(packet);
 	}
 
 	/**
@@ -348,21 +457,26 @@ public class SessionHandler {
 	 * @param session Session
 	 */
 	private void resendAck(Session session){
-		byte[] data = TCPPacketFactory.createResponseAckData(
+		PacketBuffer packet = writer.obtainBuffer();
+		TCPPacketFactory.writeResponseAckData(
+				packet,
 				session.getLastIpHeader(),
 				session.getLastTcpHeader(),
-				session.getRecSequence()
+				session.getRecSequence(),
+				session.advertiseReceiveWindow()
 		);
-		writer.write(data);
+		writer.write(packet);
 	}
 
-	private void sendAckForDisorder(IPHeader ipHeader, TCPHeader tcpheader, int acceptedDataLength) {
+	private void sendAckForDisorder(IPHeader ipHeader, TCPHeader tcpheader, int acceptedDataLength, Session session) {
 		long ackNumber = tcpheader.getSequenceNumber() + acceptedDataLength;
 		Log.d(TAG,"sent disorder ack, ack# " + tcpheader.getSequenceNumber() +
 				" + " + acceptedDataLength + " = " + ackNumber);
-		byte[] data = TCPPacketFactory.createResponseAckData(ipHeader, tcpheader, ackNumber);
+		PacketBuffer packet = writer.obtainBuffer();
+		TCPPacketFactory.writeResponseAckData(packet, ipHeader, tcpheader, ackNumber,
+				session.advertiseReceiveWindow());
 
-		writer.write(data);
+		writer.write(packet);
 	}
 
 	/**
@@ -378,26 +492,33 @@ public class SessionHandler {
 			Log.e(TAG,"prev packet was corrupted, last ack# " + tcpHeader.getAckNumber());
 		}
 
+		if (!updateAck(session, tcpHeader.getAckNumber(), tcpHeader.getSequenceNumber(), tcpHeader.getTimeStampSender())) {
+			Log.d(TAG,"Not Accepting ack# "+tcpHeader.getAckNumber() +" , it should be: "+session.getSendNext());
+			Log.d(TAG,"Prev sendUnack: "+session.getSendUnack());
+		}
+	}
+
+	/** Move sendUnack up to an ACK from the client, returning whether the ACK was accepted. */
+	private static boolean updateAck(Session session, long ackNumber, long sequenceNumber, int timestampSender){
 		// Reconstruct the ACK in absolute sequence space. The unacked span (sendNext - ack) is at
 		// most one window, so taking it mod 2^32 and subtracting recovers the absolute ack even
 		// after the 32-bit sequence wraps (e.g. partway through a multi-GB download) — where the
 		// old signed comparison would have stopped accepting ACKs and stalled.
 		long sendNextAbs = session.getSendNext();
-		long unackedSpan = (sendNextAbs - (tcpHeader.getAckNumber() & 0xFFFFFFFFL)) & 0xFFFFFFFFL;
+		long unackedSpan = (sendNextAbs - (ackNumber & 0xFFFFFFFFL)) & 0xFFFFFFFFL;
 		long ackAbs = sendNextAbs - unackedSpan;
 
 		if (ackAbs > session.getSendUnack() || ackAbs == sendNextAbs) {
 			session.setAcked(true);
 
 			session.setSendUnack(ackAbs);
-			session.setRecSequence(tcpHeader.getSequenceNumber());
-			session.setTimestampReplyto(tcpHeader.getTimeStampSender());
+			session.setRecSequence(sequenceNumber);
+			session.setTimestampReplyto(timestampSender);
 			session.setTimestampSender((int) System.currentTimeMillis());
-		} else {
-			Log.d(TAG,"Not Accepting ack# "+tcpHeader.getAckNumber() +" , it should be: "+session.getSendNext());
-			Log.d(TAG,"Prev sendUnack: "+session.getSendUnack());
-			session.setAcked(false);
+			return true;
 		}
+		session.setAcked(false);
+		return false;
 	}
 
 	/**
@@ -424,7 +545,12 @@ public class SessionHandler {
 	 * @param tcp TCP
 	 */
 	private void replySynAck(IPHeader ip, TCPHeader tcp, String packageName) throws IOException {
-		Packet packet = TCPPacketFactory.createSynAckPacketData(ip, tcp);
+		// Scale our window only if the client offered to (RFC 7323). The SYN-ACK's own window is
+		// never scaled, and a new session's send buffer is empty.
+		int windowScale = tcp.hasWindowScaleOption() ? DataConst.RECEIVE_WINDOW_SCALE : 0;
+		Packet packet = TCPPacketFactory.createSynAckPacketData(ip, tcp,
+				Math.min(DataConst.MAX_SEND_BUFFER_SIZE, 0xFFFF),
+				tcp.hasWindowScaleOption() ? windowScale : -1);
 		
 		TCPHeader tcpheader = (TCPHeader) packet.getTransportHeader();
 		
@@ -451,8 +577,9 @@ public class SessionHandler {
 
 			// Capture the client's flow-control params. The SYN window is unscaled (RFC 7323) and
 			// parsed as a signed short, so mask to unsigned.
-			session.setClientWindowScale(tcp.getWindowScale());
+			session.setClientWindowScale(tcp.hasWindowScaleOption() ? Math.min(tcp.getWindowScale(), 14) : 0);
 			session.setClientWindow(tcp.getWindowSize() & 0xFFFF);
+			session.setReceiveWindowScale(windowScale);
 
 			session.setLastIpHeader(ip);
 			session.setLastTcpHeader(tcp);
@@ -21,12 +21,13 @@ import androidx.annotation.Nullable;
 
 import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.SparseArray;
 
-import org.distrinet.lanshield.database.AppDatabase;
 import org.distrinet.lanshield.database.model.LANFlow;
-import org.distrinet.lanshield.vpnservice.DpiResult;
+import org.distrinet.lanshield.vpnservice.DpiClassifier;
+import org.distrinet.lanshield.vpnservice.FlowStore;
 import org.distrinet.lanshield.vpnservice.VPNRunnable;
 import org.jetbrains.annotations.NotNull;
 
@@ -34,6 +35,7 @@ import tech.httptoolkit.android.TagKt;
 import tech.httptoolkit.android.vpn.socket.DataConst;
 import tech.httptoolkit.android.vpn.socket.ICloseSession;
 import tech.httptoolkit.android.vpn.socket.SocketProtector;
+import tech.httptoolkit.android.vpn.transport.PacketView;
 import tech.httptoolkit.android.vpn.transport.ip.IPAddress;
 import tech.httptoolkit.android.vpn.util.PacketUtil;
 
@@ -56,13 +58,49 @@ import java.util.concurrent.ConcurrentHashMap;
 public class SessionManager implements ICloseSession {
 
     private final String TAG = TagKt.getTAG(this);
-    private final Map<String, Session> table = new ConcurrentHashMap<>();
+    private final Map<FlowKey, Session> table = new ConcurrentHashMap<>();
+    // Reused per thread to look sessions up without allocating a key for every packet
+    private final ThreadLocal<FlowKey> probeKey = ThreadLocal.withInitial(FlowKey::new);
     private final SocketProtector protector = SocketProtector.getInstance();
 
-    private final AppDatabase appDatabase;
+    private final DpiClassifier dpiClassifier;
+    private final FlowStore flowStore;
 
-    public SessionManager(AppDatabase appDatabase) {
-        this.appDatabase = appDatabase;
+    // Closes sessions nobody has used for a while, most of all UDP ones, which never see a close
+    private final SessionExpiry expiry = new SessionExpiry(SystemClock.elapsedRealtime());
+
+    @Nullable
+    private volatile SessionCloseListener sessionCloseListener;
+
+    /** Told about every session that is removed from the session table. */
+    public interface SessionCloseListener {
+        void onSessionClosed(@NonNull Session session);
+    }
+
+    public SessionManager(DpiClassifier dpiClassifier, FlowStore flowStore) {
+        this.dpiClassifier = dpiClassifier;
+        this.flowStore = flowStore;
+    }
+
+    public DpiClassifier getDpiClassifier() {
+        return dpiClassifier;
+    }
+
+    public FlowStore getFlowStore() {
+        return flowStore;
+    }
+
+    public SessionExpiry getSessionExpiry() {
+        return expiry;
+    }
+
+    /** Number of sessions closed because they were idle for longer than their timeout. */
+    public long getReapedSessionCount() {
+        return expiry.getReapedCount();
+    }
+
+    public void setSessionCloseListener(@Nullable SessionCloseListener listener) {
+        this.sessionCloseListener = listener;
     }
 
     /**
@@ -71,18 +109,47 @@ public class SessionManager implements ICloseSession {
      * @param session Session
      */
     public void keepSessionAlive(Session session) {
-        if (session != null) {
-            String key = Session.getSessionKey(
-                    session.getProtocol(),
-                    session.getDestIp(),
-                    session.getDestPort(),
-                    session.getSourceIp(),
-                    session.getSourcePort()
-            );
-            table.put(key, session);
+        // An aborting session is being closed, possibly for being idle on the NIO thread
+        if (session != null && !session.isAbortingConnection()) {
+            FlowKey key = session.getFlowKey();
+            expiry.touch(session);
+            // Usually still registered: only take the map's write path if it was removed
+            if (table.get(key) != session) {
+                table.put(key, session);
+                expiry.track(session, SystemClock.elapsedRealtime());
+            }
         }
     }
 
+    /** Note traffic from the remote side of a session, which keeps it from expiring. */
+    public void touchSession(@NonNull Session session) {
+        expiry.touch(session);
+    }
+
+    /**
+     * Close the sessions that have been idle for longer than their timeout. Called by the NIO
+     * thread, at least once per {@link SessionExpiry#TICK_MS} while any session is open.
+     *
+     * @return the number of sessions closed
+     */
+    public int expireIdleSessions() {
+        return expiry.advance(SystemClock.elapsedRealtime(),
+                session -> table.get(session.getFlowKey()) == session,
+                this::closeIdleSession);
+    }
+
+    private void closeIdleSession(Session session) {
+        synchronized (session) {
+            // Keeps the VPN thread from putting it back into the table
+            session.setAbortingConnection(true);
+            if (session.getSelectionKey() != null) {
+                session.cancelKey();
+            }
+        }
+        Log.d(TAG, "idle session expired -> " + session.getSessionKey());
+        closeSession(session);
+    }
+
     /**
      * add data from client which will be sending to the destination server later one when receiving PSH flag.
      *
@@ -96,21 +163,36 @@ public class SessionManager implements ICloseSession {
         return session.setSendingData(buffer);
     }
 
+    @Nullable
     public Session getSession(SessionProtocol protocol, IPAddress ip, int port, IPAddress srcIp, int srcPort) {
-        String key = Session.getSessionKey(protocol, ip, port, srcIp, srcPort);
+        return table.get(probe(protocol, ip, port, srcIp, srcPort));
+    }
 
-        return getSessionByKey(key);
+    /** Find the session a packet from the VPN client belongs to, without decoding its headers. */
+    @Nullable
+    public Session getSession(SessionProtocol protocol, PacketView packet) {
+        return table.get(probeKey.get().set(protocol, packet));
     }
 
+    /**
+     * Find a session by its {@link Session#getSessionKey()} string. This scans every session, so
+     * it's meant for diagnostics only; the packet path uses {@link #getSession}.
+     */
     @Nullable
     public Session getSessionByKey(String key) {
-        if (table.containsKey(key)) {
-            return table.get(key);
+        for (Session session : table.values()) {
+            if (session.getSessionKey().equals(key)) {
+                return session;
+            }
         }
 
         return null;
     }
 
+    private FlowKey probe(SessionProtocol protocol, IPAddress ip, int port, IPAddress srcIp, int srcPort) {
+        return probeKey.get().set(protocol, ip, port, srcIp, srcPort);
+    }
+
     /**
      * remove session from memory, then close socket connection.
      *
@@ -120,10 +202,15 @@ public class SessionManager implements ICloseSession {
      * @param srcPort Source Port
      */
     public void closeSession(SessionProtocol protocol, IPAddress ip, int port, IPAddress srcIp, int srcPort) {
-        String key = Session.getSessionKey(protocol, ip, port, srcIp, srcPort);
-        Session session = table.remove(key);
+        Session session = table.remove(probe(protocol, ip, port, srcIp, srcPort));
 
         if (session != null) {
+            VPNRunnable.Companion.releaseSessionDpi(session);
+            LANFlow flow = session.getFlow();
+            if (flow != null) {
+                // Store the flow's final counters now rather than with the next batch
+                flowStore.flushSoon(flow);
+            }
             final AbstractSelectableChannel channel = session.getChannel();
             try {
                 if (channel != null) {
@@ -132,7 +219,12 @@ public class SessionManager implements ICloseSession {
             } catch (IOException e) {
                 e.printStackTrace();
             }
-            Log.d(TAG, "closed session -> " + key);
+            Log.d(TAG, "closed session -> " + session.getSessionKey());
+
+            SessionCloseListener listener = sessionCloseListener;
+            if (listener != null) {
+                listener.onSessionClosed(session);
+            }
         }
     }
 
@@ -158,12 +250,10 @@ public class SessionManager implements ICloseSession {
 
     @NotNull
     public Session createNewUDPSession(IPAddress ip, int port,IPAddress srcIp, int srcPort, int length, String packageName, ByteBuffer rawPacket) throws IOException {
-        String keys = Session.getSessionKey(SessionProtocol.UDP, ip, port, srcIp, srcPort);
-
         Log.w(TAG, "CREATE UDP SESSION");
         // For TCP, we freak out if you try to create an already existing session.
         // With UDP though, it's totally fine:
-        Session existingSession = table.get(keys);
+        Session existingSession = getSession(SessionProtocol.UDP, ip, port, srcIp, srcPort);
         if (existingSession != null) return existingSession;
 
         Session session = new Session(SessionProtocol.UDP, srcIp, srcPort, ip, port, this);
@@ -184,27 +274,24 @@ public class SessionManager implements ICloseSession {
         channel.connect(socketAddress);
         session.setConnected(channel.isConnected());
 
-        table.put(keys, session);
+        table.put(session.getFlowKey(), session);
+        expiry.track(session, SystemClock.elapsedRealtime());
 
         LANFlow lanFlow = LANFlow.Companion.fromHttpToolkitSession(session, packageName);
         lanFlow.increaseEgress(1, length);
 
-        DpiResult dpiResult = VPNRunnable.Companion.doDpi(rawPacket.array(), rawPacket.limit(), rawPacket.arrayOffset());
-        if(dpiResult != null) {
-            lanFlow.setDpiReport(dpiResult.getJsonBuffer());
-            lanFlow.setDpiProtocol(dpiResult.getProtocolName());
-        }
         Log.w(TAG, lanFlow.toJSON().toString());
-        this.appDatabase.FlowDao().insertFlow(lanFlow);
+        flowStore.markNew(lanFlow);
+
+        // Classified asynchronously, the result is written back to the stored flow
+        dpiClassifier.classifySessionPacket(session, rawPacket.array(), rawPacket.limit(), rawPacket.arrayOffset());
 
         return session;
     }
 
     @NotNull
     public Session createNewTCPSession(IPAddress ip, int port, IPAddress srcIp, int srcPort, int length, String packageName) throws IOException {
-        String key = Session.getSessionKey(SessionProtocol.TCP, ip, port, srcIp, srcPort);
-
-        Session existingSession = table.get(key);
+        Session existingSession = getSession(SessionProtocol.TCP, ip, port, srcIp, srcPort);
 
         // This can happen if we receive two SYN packets somehow. That shouldn't happen,
         // given that our connection is local & should be 100% reliable, but it can.
@@ -222,7 +309,7 @@ public class SessionManager implements ICloseSession {
         channel.configureBlocking(false);
 
         String ips = ip.toString();
-        Log.d(TAG, "created new SocketChannel for " + key);
+        Log.d(TAG, "created new SocketChannel for " + session.getSessionKey());
 
         protector.protect(channel.socket());
         Log.d(TAG, "Protected new SocketChannel");
@@ -243,9 +330,10 @@ public class SessionManager implements ICloseSession {
         LANFlow lanFlow = LANFlow.Companion.fromHttpToolkitSession(session, packageName);
         lanFlow.increaseEgress(1, length);
         lanFlow.setTcpEstablishedReached(connected);
-        this.appDatabase.FlowDao().insertFlow(lanFlow);
+        flowStore.markNew(lanFlow);
 
-        table.put(key, session);
+        table.put(session.getFlowKey(), session);
+        expiry.track(session, SystemClock.elapsedRealtime());
 
         return session;
     }
@@ -22,6 +22,13 @@ package tech.httptoolkit.android.vpn.socket;
 public class DataConst {
 	public static final int MAX_RECEIVE_BUFFER_SIZE = 65535;
 
+	// Client data a TCP session may hold before it's written upstream. The receive window we
+	// advertise to the client is what's left of this, so a slow upstream pushes back on the app.
+	public static final int MAX_SEND_BUFFER_SIZE = 1024 * 1024;
+
+	// Window scale we offer in the SYN-ACK (RFC 7323): 65535 << 5 covers MAX_SEND_BUFFER_SIZE
+	public static final int RECEIVE_WINDOW_SCALE = 5;
+
 	// The TUN interface MTU; mirrors VPNService.setMtu(MAX_PACKET_LEN). Packets emitted to the
 	// client must not exceed this, so oversized (e.g. large UDP) responses are dropped rather than
 	// forwarded as an un-deliverable jumbo packet.
@@ -0,0 +1,389 @@
+package tech.httptoolkit.android.vpn.socket;
+
+import android.util.Log;
+
+import org.distrinet.lanshield.vpnservice.FlowStore;
+
+import tech.httptoolkit.android.vpn.ClientPacketWriter;
+import tech.httptoolkit.android.vpn.Session;
+import tech.httptoolkit.android.vpn.SessionExpiry;
+import tech.httptoolkit.android.vpn.SessionManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.AbstractSelectableChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tech.httptoolkit.android.TagKt;
+
+/**
+ * One selector thread of the {@link SocketNIODataService}, owning the sessions whose flow hashes
+ * to it. Each shard has its own selector and reader/writer buffers, so shards never contend
+ * with each other while handling socket events.
+ *
+ * Other threads never touch the selector or its keys. They queue commands instead (register,
+ * enable writes, pump to the client, unregister), which this thread applies in a batch before
+ * each select. Commands for a session are bits on the session itself, so a session is queued
+ * once however many packets ask for it, and the selector is only woken when the queue goes from
+ * empty to non-empty.
+ *
+ * Client data held back for coalescing (see SessionHandler) waits on the shard's flush list,
+ * and selects wake up in time to write it out by its deadline.
+ *
+ * Only the expiring shard ticks the session expiry wheel. It may reap sessions owned by other
+ * shards, which is safe as it only takes their session monitor, like the VPN thread does.
+ */
+class SelectorShard implements Runnable {
+
+	static final int CMD_REGISTER = 1;
+	static final int CMD_ENABLE_WRITE = 1 << 1;
+	static final int CMD_PUMP = 1 << 2;
+	static final int CMD_UNREGISTER = 1 << 3;
+	static final int CMD_FLUSH_LATER = 1 << 4;
+
+	private final String TAG = TagKt.getTAG(this);
+	private final Selector selector = Selector.open();
+
+	private final SocketNIODataService service;
+	private final int index;
+	private final boolean expiresSessions;
+
+	private final SocketChannelReader reader;
+	private final SocketChannelWriter writer;
+
+	private final FlowStore flowStore;
+
+	// Many producers, only this shard's thread consumes. The count goes up before a session is
+	// queued and down once it's been applied, so it's zero only when nothing is left to apply.
+	private final ConcurrentLinkedQueue<Session> commandQueue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger queuedSessions = new AtomicInteger();
+
+	// Sessions with a write flush deadline, this shard's thread only. Kept short: a session
+	// only stays here while it holds less client data than the coalescing threshold.
+	private final ArrayList<Session> flushPending = new ArrayList<>();
+
+	// Belongs to the VPN thread: a wakeup held back until the end of its batch
+	private boolean wakeupPending = false;
+
+	private volatile long selectorWakeups = 0;
+
+	SelectorShard(SocketNIODataService service, int index, boolean expiresSessions,
+				  ClientPacketWriter clientPacketWriter, FlowStore flowStore) throws IOException {
+		this.service = service;
+		this.index = index;
+		this.expiresSessions = expiresSessions;
+		reader = new SocketChannelReader(clientPacketWriter);
+		writer = new SocketChannelWriter(clientPacketWriter);
+		this.flowStore = flowStore;
+	}
+
+	@Override
+	public void run() {
+		Log.d(TAG,"Selector shard " + index + " starting in background...");
+		runTask();
+	}
+
+	/**
+	 * Queue commands for a session, from any thread. With deferWakeup, a wakeup this needs is
+	 * left for {@link #endBatch} (only for the VPN thread, which owns the batch).
+	 * @return whether a wakeup was needed and left for the end of the batch
+	 */
+	boolean submit(Session session, int commands, boolean deferWakeup) {
+		if (session.addPendingCommands(commands) != 0) {
+			return false; // Already queued, and the commands are applied along with the others
+		}
+
+		boolean wasEmpty = queuedSessions.getAndIncrement() == 0;
+		commandQueue.add(session);
+		if (!wasEmpty) return false;
+
+		if (deferWakeup) {
+			wakeupPending = true;
+			return true;
+		}
+		wakeup();
+		return false;
+	}
+
+	/** Wake the selector if a wakeup was held back during the VPN thread's batch. */
+	void endBatch() {
+		if (wakeupPending) {
+			wakeupPending = false;
+			wakeup();
+		}
+	}
+
+	long getSelectorWakeups() {
+		return selectorWakeups;
+	}
+
+	private void wakeup() {
+		selectorWakeups++;
+		selector.wakeup();
+	}
+
+	/** Wake the selector for shutdown. */
+	void shutdown() {
+		selector.wakeup();
+	}
+
+	/**
+	 * Apply every queued command. Returns true if more were queued meanwhile, in which case the
+	 * next select mustn't block, as nobody will wake it for them.
+	 */
+	private boolean applyCommands() {
+		int applied = 0;
+		Session session;
+		while ((session = commandQueue.poll()) != null) {
+			applied++;
+			synchronized (session) {
+				applyCommands(session, session.takePendingCommands());
+			}
+		}
+		return queuedSessions.addAndGet(-applied) > 0;
+	}
+
+	private void applyCommands(Session session, int commands) {
+		if ((commands & CMD_REGISTER) != 0) {
+			register(session);
+		}
+		if (session.getSelectionKey() == null) return; // Registration failed
+
+		if ((commands & CMD_UNREGISTER) != 0) {
+			session.cancelKey();
+			return;
+		}
+		if ((commands & CMD_ENABLE_WRITE) != 0) {
+			session.subscribeKey(SelectionKey.OP_WRITE);
+		}
+		if ((commands & CMD_PUMP) != 0) {
+			reader.pumpToClient(session);
+		}
+		if ((commands & CMD_FLUSH_LATER) != 0 && !session.isFlushScheduled()) {
+			session.setFlushScheduled(true);
+			flushPending.add(session);
+		}
+	}
+
+	/**
+	 * Write out the client data of every session whose flush deadline has passed. Returns how
+	 * long until the next deadline in ms (at least 1), or -1 if no session is waiting.
+	 */
+	private long flushDueWrites() {
+		if (flushPending.isEmpty()) return -1;
+
+		long now = System.nanoTime();
+		long nextDeadline = Long.MAX_VALUE;
+		for (int i = flushPending.size() - 1; i >= 0; i--) {
+			Session session = flushPending.get(i);
+			synchronized (session) {
+				long deadline = session.getWriteFlushDeadline();
+				if (deadline != 0 && deadline - now > 0) {
+					nextDeadline = Math.min(nextDeadline, deadline);
+					continue;
+				}
+
+				// Due, or already pushed (deadline cleared) by the VPN thread
+				if (deadline != 0) {
+					session.setWriteFlushDeadline(0);
+					if (session.hasDataToSend()) {
+						session.setDataForSendingReady(true);
+						session.subscribeKey(SelectionKey.OP_WRITE);
+					}
+				}
+				session.setFlushScheduled(false);
+				flushPending.remove(i);
+			}
+		}
+		if (nextDeadline == Long.MAX_VALUE) return -1;
+		return Math.max(1, (nextDeadline - now + 999_999) / 1_000_000);
+	}
+
+	private void register(Session session) {
+		AbstractSelectableChannel channel = session.getChannel();
+
+		boolean isConnected = channel instanceof DatagramChannel
+				? ((DatagramChannel) channel).isConnected()
+				: ((SocketChannel) channel).isConnected();
+
+		Log.i(TAG, "Registering new session on shard " + index + ": " + session);
+
+		try {
+			SelectionKey selectionKey = channel.register(selector,
+					isConnected
+							? SelectionKey.OP_READ
+							: SelectionKey.OP_CONNECT
+			);
+			session.setSelectionKey(selectionKey);
+			selectionKey.attach(session);
+			Log.d(TAG, "Registered selector successfully");
+		} catch (ClosedChannelException e) {
+			Log.d(TAG, "Session closed before it was registered: " + session);
+		}
+	}
+
+	private void runTask(){
+		Log.i(TAG, "NIO selector " + index + " is running...");
+
+		while(!service.isShutdown()){
+			SessionManager manager = expiresSessions ? service.getSessionManager() : null;
+			try {
+				boolean moreCommands = applyCommands();
+				long timeout = flushDueWrites();
+				if (manager != null && !manager.getSessionExpiry().isEmpty()) {
+					// Wake up every tick while sessions are open, so idle ones are expired on time
+					timeout = timeout < 0 ? SessionExpiry.TICK_MS : Math.min(timeout, SessionExpiry.TICK_MS);
+				}
+
+				if (moreCommands) {
+					selector.selectNow();
+				} else if (timeout > 0) {
+					selector.select(timeout);
+				} else {
+					selector.select();
+				}
+			} catch (IOException e) {
+				Log.e(TAG,"Error in Selector.select(): " + e.getMessage());
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException ex) {
+					Log.e(TAG, e.toString());
+				}
+				continue;
+			}
+
+			if (service.isShutdown()) {
+				break;
+			}
+
+			Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+
+			while (iterator.hasNext()) {
+				SelectionKey key = iterator.next();
+				Session session = ((Session) key.attachment());
+				synchronized (session) { // Sessions are locked during processing (no VPN data races)
+					try {
+						processSelectionKey(key);
+					} catch (IOException e) {
+						synchronized (key) {
+							key.cancel();
+						}
+					}
+				}
+
+				iterator.remove();
+				if (service.isShutdown()) {
+					break;
+				}
+			}
+
+			if (manager != null && !service.isShutdown()) {
+				manager.expireIdleSessions();
+			}
+		}
+		Log.i(TAG, "NIO selector " + index + " shutdown");
+	}
+
+	private void processSelectionKey(SelectionKey key) throws IOException {
+		if (!key.isValid()) {
+			Log.d(TAG,"Invalid SelectionKey");
+			return;
+		}
+
+		SelectableChannel channel = key.channel();
+
+		Session session = ((Session) key.attachment());
+		if (session == null) {
+			Log.w(TAG, "Key fired with no session attached");
+			return;
+		}
+
+		if (channel instanceof SocketChannel && !session.isConnected() && key.isConnectable()) {
+			SocketChannel socketChannel = (SocketChannel) channel;
+
+			if (socketChannel.isConnectionPending()) {
+				boolean connected = socketChannel.finishConnect();
+				session.setConnected(connected);
+				session.getFlow().setTcpEstablishedReached(session.getFlow().getTcpEstablishedReached() || connected);
+				flowStore.markDirty(session.getFlow());
+				//TODO send syn ack to VPN here
+			} else {
+				throw new IllegalStateException("TCP channels must either be connected or pending connection");
+			}
+		}
+
+		if (isConnected(channel)) {
+			processConnectedSelection(key, session);
+		}
+	}
+
+	private boolean isConnected(SelectableChannel channel) {
+		if (channel instanceof DatagramChannel) {
+			return ((DatagramChannel) channel).isConnected();
+		} else if (channel instanceof SocketChannel) {
+			return ((SocketChannel) channel).isConnected();
+		} else {
+			throw new IllegalArgumentException("isConnected on unexpected channel type: " + channel);
+		}
+	}
+
+	private void processConnectedSelection(SelectionKey key, Session session) {
+		// Whilst connected, we always want READ and not CONNECT events
+		session.unsubscribeKey(SelectionKey.OP_CONNECT);
+		session.subscribeKey(SelectionKey.OP_READ);
+		processSelectorRead(key, session);
+		processPendingWrite(key, session);
+	}
+
+	private void processSelectorRead(SelectionKey selectionKey, Session session) {
+		boolean canRead;
+		synchronized (selectionKey) {
+			// There's a race here that requires a lock, as isReadable requires isValid
+			canRead = selectionKey.isValid() && selectionKey.isReadable();
+		}
+
+		if (canRead) {
+			long bytesRead = reader.read(session);
+			touchSession(session);
+			session.getFlow().increaseIngress(1, bytesRead);
+			flowStore.markDirty(session.getFlow());
+		}
+	}
+
+	private void processPendingWrite(SelectionKey selectionKey, Session session) {
+		// Nothing to write? Skip this entirely, and make sure we're not subscribed
+		if (!session.hasDataToSend() || !session.isDataForSendingReady()) {
+			session.unsubscribeKey(SelectionKey.OP_WRITE);
+			return;
+		}
+
+		boolean canWrite;
+		synchronized (selectionKey) {
+			// There's a race here that requires a lock, as isReadable requires isValid
+			canWrite = selectionKey.isValid() && selectionKey.isWritable();
+		}
+
+		if (canWrite) {
+			session.unsubscribeKey(SelectionKey.OP_WRITE);
+			long bytesWritten = writer.write(session); // This will resubscribe to OP_WRITE if it can't complete
+			touchSession(session);
+			session.getFlow().increaseEgress(1, bytesWritten);
+			flowStore.markDirty(session.getFlow());
+		}
+	}
+
+	private void touchSession(Session session) {
+		SessionManager manager = service.getSessionManager();
+		if (manager != null) {
+			manager.touchSession(session);
+		}
+	}
+}
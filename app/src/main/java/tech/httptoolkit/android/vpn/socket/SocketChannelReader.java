@@ -4,6 +4,8 @@ import androidx.annotation.NonNull;
 import android.util.Log;
 
 import tech.httptoolkit.android.vpn.ClientPacketWriter;
+import tech.httptoolkit.android.vpn.PacketBuffer;
+import tech.httptoolkit.android.vpn.ReceiveBuffer;
 import tech.httptoolkit.android.vpn.Session;
 import tech.httptoolkit.android.vpn.transport.ip.IPHeader;
 import tech.httptoolkit.android.vpn.transport.tcp.TCPHeader;
@@ -34,6 +36,10 @@ class SocketChannelReader {
 
 	private final ClientPacketWriter writer;
 
+	// Only used on the NIO thread, so one buffer serves every UDP read. TCP reads go straight
+	// into the session's staging ring instead.
+	private final ByteBuffer udpReadBuffer = ByteBuffer.allocate(DataConst.MAX_RECEIVE_BUFFER_SIZE);
+
 	// Report an oversized-UDP drop to Crashlytics at most once per reader, so a misbehaving peer
 	// flooding jumbo datagrams can't flood the crash reporter (each drop is still Log.w'd).
 	private volatile boolean alreadyReportedOversize = false;
@@ -54,6 +60,10 @@ class SocketChannelReader {
 	// closes and the sender backs off, instead of pulling a multi-GB download into memory.
 	private static final int STAGING_CAP = 2 * DataConst.MAX_RECEIVE_BUFFER_SIZE;
 
+	// Largest segment body that fits a pooled packet buffer with an IPv6 header and a TCP header
+	// carrying the maximum 40 bytes of options.
+	private static final int MAX_POOLED_SEGMENT = PacketBuffer.POOLED_CAPACITY - 40 - 60;
+
 	public long read(Session session) {
 		AbstractSelectableChannel channel = session.getChannel();
 		long bytesRead = 0;
@@ -105,20 +115,25 @@ class SocketChannelReader {
 
 		long bytesRead = 0;
 		SocketChannel channel = (SocketChannel) session.getChannel();
-		ByteBuffer buffer = ByteBuffer.allocate(DataConst.MAX_RECEIVE_BUFFER_SIZE);
+		ReceiveBuffer staged = session.getReceiveBuffer();
 		int len;
 
 		try {
 			do {
 				// Backpressure: stop reading once the staging buffer is full.
-				if (session.receivingStreamSize() >= STAGING_CAP) {
+				int room = STAGING_CAP - staged.size();
+				if (room <= 0) {
 					session.unsubscribeKey(SelectionKey.OP_READ);
 					break;
 				}
-				len = channel.read(buffer);
+				int requested = Math.min(room, DataConst.MAX_RECEIVE_BUFFER_SIZE);
+				// Reads stop where the ring wraps, so judge them against what they could take
+				int span = staged.readSpan(requested);
+				len = staged.readFrom(channel, requested);
 				if (len > 0) { //-1 mean it reach the end of stream
-					sendToRequester(buffer, len, session);
-					buffer.clear();
+					// A short read usually means the socket is drained: the trigger to set PSH
+					session.setHasReceivedLastSegment(len < span);
+					pumpToClient(session);
 					bytesRead += len;
 				} else if (len == -1) {
 					// EOF: defer the FIN to pumpToClient so it can't overtake unsent staged data.
@@ -140,30 +155,16 @@ class SocketChannelReader {
 		return bytesRead;
 	}
 	
-	private void sendToRequester(ByteBuffer buffer, int dataSize, @NonNull Session session){
-		// Last piece of data is usually smaller than MAX_RECEIVE_BUFFER_SIZE. We use this as a
-		// trigger to set PSH on the resulting TCP packet that goes to the VPN.
-        session.setHasReceivedLastSegment(dataSize < DataConst.MAX_RECEIVE_BUFFER_SIZE);
-
-		buffer.limit(dataSize);
-		buffer.flip();
-		// TODO should allocate new byte array?
-		byte[] data = new byte[dataSize];
-		System.arraycopy(buffer.array(), 0, data, 0, dataSize);
-		session.addReceivedData(data);
-		pumpToClient(session);
-	}
-
 	private int maxSegment(@NonNull Session session){
 		// TODO What does 60 mean? Leaves room for IP + TCP options below the MSS.
 		int max = session.getMaxSegmentSize() - 60;
-		return max < 1 ? 1024 : max;
+		return Math.min(max < 1 ? 1024 : max, MAX_POOLED_SEGMENT);
 	}
 
 	/**
 	 * Send staged upstream data to the VPN client, keeping at most one client window in flight
-	 * (clientWindow - (sendNext - sendUnack) bytes). Runs under the session monitor, from the NIO
-	 * thread after a read and from the SessionHandler thread after a window-opening ACK. Sends the
+	 * (clientWindow - (sendNext - sendUnack) bytes). Runs on the NIO thread under the session
+	 * monitor, after a read and when the SessionHandler queues it after a window-opening ACK. Sends the
 	 * deferred FIN once the upstream is done and all staged data has drained. Sequence math is
 	 * unsigned 32-bit so a multi-GB transfer (which wraps the sequence number) stays correct.
 	 */
@@ -173,23 +174,26 @@ class SocketChannelReader {
 		if (ipHeader == null || tcpheader == null) return;
 
 		final int segMax = maxSegment(session);
+		final ReceiveBuffer staged = session.getReceiveBuffer();
 
-		while (session.hasReceivedData()) {
+		while (!staged.isEmpty()) {
 			long inFlight = unsigned32(session.getSendNext() - session.getSendUnack());
 			long room = session.getClientWindow() - inFlight;
 			if (room <= 0) break;                                // window full (or zero window)
-			int chunk = (int) Math.min(room, segMax);
-
-			byte[] packetBody = session.getReceivedData(chunk);
-			if (packetBody == null || packetBody.length == 0) break;
+			// A segment stops where the ring wraps, so it can be encoded straight from the ring
+			int chunk = (int) Math.min(Math.min(room, segMax), staged.contiguousSize());
 
 			long seq = unsigned32(session.getSendNext());
-			session.setSendNext(session.getSendNext() + packetBody.length);
-
-			boolean psh = session.hasReceivedLastSegment() && !session.hasReceivedData();
-			writer.write(TCPPacketFactory.createResponsePacketData(ipHeader, tcpheader, packetBody,
-					psh, session.getRecSequence(), seq,
-					session.getTimestampSender(), session.getTimestampReplyto()));
+			session.setSendNext(session.getSendNext() + chunk);
+
+			boolean psh = session.hasReceivedLastSegment() && staged.size() == chunk;
+			PacketBuffer packet = writer.obtainBuffer();
+			TCPPacketFactory.writeResponsePacketData(packet, ipHeader, tcpheader,
+					staged.array(), staged.readOffset(), chunk, psh, session.getRecSequence(), seq,
+					session.getTimestampSender(), session.getTimestampReplyto(),
+					session.advertiseReceiveWindow());
+			staged.consume(chunk);
+			writer.write(packet);
 		}
 
 		if (session.isUpstreamEof() && !session.hasReceivedData() && !session.isAbortingConnection()) {
@@ -220,7 +224,8 @@ class SocketChannelReader {
 	private long readUDP(Session session){
 		DatagramChannel channel = (DatagramChannel) session.getChannel();
 		long bytesRead = 0;
-		ByteBuffer buffer = ByteBuffer.allocate(DataConst.MAX_RECEIVE_BUFFER_SIZE);
+		ByteBuffer buffer = udpReadBuffer;
+		buffer.clear();
 		int len;
 
 		try {
@@ -234,27 +239,26 @@ class SocketChannelReader {
 					buffer.limit(len);
 					buffer.flip();
 
-					//create UDP packet
-					byte[] data = new byte[len];
-					System.arraycopy(buffer.array(),0, data, 0, len);
-					byte[] packetData = UDPPacketFactory.createResponsePacket(
-							session.getLastIpHeader(), session.getLastUdpHeader(), data);
-
-					if (packetData.length > DataConst.MTU) {
+					IPHeader ipHeader = session.getLastIpHeader();
+					int packetLength = UDPPacketFactory.responsePacketLength(ipHeader, len);
+					if (packetLength > DataConst.MTU) {
 						// Can't be delivered over the TUN (MTU 1500) without IP fragmentation, which
 						// the engine doesn't do. Drop it rather than hand the writer a jumbo packet.
-						Log.w(TAG, "Dropping oversized UDP response (" + packetData.length
+						Log.w(TAG, "Dropping oversized UDP response (" + packetLength
 								+ " bytes > MTU " + DataConst.MTU + ")");
-						reportOversizeOnce(packetData.length);
+						reportOversizeOnce(packetLength);
 						buffer.clear();
 						continue;
 					}
 
-					//write to client
-					writer.write(packetData);
+					//create UDP packet straight from the read buffer, and write to client
+					PacketBuffer packet = writer.obtainBuffer();
+					UDPPacketFactory.writeResponsePacket(packet, ipHeader, session.getLastUdpHeader(),
+							buffer.array(), 0, len);
+					writer.write(packet);
 
 					Log.d(TAG,"SDR: sent " + len + " bytes to UDP client, packetData.length: "
-							+ packetData.length);
+							+ packetLength);
 					buffer.clear();
 					bytesRead += len;
 				}
@@ -4,7 +4,11 @@ import androidx.annotation.NonNull;
 import android.util.Log;
 
 import tech.httptoolkit.android.vpn.ClientPacketWriter;
+import tech.httptoolkit.android.vpn.PacketBuffer;
+import tech.httptoolkit.android.vpn.SendQueue;
 import tech.httptoolkit.android.vpn.Session;
+import tech.httptoolkit.android.vpn.transport.ip.IPHeader;
+import tech.httptoolkit.android.vpn.transport.tcp.TCPHeader;
 import tech.httptoolkit.android.vpn.transport.tcp.TCPPacketFactory;
 import tech.httptoolkit.android.vpn.util.PacketUtil;
 
@@ -121,29 +125,15 @@ public class SocketChannelWriter {
 	private long writePendingData(Session session) throws IOException {
 		if (!session.hasDataToSend()) return 0;
 
-		long totalBytesWritten = 0;
 		SocketChannel channel = (SocketChannel) session.getChannel();
+		SendQueue pending = session.getSendQueue();
 
-		byte[] data = session.getSendingData();
-		ByteBuffer buffer = ByteBuffer.allocate(data.length);
-		buffer.put(data);
-		buffer.flip();
+		// Gathered straight from the queued payloads; anything unwritten stays queued in place
+		long totalBytesWritten = pending.writeTo(channel);
 
-		while (buffer.hasRemaining()) {
-			int bytesWritten = channel.write(buffer);
-
-			if (bytesWritten == 0) {
-				break;
-			}
-			totalBytesWritten += bytesWritten;
-		}
-
-		if (buffer.hasRemaining()) {
+		if (!pending.isEmpty()) {
 			// The channel's own buffer is full, so we have to save this for later.
-			Log.i(TAG, buffer.remaining() + " bytes unwritten for " + channel.toString());
-
-			// Put the remaining data from the buffer back into the session
-			session.setSendingData(buffer.compact());
+			Log.i(TAG, pending.size() + " bytes unwritten for " + channel.toString());
 
 			// Subscribe to WRITE events, so we know when this is ready to resume.
 			session.subscribeKey(SelectionKey.OP_WRITE);
@@ -155,9 +145,37 @@ public class SocketChannelWriter {
 			// This is safe from races with new data, due to the session lock in NIO.
 			session.unsubscribeKey(SelectionKey.OP_WRITE);
 		}
+
+		if (totalBytesWritten > 0) {
+			sendWindowUpdate(session);
+		}
 		return totalBytesWritten;
 	}
 
+	/**
+	 * Tell the client its window has reopened, once writing upstream has freed at least half the
+	 * largest window we can advertise beyond what we last advertised. Without this a client that
+	 * filled the window would wait for a window update that no other packet carries. Waiting for
+	 * half the window avoids sending an update for every small write (silly window syndrome).
+	 */
+	private void sendWindowUpdate(Session session) {
+		// Without window scaling the window tops out at 64KB, well short of the send buffer
+		long threshold = Math.min(DataConst.MAX_SEND_BUFFER_SIZE,
+				0xFFFFL << session.getReceiveWindowScale()) / 2;
+		if (session.getAdvertisedWindow() >= threshold || session.getReceiveWindow() < threshold) return;
+
+		IPHeader ipHeader = session.getLastIpHeader();
+		TCPHeader tcpHeader = session.getLastTcpHeader();
+		if (ipHeader == null || tcpHeader == null) return;
+
+		PacketBuffer packet = writer.obtainBuffer();
+		TCPPacketFactory.writeResponsePacketData(packet, ipHeader, tcpHeader, null, 0, 0, false,
+				session.getRecSequence(), session.getSendNext() & 0xFFFFFFFFL,
+				session.getTimestampSender(), session.getTimestampReplyto(),
+				session.advertiseReceiveWindow());
+		writer.write(packet);
+	}
+
 	/**
 	 * UDP: a datagram protocol, so each queued datagram must be written with its own
 	 * channel.write() to preserve message boundaries. We send one datagram per write cycle
@@ -2,274 +2,188 @@ package tech.httptoolkit.android.vpn.socket;
 
 import android.util.Log;
 
-import org.distrinet.lanshield.database.AppDatabase;
-import org.distrinet.lanshield.database.model.LANFlow;
+import androidx.annotation.Nullable;
+
+import org.distrinet.lanshield.vpnservice.FlowStore;
 
 import tech.httptoolkit.android.vpn.ClientPacketWriter;
 import tech.httptoolkit.android.vpn.Session;
+import tech.httptoolkit.android.vpn.SessionManager;
 
 import java.io.IOException;
-import java.nio.channels.ClosedChannelException;
-import java.nio.channels.DatagramChannel;
-import java.nio.channels.SelectableChannel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.SocketChannel;
-import java.nio.channels.spi.AbstractSelectableChannel;
-import java.util.Iterator;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 import tech.httptoolkit.android.TagKt;
 
 /**
- * A service that single-threadedly processes the events around our session connections,
- * entirely via non-blocking NIO.
+ * A service that processes the events around our session connections, entirely via
+ * non-blocking NIO.
+ *
+ * Sessions are spread over one or more {@link SelectorShard}s by the hash of their flow. Each
+ * shard runs its own Selector on its own thread, firing on outgoing socket events (connected,
+ * readable, writable), handling the resulting operations, and keeping those subscriptions up
+ * to date. A session stays on the same shard for its whole life.
  *
- * It uses a Selector that fires on outgoing socket events (connected, readable, writable),
- * handles the resulting operations, and keeps those subscriptions up to date.
+ * Other threads only queue commands for a session's shard, which its thread applies between
+ * selections; see {@link SelectorShard}.
  */
 public class SocketNIODataService implements Runnable {
 
+	/** Shards for a device: half its cores, as the VPN and client writer threads need the rest. */
+	public static final int DEFAULT_SHARD_COUNT =
+			Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
 	private final String TAG = TagKt.getTAG(this);
-	private final ReentrantLock nioSelectionLock = new ReentrantLock();
-	private final ReentrantLock nioHandlingLock = new ReentrantLock();
-	private final Selector selector = Selector.open();
 
-	private final SocketChannelReader reader;
-	private final SocketChannelWriter writer;
+	private final SelectorShard[] shards;
 
-	private final AppDatabase database;
+	// Idle sessions are expired on the first shard's thread, between selections
+	@Nullable
+	private volatile SessionManager sessionManager;
 
 	private volatile boolean shutdown = false;
 
+	// Batch state belongs to the VPN thread, the only caller of the command and batch methods
+	private boolean batching = false;
+
+	private volatile long deferredWakeups = 0;
+
 	
-	public SocketNIODataService(ClientPacketWriter clientPacketWriter, AppDatabase database) throws IOException {
-		reader = new SocketChannelReader(clientPacketWriter);
-		writer = new SocketChannelWriter(clientPacketWriter);
-		this.database = database;
+	public SocketNIODataService(ClientPacketWriter clientPacketWriter, FlowStore flowStore) throws IOException {
+		this(clientPacketWriter, flowStore, 1);
+	}
+
+	public SocketNIODataService(ClientPacketWriter clientPacketWriter, FlowStore flowStore, int shardCount) throws IOException {
+		if (shardCount < 1) {
+			throw new IllegalArgumentException("Need at least one selector shard, not " + shardCount);
+		}
+		shards = new SelectorShard[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			shards[i] = new SelectorShard(this, i, i == 0, clientPacketWriter, flowStore);
+		}
 	}
 
+	/**
+	 * Run the first shard on this thread, and every other shard on a thread of its own. Returns
+	 * once shut down.
+	 */
 	@Override
 	public void run() {
-		Log.d(TAG,"SocketNIODataService starting in background...");
-		runTask();
+		Log.d(TAG,"SocketNIODataService starting in background with " + shards.length + " shards...");
+		String name = Thread.currentThread().getName();
+		for (int i = 1; i < shards.length; i++) {
+			Thread thread = new Thread(shards[i], name + " " + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		shards[0].run();
 	}
 
-	public void registerSession(Session session) throws ClosedChannelException {
-		AbstractSelectableChannel channel = session.getChannel();
-
-		boolean isConnected = channel instanceof DatagramChannel
-				? ((DatagramChannel) channel).isConnected()
-				: ((SocketChannel) channel).isConnected();
-
-		Log.i(TAG, "Registering new session: " + session);
-
-		Lock selectorLock = lockSelector(selector);
-		try {
-			SelectionKey selectionKey = channel.register(selector,
-					isConnected
-							? SelectionKey.OP_READ
-							: SelectionKey.OP_CONNECT
-			);
-			session.setSelectionKey(selectionKey);
-			selectionKey.attach(session);
-			Log.d(TAG, "Registered selector successfully");
-		} finally {
-			selectorLock.unlock();
-		}
+	/** Expire the idle sessions of this manager from the NIO thread. */
+	public void setSessionManager(@Nullable SessionManager sessionManager) {
+		this.sessionManager = sessionManager;
 	}
 
-	private Lock lockSelector(Selector selector) {
-		boolean gotSelectionLock = nioSelectionLock.tryLock();
-		if (gotSelectionLock) return nioSelectionLock;
+	@Nullable
+	SessionManager getSessionManager() {
+		return sessionManager;
+	}
 
-		nioHandlingLock.lock(); // Ensure the NIO thread can't do anything on wakeup
-		selector.wakeup();
+	boolean isShutdown() {
+		return shutdown;
+	}
 
-		nioSelectionLock.lock(); // Actually get the lock we want
-		nioHandlingLock.unlock(); // Release the handling lock, which we no longer care about
+	public int getShardCount() {
+		return shards.length;
+	}
 
-		return nioSelectionLock;
+	/** The shard that owns a session, chosen by its flow's hash. */
+	public int shardOf(Session session) {
+		return Math.floorMod(session.getFlowKey().hashCode(), shards.length);
 	}
 
-	/**
-	 * If the selector is currently select()ing, wake it up (e.g. to register changes to
-	 * interestOps). If it's not (and so it probably will select() very soon anyway) do nothing.
-	 * This is designed to be run after changing readyOps, to ensure the new ops get monitored
-	 * immediately (and fire immediately, if already ready). Without this, that blocks.
-	 */
-	public void refreshSelect(Session session) {
-		boolean gotLock = nioSelectionLock.tryLock();
+	private SelectorShard shardFor(Session session) {
+		return shards[shardOf(session)];
+	}
 
-		if (!gotLock) {
-			session.getSelectionKey().selector().wakeup();
-		} else {
-			nioSelectionLock.unlock();
-		}
+	/** Start selecting for a new, fully populated session, on its shard's thread. */
+	public void registerSession(Session session) {
+		submit(session, SelectorShard.CMD_REGISTER);
+	}
+
+	/** Have the NIO thread write the session's pending client data, once the socket is writable. */
+	public void enableWrite(Session session) {
+		submit(session, SelectorShard.CMD_ENABLE_WRITE);
 	}
 
 	/**
-	 * Run the client-direction pump for a session. The SessionHandler thread calls this after a
-	 * window-opening ACK to flush staged data the window now permits (the upstream socket has no
-	 * new readiness, so the selector wouldn't re-run the pump). Caller holds the session monitor;
-	 * follow with {@link #refreshSelect} to pick up the resumed OP_READ.
+	 * Run the client-direction pump for a session on its NIO thread. The SessionHandler thread
+	 * asks for this after a window-opening ACK to flush staged data the window now permits (the
+	 * upstream socket has no new readiness, so the selector wouldn't re-run the pump). The pump
+	 * also resumes OP_READ, if backpressure had stopped it.
 	 */
 	public void pumpToClient(Session session){
-		reader.pumpToClient(session);
+		submit(session, SelectorShard.CMD_PUMP);
 	}
 
 	/**
-	 * Shut down the NIO thread
+	 * Have the NIO thread write the session's pending client data once its write flush deadline
+	 * passes, unless something pushes it out first.
 	 */
-	public void shutdown(){
-		this.shutdown = true;
-		selector.wakeup();
+	public void flushLater(Session session) {
+		submit(session, SelectorShard.CMD_FLUSH_LATER);
 	}
 
-	private void runTask(){
-		Log.i(TAG, "NIO selector is running...");
-		
-		while(!shutdown){
-			try {
-				nioSelectionLock.lockInterruptibly();
-				selector.select();
-			} catch (IOException e) {
-				Log.e(TAG,"Error in Selector.select(): " + e.getMessage());
-				try {
-					Thread.sleep(100);
-				} catch (InterruptedException ex) {
-					Log.e(TAG, e.toString());
-				}
-				continue;
-			} catch (InterruptedException ex) {
-				Log.i(TAG, "Select() interrupted");
-			} finally {
-				if (nioSelectionLock.isHeldByCurrentThread()) {
-					nioSelectionLock.unlock();
-				}
-			}
-
-			if (shutdown) {
-				break;
-			}
-
-			// A lock here makes it possible to reliably grab the selection lock above
-			nioHandlingLock.lock();
-			try {
-				Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
-
-				while (iterator.hasNext()) {
-					SelectionKey key = iterator.next();
-					Session session = ((Session) key.attachment());
-					synchronized (session) { // Sessions are locked during processing (no VPN data races)
-						try {
-							processSelectionKey(key);
-						} catch (IOException e) {
-							synchronized (key) {
-								key.cancel();
-							}
-						}
-					}
-
-					iterator.remove();
-					if (shutdown) {
-						break;
-					}
-				}
-			} finally {
-				nioHandlingLock.unlock();
-			}
-		}
-		Log.i(TAG, "NIO selector shutdown");
-	}
-
-	private void processSelectionKey(SelectionKey key) throws IOException {
-		if (!key.isValid()) {
-			Log.d(TAG,"Invalid SelectionKey");
-			return;
-		}
-
-		SelectableChannel channel = key.channel();
-
-		Session session = ((Session) key.attachment());
-		if (session == null) {
-			Log.w(TAG, "Key fired with no session attached");
-			return;
-		}
-		
-		if (channel instanceof SocketChannel && !session.isConnected() && key.isConnectable()) {
-			SocketChannel socketChannel = (SocketChannel) channel;
-
-			if (socketChannel.isConnectionPending()) {
-				boolean connected = socketChannel.finishConnect();
-				session.setConnected(connected);
-				session.getFlow().setTcpEstablishedReached(session.getFlow().getTcpEstablishedReached() || connected);
-				updateFlow(session.getFlow());
-				//TODO send syn ack to VPN here
-			} else {
-				throw new IllegalStateException("TCP channels must either be connected or pending connection");
-			}
-		}
-
-		if (isConnected(channel)) {
-			processConnectedSelection(key, session);
-		}
+	/** Stop selecting for a session that's being closed. */
+	public void unregisterSession(Session session) {
+		submit(session, SelectorShard.CMD_UNREGISTER);
 	}
 
-	private boolean isConnected(SelectableChannel channel) {
-		if (channel instanceof DatagramChannel) {
-			return ((DatagramChannel) channel).isConnected();
-		} else if (channel instanceof SocketChannel) {
-			return ((SocketChannel) channel).isConnected();
-		} else {
-			throw new IllegalArgumentException("isConnected on unexpected channel type: " + channel);
+	private void submit(Session session, int command) {
+		if (shardFor(session).submit(session, command, batching)) {
+			deferredWakeups++;
 		}
 	}
 
-	private void processConnectedSelection(SelectionKey key, Session session) {
-		// Whilst connected, we always want READ and not CONNECT events
-		session.unsubscribeKey(SelectionKey.OP_CONNECT);
-		session.subscribeKey(SelectionKey.OP_READ);
-		processSelectorRead(key, session);
-		processPendingWrite(key, session);
+	/**
+	 * Start a burst of packets from the VPN. Until {@link #endBatch}, commands only note that a
+	 * selector needs a wakeup, so a burst costs one wakeup per shard rather than one per packet.
+	 */
+	public void beginBatch() {
+		batching = true;
 	}
 
-	private void processSelectorRead(SelectionKey selectionKey, Session session) {
-		boolean canRead;
-		synchronized (selectionKey) {
-			// There's a race here that requires a lock, as isReadable requires isValid
-			canRead = selectionKey.isValid() && selectionKey.isReadable();
-		}
-
-		if (canRead) {
-			long bytesRead = reader.read(session);
-			session.getFlow().increaseIngress(1, bytesRead);
-			updateFlow(session.getFlow());
+	/**
+	 * End a burst started with {@link #beginBatch}, waking each selector once if any packet in it
+	 * queued the first command for it.
+	 */
+	public void endBatch() {
+		batching = false;
+		for (SelectorShard shard : shards) {
+			shard.endBatch();
 		}
 	}
 
-	private void processPendingWrite(SelectionKey selectionKey, Session session) {
-		// Nothing to write? Skip this entirely, and make sure we're not subscribed
-		if (!session.hasDataToSend() || !session.isDataForSendingReady()) {
-			session.unsubscribeKey(SelectionKey.OP_WRITE);
-			return;
+	/** Number of times a selector was woken to apply commands, over all shards. */
+	public long getSelectorWakeups() {
+		long wakeups = 0;
+		for (SelectorShard shard : shards) {
+			wakeups += shard.getSelectorWakeups();
 		}
+		return wakeups;
+	}
 
-		boolean canWrite;
-		synchronized (selectionKey) {
-			// There's a race here that requires a lock, as isReadable requires isValid
-			canWrite = selectionKey.isValid() && selectionKey.isWritable();
-		}
+	/** Number of selector wakeups that commands in a batch needed and left to the end of the batch. */
+	public long getDeferredWakeups() {
+		return deferredWakeups;
+	}
 
-		if (canWrite) {
-			session.unsubscribeKey(SelectionKey.OP_WRITE);
-			long bytesWritten = writer.write(session); // This will resubscribe to OP_WRITE if it can't complete
-			session.getFlow().increaseEgress(1, bytesWritten);
-			updateFlow(session.getFlow());
+	/**
+	 * Shut down every NIO thread
+	 */
+	public void shutdown(){
+		this.shutdown = true;
+		for (SelectorShard shard : shards) {
+			shard.shutdown();
 		}
 	}
-	private void updateFlow(LANFlow LANFlow) {
-		database.FlowDao().updateFlow(LANFlow);
-	}
 }
@@ -0,0 +1,283 @@
+package tech.httptoolkit.android.vpn.transport;
+
+import androidx.annotation.NonNull;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import tech.httptoolkit.android.vpn.transport.ip.IPAddress;
+
+/**
+ * Reusable read-only view over a raw IP packet. {@link #wrap} checks the IP and TCP/UDP headers
+ * once and records their offsets; after that every field is read straight from the buffer, so
+ * the policy checks and the session engine can share one parse of each packet without creating
+ * any objects. Addresses are exposed as raw words, IPv4 in the low 32 bits of the low word.
+ *
+ * The view is only valid until the buffer is reused for the next packet. Like IPv6Header, it
+ * takes the next header field of an IPv6 packet as its transport protocol.
+ */
+public final class PacketView {
+
+    public static final int PROTOCOL_ICMP = 1;
+    public static final int PROTOCOL_TCP = 6;
+    public static final int PROTOCOL_UDP = 17;
+    public static final int PROTOCOL_ICMPV6 = 58;
+
+    private static final int IPV4_MIN_HEADER_LENGTH = 20;
+    private static final int IPV6_HEADER_LENGTH = 40;
+    private static final int TCP_MIN_HEADER_LENGTH = 20;
+    private static final int UDP_HEADER_LENGTH = 8;
+
+    private static final int TCP_OPTION_END = 0;
+    private static final int TCP_OPTION_NOP = 1;
+    private static final int TCP_OPTION_SACK = 5;
+    private static final int TCP_OPTION_TIMESTAMP = 8;
+
+    private ByteBuffer buffer;
+    private int start;
+    private int version;
+    private int protocol;
+    private int ipHeaderLength;
+    private int totalLength;
+    private int transportHeaderLength;
+
+    /**
+     * Point this view at the packet starting at the buffer's position and ending at its limit.
+     * The buffer's position and limit are left untouched.
+     */
+    public void wrap(@NonNull ByteBuffer buffer) throws PacketHeaderException {
+        if (buffer.order() != ByteOrder.BIG_ENDIAN) {
+            throw new IllegalArgumentException("Packets must be read in network byte order");
+        }
+        this.buffer = buffer;
+        this.start = buffer.position();
+        int available = buffer.limit() - start;
+        if (available < 1) {
+            throw new PacketHeaderException("Empty packet");
+        }
+
+        version = (buffer.get(start) >> 4) & 0x0F;
+        if (version == 4) {
+            ipHeaderLength = (buffer.get(start) & 0x0F) * 4;
+            if (ipHeaderLength < IPV4_MIN_HEADER_LENGTH || available < ipHeaderLength) {
+                throw new PacketHeaderException("Truncated IPv4 header");
+            }
+            protocol = buffer.get(start + 9) & 0xFF;
+            totalLength = buffer.getShort(start + 2) & 0xFFFF;
+        } else if (version == 6) {
+            ipHeaderLength = IPV6_HEADER_LENGTH;
+            if (available < ipHeaderLength) {
+                throw new PacketHeaderException("Truncated IPv6 header");
+            }
+            protocol = buffer.get(start + 6) & 0xFF;
+            totalLength = (buffer.getShort(start + 4) & 0xFFFF) + IPV6_HEADER_LENGTH;
+        } else {
+            throw new PacketHeaderException("Invalid IP version: " + version);
+        }
+
+        if (protocol == PROTOCOL_TCP) {
+            if (available < ipHeaderLength + TCP_MIN_HEADER_LENGTH) {
+                throw new PacketHeaderException("Truncated TCP header");
+            }
+            transportHeaderLength = ((buffer.get(start + ipHeaderLength + 12) >> 4) & 0x0F) * 4;
+            if (transportHeaderLength < TCP_MIN_HEADER_LENGTH || available < ipHeaderLength + transportHeaderLength) {
+                throw new PacketHeaderException("Invalid TCP header length: " + transportHeaderLength);
+            }
+        } else if (protocol == PROTOCOL_UDP) {
+            if (available < ipHeaderLength + UDP_HEADER_LENGTH) {
+                throw new PacketHeaderException("Truncated UDP header");
+            }
+            transportHeaderLength = UDP_HEADER_LENGTH;
+        } else {
+            transportHeaderLength = 0;
+        }
+    }
+
+    @NonNull
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /** Absolute index of the first byte of the packet in {@link #getBuffer()}. */
+    public int getStart() {
+        return start;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public boolean isIPv6() {
+        return version == 6;
+    }
+
+    /** The IP protocol number, e.g. {@link #PROTOCOL_TCP}. */
+    public int getProtocol() {
+        return protocol;
+    }
+
+    public boolean isTcp() {
+        return protocol == PROTOCOL_TCP;
+    }
+
+    public boolean isUdp() {
+        return protocol == PROTOCOL_UDP;
+    }
+
+    public boolean isIcmp() {
+        return protocol == (version == 6 ? PROTOCOL_ICMPV6 : PROTOCOL_ICMP);
+    }
+
+    public int getIpHeaderLength() {
+        return ipHeaderLength;
+    }
+
+    /** Packet length according to the IP header. */
+    public int getTotalLength() {
+        return totalLength;
+    }
+
+    /** Offset of the transport payload from the start of the packet. */
+    public int getPayloadOffset() {
+        return ipHeaderLength + transportHeaderLength;
+    }
+
+    /** Whether the packet carries anything beyond its headers for DPI to look at. */
+    public boolean hasPayloadForDpi() {
+        return !isTcp() || getPayloadOffset() < totalLength;
+    }
+
+    public int getSourcePort() {
+        return hasPorts() ? buffer.getShort(start + ipHeaderLength) & 0xFFFF : 0;
+    }
+
+    public int getDestinationPort() {
+        return hasPorts() ? buffer.getShort(start + ipHeaderLength + 2) & 0xFFFF : 0;
+    }
+
+    private boolean hasPorts() {
+        return transportHeaderLength != 0;
+    }
+
+    /** TCP flags byte (FIN is bit 0), or 0 for other protocols. */
+    public int getTcpFlags() {
+        return isTcp() ? buffer.get(start + ipHeaderLength + 13) & 0xFF : 0;
+    }
+
+    public long getTcpSequenceNumber() {
+        return buffer.getInt(start + ipHeaderLength + 4) & 0xFFFFFFFFL;
+    }
+
+    public long getTcpAckNumber() {
+        return buffer.getInt(start + ipHeaderLength + 8) & 0xFFFFFFFFL;
+    }
+
+    /** The advertised window, before scaling. */
+    public int getTcpWindowSize() {
+        return buffer.getShort(start + ipHeaderLength + 14) & 0xFFFF;
+    }
+
+    /**
+     * The sender's value (TSval) of the TCP timestamp option, or 0 without one, as TCPHeader has
+     * it. Returns -1 if the options carry anything but padding, SACK blocks and the timestamp,
+     * for callers that then fall back to a full parse.
+     */
+    public long getTcpTimestampSender() {
+        int offset = start + ipHeaderLength + TCP_MIN_HEADER_LENGTH;
+        int end = start + ipHeaderLength + transportHeaderLength;
+        long timestamp = 0;
+        while (offset < end) {
+            int kind = buffer.get(offset) & 0xFF;
+            if (kind == TCP_OPTION_END || kind == TCP_OPTION_NOP) {
+                offset++;
+                continue;
+            }
+            if (offset + 1 >= end) return -1;
+            int size = buffer.get(offset + 1) & 0xFF;
+            if (size < 2 || offset + size > end) return -1;
+
+            if (kind == TCP_OPTION_TIMESTAMP && size == 10) {
+                timestamp = buffer.getInt(offset + 2) & 0xFFFFFFFFL;
+            } else if (kind != TCP_OPTION_SACK) {
+                return -1;
+            }
+            offset += size;
+        }
+        return timestamp;
+    }
+
+    public long getSourceAddressHigh() {
+        return version == 6 ? buffer.getLong(start + 8) : 0;
+    }
+
+    public long getSourceAddressLow() {
+        return version == 6 ? buffer.getLong(start + 16) : buffer.getInt(start + 12) & 0xFFFFFFFFL;
+    }
+
+    public long getDestinationAddressHigh() {
+        return version == 6 ? buffer.getLong(start + 24) : 0;
+    }
+
+    public long getDestinationAddressLow() {
+        return version == 6 ? buffer.getLong(start + 32) : buffer.getInt(start + 16) & 0xFFFFFFFFL;
+    }
+
+    /** Multicast, or the IPv4 limited broadcast address. */
+    public boolean isMulticastDestination() {
+        if (version == 6) {
+            return (buffer.get(start + 24) & 0xFF) == 0xFF;
+        }
+        int destination = buffer.getInt(start + 16);
+        return (destination & 0xF0000000) == 0xE0000000 || destination == 0xFFFFFFFF;
+    }
+
+    // The methods below copy data out of the packet, for the paths that need objects
+
+    @NonNull
+    public IPAddress copySourceAddress() {
+        return new IPAddress(copyAddress(sourceAddressOffset()));
+    }
+
+    @NonNull
+    public IPAddress copyDestinationAddress() {
+        return new IPAddress(copyAddress(destinationAddressOffset()));
+    }
+
+    @NonNull
+    public InetSocketAddress getSourceSocketAddress() {
+        return socketAddress(sourceAddressOffset(), getSourcePort());
+    }
+
+    @NonNull
+    public InetSocketAddress getDestinationSocketAddress() {
+        return socketAddress(destinationAddressOffset(), getDestinationPort());
+    }
+
+    private int sourceAddressOffset() {
+        return version == 6 ? 8 : 12;
+    }
+
+    private int destinationAddressOffset() {
+        return version == 6 ? 24 : 16;
+    }
+
+    private byte[] copyAddress(int offset) {
+        byte[] address = new byte[version == 6 ? 16 : 4];
+        for (int i = 0; i < address.length; i++) {
+            address[i] = buffer.get(start + offset + i);
+        }
+        return address;
+    }
+
+    private InetSocketAddress socketAddress(int offset, int port) {
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(copyAddress(offset)), port);
+        } catch (UnknownHostException e) {
+            // Only thrown for addresses of the wrong length, which wrap() rules out
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -48,4 +48,12 @@ public abstract class IPHeader {
     public abstract int getTotalLength();
     public abstract IPHeader clone();
     public abstract byte[] headerData();
+
+    /** Write this header to the start of a packet buffer, as {@link #headerData()} would. */
+    public abstract void writeHeaderData(byte[] buffer);
+
+    /** Length of this header in bytes. */
+    public int getHeaderLength() {
+        return getTotalLength() - getPayloadLength();
+    }
 }
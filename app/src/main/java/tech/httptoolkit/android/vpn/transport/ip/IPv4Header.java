@@ -20,6 +20,7 @@ import androidx.annotation.NonNull;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 
 import tech.httptoolkit.android.vpn.transport.PacketHeaderException;
 import tech.httptoolkit.android.vpn.util.PacketUtil;
@@ -283,7 +284,11 @@ public class IPv4Header extends IPHeader {
      */
     public byte[] headerData() {
         final byte[] buffer = new byte[this.getIPHeaderLength()];
+        writeHeaderData(buffer);
+        return buffer;
+    }
 
+    public void writeHeaderData(byte[] buffer) {
         buffer[0] = (byte) ((this.getInternetHeaderLength() & 0xF) | 0x40);
         buffer[1] = (byte) ((this.getDscpOrTypeOfService() << 2) & (this.getEcn() & 0xFF));
         buffer[2] = (byte) (this.getTotalLength() >> 8);
@@ -304,6 +309,7 @@ public class IPv4Header extends IPHeader {
         //destination ip address
         System.arraycopy(this.getDestinationIP().getBytes(), 0, buffer, 16, 4);
 
-        return buffer;
+        //options aren't copied, clear their space in case the buffer is reused
+        Arrays.fill(buffer, 20, this.getIPHeaderLength(), (byte) 0);
     }
 }
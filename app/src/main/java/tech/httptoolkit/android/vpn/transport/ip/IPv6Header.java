@@ -116,7 +116,11 @@ public class IPv6Header extends IPHeader {
 
     public byte[] headerData() {
         final byte[] buffer = new byte[40];
+        writeHeaderData(buffer);
+        return buffer;
+    }
 
+    public void writeHeaderData(byte[] buffer) {
         buffer[0] = (byte) (((this.getIpVersion() & 0xF) << 4) | this.getTrafficClass());
         buffer[1] = (byte) (((this.getTrafficClass() & 0xF) << 4) | (this.getFlowLabel() & 0xF));
         buffer[2] = (byte) ((this.getFlowLabel() >> 8) & 0xFF);
@@ -130,7 +134,5 @@ public class IPv6Header extends IPHeader {
         System.arraycopy(this.getSourceIP().getBytes(), 0, buffer, 8, 16);
         //destination ip address
         System.arraycopy(this.getDestinationIP().getBytes(), 0, buffer, 24, 16);
-
-        return buffer;
     }
 }
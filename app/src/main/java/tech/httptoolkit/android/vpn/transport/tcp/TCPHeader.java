@@ -47,7 +47,9 @@ public class TCPHeader implements ITransportHeader{
 	//vars below need to be set via setters when copy
 	private int maxSegmentSize = 0;
 	private int windowScale = 0;
+	private boolean hasWindowScaleOption = false;
 	private boolean isSelectiveAckPermitted = false;
+	private boolean hasTimestampOption = false;
 	private int timeStampSender = 0;
 	private int timeStampReplyTo = 0;
 
@@ -250,6 +252,20 @@ public class TCPHeader implements ITransportHeader{
 	void setWindowScale(int windowScale) {
 		this.windowScale = windowScale;
 	}
+	/** Whether the header carried the window scale option, which only applies if both SYNs do. */
+	public boolean hasWindowScaleOption() {
+		return hasWindowScaleOption;
+	}
+	void setWindowScaleOption(boolean hasWindowScaleOption) {
+		this.hasWindowScaleOption = hasWindowScaleOption;
+	}
+	/** Whether the packet carried the timestamps option (RFC 7323). */
+	public boolean hasTimestampOption() {
+		return hasTimestampOption;
+	}
+	void setTimestampOption(boolean hasTimestampOption) {
+		this.hasTimestampOption = hasTimestampOption;
+	}
 	boolean isSelectiveAckPermitted() {
 		return isSelectiveAckPermitted;
 	}
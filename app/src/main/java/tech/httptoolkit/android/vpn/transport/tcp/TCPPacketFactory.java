@@ -21,6 +21,7 @@ import androidx.annotation.Nullable;
 import android.util.Log;
 
 import tech.httptoolkit.android.vpn.Packet;
+import tech.httptoolkit.android.vpn.PacketBuffer;
 
 import tech.httptoolkit.android.vpn.transport.ip.IPAddress;
 import tech.httptoolkit.android.vpn.transport.ip.IPHeader;
@@ -28,7 +29,7 @@ import tech.httptoolkit.android.vpn.transport.PacketHeaderException;
 import tech.httptoolkit.android.vpn.util.PacketUtil;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Random;
 
@@ -53,7 +54,9 @@ public class TCPPacketFactory {
 
 		tcp.setMaxSegmentSize(tcpheader.getMaxSegmentSize());
 		tcp.setWindowScale(tcpheader.getWindowScale());
+		tcp.setWindowScaleOption(tcpheader.hasWindowScaleOption());
 		tcp.setSelectiveAckPermitted(tcpheader.isSelectiveAckPermitted());
+		tcp.setTimestampOption(tcpheader.hasTimestampOption());
 		tcp.setTimeStampSender(tcpheader.getTimeStampSender());
 		tcp.setTimeStampReplyTo(tcpheader.getTimeStampReplyTo());
 		return tcp;
@@ -98,11 +101,12 @@ public class TCPPacketFactory {
 		Date currentDate = new Date();
 		int senderTimestamp = (int)currentDate.getTime();
 		tcp.setTimeStampSender(senderTimestamp);
+		setTimestampOption(tcp);
 		
 		//recalculate IP length
 		ip.setPayloadLength(tcp.getTCPHeaderLength());
 
-		return createPacketData(ip, tcp, null);
+		return createPacketData(ip, tcp, null, 0, 0, null);
 	}
 
 	public static byte[] createFinData(IPHeader ip, TCPHeader tcp, long ackNumber, long seqNumber, int timeSender, int timeReplyTo){
@@ -133,8 +137,12 @@ public class TCPPacketFactory {
 		tcp.setIsNS(false);
 		tcp.setIsURG(false);
 		
-		//remove any option field
-		tcp.setOptions(null);
+		//remove any option field, except timestamps once they're in use
+		if (tcp.hasTimestampOption()) {
+			setTimestampOption(tcp);
+		} else {
+			tcp.setOptions(null);
+		}
 
 		//window size should be zero
 		tcp.setWindowSize(0);
@@ -142,7 +150,7 @@ public class TCPPacketFactory {
 		//recalculate IP length
 		ip.setPayloadLength(tcp.getTCPHeaderLength());
 
-		return createPacketData(ip, tcp, null);
+		return createPacketData(ip, tcp, null, 0, 0, null);
 	}
 
 	/**
@@ -197,7 +205,7 @@ public class TCPPacketFactory {
 		//recalculate IP length
 		ip.setPayloadLength(tcp.getTCPHeaderLength());
 
-		return createPacketData(ip, tcp, null);
+		return createPacketData(ip, tcp, null, 0, 0, null);
 	}
 
 	/**
@@ -208,6 +216,25 @@ public class TCPPacketFactory {
 	 * @return byte[]
 	 */
 	public static byte[] createResponseAckData(IPHeader ipHeader, TCPHeader tcpheader, long ackToClient){
+		return createResponseAckData(ipHeader, tcpheader, ackToClient, null);
+	}
+
+	/**
+	 * Like {@link #createResponseAckData(IPHeader, TCPHeader, long)}, but advertises the given
+	 * window field and encodes the packet into a buffer from the writer's pool.
+	 */
+	public static void writeResponseAckData(@NonNull PacketBuffer out, IPHeader ipHeader, TCPHeader tcpheader,
+											long ackToClient, int windowSize){
+		createResponseAckData(ipHeader, tcpheader, ackToClient, windowSize, out);
+	}
+
+	private static byte[] createResponseAckData(IPHeader ipHeader, TCPHeader tcpheader, long ackToClient,
+												@Nullable PacketBuffer out){
+		return createResponseAckData(ipHeader, tcpheader, ackToClient, tcpheader.getWindowSize(), out);
+	}
+
+	private static byte[] createResponseAckData(IPHeader ipHeader, TCPHeader tcpheader, long ackToClient,
+												int windowSize, @Nullable PacketBuffer out){
 		IPHeader ip = ipHeader.clone();
 		TCPHeader tcp = copyTCPHeader(tcpheader);
 		
@@ -226,6 +253,7 @@ public class TCPPacketFactory {
 		
 		tcp.setAckNumber(ackToClient);
 		tcp.setSequenceNumber(seqNumber);
+		tcp.setWindowSize(windowSize);
 
 		//ACK
 		tcp.setIsACK(true);
@@ -238,11 +266,12 @@ public class TCPPacketFactory {
 		Date currentdate = new Date();
 		int sendertimestamp = (int)currentdate.getTime();
 		tcp.setTimeStampSender(sendertimestamp);
+		setTimestampOption(tcp);
 		
 		//recalculate IP length
 		ip.setPayloadLength(tcp.getTCPHeaderLength());
 
-		return createPacketData(ip, tcp, null);
+		return createPacketData(ip, tcp, null, 0, 0, out);
 	}
 
 	/**
@@ -254,6 +283,27 @@ public class TCPPacketFactory {
 	 */
 	public static byte[] createResponsePacketData(IPHeader ip, TCPHeader tcp, byte[] packetData, boolean isPsh,
 												  long ackNumber, long seqNumber, int timeSender, int timeReplyto){
+		return createResponsePacketData(ip, tcp, packetData, 0, packetData == null ? 0 : packetData.length,
+				isPsh, ackNumber, seqNumber, timeSender, timeReplyto, tcp.getWindowSize(), null);
+	}
+
+	/**
+	 * Like {@link #createResponsePacketData(IPHeader, TCPHeader, byte[], boolean, long, long, int, int)},
+	 * but takes the body from a slice of an array, advertises the given window field and encodes
+	 * the packet into a buffer from the writer's pool.
+	 */
+	public static void writeResponsePacketData(@NonNull PacketBuffer out, IPHeader ip, TCPHeader tcp,
+											   byte[] packetData, int dataOffset, int dataLength, boolean isPsh,
+											   long ackNumber, long seqNumber, int timeSender, int timeReplyto,
+											   int windowSize){
+		createResponsePacketData(ip, tcp, packetData, dataOffset, dataLength,
+				isPsh, ackNumber, seqNumber, timeSender, timeReplyto, windowSize, out);
+	}
+
+	private static byte[] createResponsePacketData(IPHeader ip, TCPHeader tcp, byte[] packetData,
+												   int dataOffset, int dataLength, boolean isPsh,
+												   long ackNumber, long seqNumber, int timeSender, int timeReplyto,
+												   int windowSize, @Nullable PacketBuffer out){
 		IPHeader ipHeader = ip.clone();
 		TCPHeader tcpHeader = copyTCPHeader(tcp);
 		
@@ -267,6 +317,7 @@ public class TCPPacketFactory {
 		
 		tcpHeader.setAckNumber(ackNumber);
 		tcpHeader.setSequenceNumber(seqNumber);
+		tcpHeader.setWindowSize(windowSize);
 
 		//ACK is always sent
 		tcpHeader.setIsACK(true);
@@ -276,15 +327,12 @@ public class TCPPacketFactory {
 		
 		tcpHeader.setTimeStampSender(timeSender);
 		tcpHeader.setTimeStampReplyTo(timeReplyto);
+		setTimestampOption(tcpHeader);
 
 		//recalculate IP length
-		int payloadLen =  tcpHeader.getTCPHeaderLength();
-		if(packetData != null){
-			payloadLen += packetData.length;
-		}
-		ipHeader.setPayloadLength(payloadLen);
+		ipHeader.setPayloadLength(tcpHeader.getTCPHeaderLength() + dataLength);
 
-		return createPacketData(ipHeader, tcpHeader, packetData);
+		return createPacketData(ipHeader, tcpHeader, packetData, dataOffset, dataLength, out);
 	}
 
 	/**
@@ -294,6 +342,16 @@ public class TCPPacketFactory {
 	 * @return class Packet
 	 */
 	public static Packet createSynAckPacketData(IPHeader ip, TCPHeader tcp){
+		return createSynAckPacketData(ip, tcp, tcp.getWindowSize(), -1);
+	}
+
+	/**
+	 * create SYN-ACK packet data advertising our own receive window
+	 * @param windowSize window field, which is never scaled in a SYN-ACK
+	 * @param windowScale window scale to offer (RFC 7323), or -1 to offer none
+	 * @return class Packet
+	 */
+	public static Packet createSynAckPacketData(IPHeader ip, TCPHeader tcp, int windowSize, int windowScale){
 		IPHeader ipheader = ip.clone();
 		TCPHeader tcpheader = copyTCPHeader(tcp);
 		
@@ -324,6 +382,28 @@ public class TCPPacketFactory {
 		//SYN-ACK
 		tcpheader.setIsACK(true);
 		tcpheader.setIsSYN(true);
+		tcpheader.setWindowSize(windowSize);
+
+		if (windowScale >= 0 || tcpheader.hasTimestampOption()) {
+			// The client's MSS echoed back, then window scaling and timestamps if it offered them.
+			// SACK isn't implemented, so SACK-permitted is never offered.
+			ByteBuffer options = ByteBuffer.allocate(20);
+			int mss = tcpheader.getMaxSegmentSize();
+			if (mss > 0) {
+				options.put((byte) MAX_SEGMENT_SIZE).put((byte) 4).putShort((short) mss);
+			}
+			if (windowScale >= 0) {
+				options.put((byte) NO_OPERATION).put((byte) WINDOW_SCALE).put((byte) 3).put((byte) windowScale);
+				tcpheader.setWindowScale(windowScale);
+				tcpheader.setWindowScaleOption(true);
+			}
+			if (tcpheader.hasTimestampOption()) {
+				// Values are filled in when the header is written
+				options.put(TIMESTAMP_OPTION);
+			}
+			tcpheader.setOptions(Arrays.copyOf(options.array(), options.position()));
+			tcpheader.setDataOffset(5 + options.position() / 4);
+		}
 		
 		//timestamp in options fields
 		tcpheader.setTimeStampReplyTo(tcpheader.getTimeStampSender());
@@ -331,7 +411,7 @@ public class TCPPacketFactory {
 		int sendertimestamp = (int)currentdate.getTime();
 		tcpheader.setTimeStampSender(sendertimestamp);
 		
-		return new Packet(ipheader, tcpheader, createPacketData(ipheader, tcpheader, null));
+		return new Packet(ipheader, tcpheader, createPacketData(ipheader, tcpheader, null, 0, 0, null));
 	}
 
 	/**
@@ -339,80 +419,79 @@ public class TCPPacketFactory {
 	 * @param ipHeader IPv4Header object
 	 * @param tcpheader TCPHeader object
 	 * @param data array of byte (packet body)
-	 * @return array of byte
+	 * @param out pooled buffer to encode into, or null to allocate an array of the exact size
+	 * @return array of byte holding the packet
 	 */
-    private static byte[] createPacketData(IPHeader ipHeader, TCPHeader tcpheader, @Nullable byte[] data){
-		int dataLength = 0;
-		if(data != null){
-			dataLength = data.length;
+    private static byte[] createPacketData(IPHeader ipHeader, TCPHeader tcpheader, @Nullable byte[] data,
+										   int dataOffset, int dataLength, @Nullable PacketBuffer out){
+		if(data == null){
+			dataLength = 0;
 		}
 
 		ipHeader.setPayloadLength(tcpheader.getTCPHeaderLength() + dataLength);
-		byte[] buffer = new byte[ipHeader.getTotalLength()];
-		byte[] ipBuffer = ipHeader.headerData();
-		byte[] tcpBuffer = createTCPHeaderData(tcpheader);
+		int totalLength = ipHeader.getTotalLength();
+		byte[] buffer;
+		if (out == null) {
+			buffer = new byte[totalLength];
+		} else {
+			out.setLength(totalLength);
+			buffer = out.array();
+		}
 
-		System.arraycopy(ipBuffer, 0, buffer, 0, ipBuffer.length);
-		System.arraycopy(tcpBuffer, 0, buffer, ipBuffer.length, tcpBuffer.length);
+		ipHeader.writeHeaderData(buffer);
+		int tcpStart = ipHeader.getHeaderLength();
+		int tcpLength = tcpheader.getTCPHeaderLength();
+		writeTCPHeaderData(tcpheader, buffer, tcpStart);
 		if(dataLength > 0){
-			int offset = ipBuffer.length + tcpBuffer.length;
-			System.arraycopy(data, 0, buffer, offset, dataLength);
+			System.arraycopy(data, dataOffset, buffer, tcpStart + tcpLength, dataLength);
 		}
 
 		ipHeader.calculateIpChecksum(buffer);
 
 		//zero out TCP header checksum first
-		byte[] zero = {0, 0};
-		int tcpStart = ipBuffer.length;
-		System.arraycopy(zero, 0, buffer, tcpStart + 16, 2);
-		byte[] tcpChecksum = PacketUtil.calculateTCPHeaderChecksum(buffer, tcpStart, tcpBuffer.length + dataLength ,
-				ipHeader);
+		buffer[tcpStart + 16] = 0;
+		buffer[tcpStart + 17] = 0;
+		int tcpChecksum = PacketUtil.calculateTCPChecksum(buffer, tcpStart, tcpLength + dataLength, ipHeader);
 		
 		//write new checksum back to array
-		System.arraycopy(tcpChecksum, 0, buffer,tcpStart + 16, 2);
+		buffer[tcpStart + 16] = (byte) (tcpChecksum >> 8);
+		buffer[tcpStart + 17] = (byte) tcpChecksum;
 
 		return buffer;
 	}
 	
 	/**
-	 * create array of byte from a given TCPHeader object
+	 * write a given TCPHeader object into a packet buffer
 	 * @param header instance of TCPHeader
-	 * @return array of byte
+	 * @param packet array of byte to write to
+	 * @param start offset of the TCP header in the packet
 	 */
-	private static byte[] createTCPHeaderData(TCPHeader header){
-		final byte[] buffer = new byte[header.getTCPHeaderLength()];
-		buffer[0] = (byte)(header.getSourcePort() >> 8);
-		buffer[1] = (byte)(header.getSourcePort());
-		buffer[2] = (byte)(header.getDestinationPort() >> 8);
-		buffer[3] = (byte)(header.getDestinationPort());
+	private static void writeTCPHeaderData(TCPHeader header, byte[] packet, int start){
+		packet[start] = (byte)(header.getSourcePort() >> 8);
+		packet[start + 1] = (byte)(header.getSourcePort());
+		packet[start + 2] = (byte)(header.getDestinationPort() >> 8);
+		packet[start + 3] = (byte)(header.getDestinationPort());
 
-		final ByteBuffer sequenceNumber = ByteBuffer.allocate(4);
-		sequenceNumber.order(ByteOrder.BIG_ENDIAN);
-		sequenceNumber.putInt((int)header.getSequenceNumber());
-		
 		//sequence number
-		System.arraycopy(sequenceNumber.array(), 0, buffer, 4, 4);
-
-		final ByteBuffer ackNumber = ByteBuffer.allocate(4);
-		ackNumber.order(ByteOrder.BIG_ENDIAN);
-		ackNumber.putInt((int)header.getAckNumber());
-		System.arraycopy(ackNumber.array(), 0, buffer, 8, 4);
+		PacketUtil.writeIntToBytes((int)header.getSequenceNumber(), packet, start + 4);
+		PacketUtil.writeIntToBytes((int)header.getAckNumber(), packet, start + 8);
 		
-		buffer[12] = (byte) (header.isNS() ? (header.getDataOffset() << 4) | 0x1
+		packet[start + 12] = (byte) (header.isNS() ? (header.getDataOffset() << 4) | 0x1
 				: header.getDataOffset() << 4);
-		buffer[13] = (byte)header.getTcpFlags();
+		packet[start + 13] = (byte)header.getTcpFlags();
 
-		buffer[14] = (byte)(header.getWindowSize() >> 8);
-		buffer[15] = (byte)header.getWindowSize();
+		packet[start + 14] = (byte)(header.getWindowSize() >> 8);
+		packet[start + 15] = (byte)header.getWindowSize();
 
-		buffer[16] = (byte)(header.getChecksum() >> 8);
-		buffer[17] = (byte)header.getChecksum();
+		packet[start + 16] = (byte)(header.getChecksum() >> 8);
+		packet[start + 17] = (byte)header.getChecksum();
 
-		buffer[18] = (byte)(header.getUrgentPointer() >> 8);
-		buffer[19] = (byte)header.getUrgentPointer();
+		packet[start + 18] = (byte)(header.getUrgentPointer() >> 8);
+		packet[start + 19] = (byte)header.getUrgentPointer();
 
 		//set timestamp for both sender and reply to
 		final byte[] options = header.getOptions();
+		int optionsLength = 0;
 		if (options != null) {
 			for (int i = 0; i < options.length; i++) {
 				final byte kind = options[i];
@@ -431,12 +510,14 @@ public class TCPPacketFactory {
 					}
 				}
 			}
-			if (options.length > 0) {
-				System.arraycopy(options, 0, buffer, 20, options.length);
+			optionsLength = options.length;
+			if (optionsLength > 0) {
+				System.arraycopy(options, 0, packet, start + 20, optionsLength);
 			}
 		}
 
-		return buffer;
+		//pad any remaining header space, in case the buffer is reused
+		Arrays.fill(packet, start + 20 + optionsLength, start + header.getTCPHeaderLength(), (byte) 0);
 	}
 	/**
 	 * create a TCP Header from a given byte array
@@ -482,6 +563,19 @@ public class TCPPacketFactory {
 //	private static final int SELECTIVE_ACK = 5;
 	private static final int TIME_STAMP = 8;
 
+	// NOP, NOP, then the timestamps option, its values left for writeTCPHeaderData
+	private static final byte[] TIMESTAMP_OPTION = { NO_OPERATION, NO_OPERATION, TIME_STAMP, 10, 0, 0, 0, 0, 0, 0, 0, 0 };
+
+	/**
+	 * Once the client has negotiated timestamps (RFC 7323), every segment but a RST must carry
+	 * them: give a reply built from one of its headers the timestamps option alone.
+	 */
+	private static void setTimestampOption(TCPHeader tcp) {
+		if (!tcp.hasTimestampOption()) return;
+		tcp.setOptions(TIMESTAMP_OPTION.clone());
+		tcp.setDataOffset(5 + TIMESTAMP_OPTION.length / 4);
+	}
+
 	private static void handleTcpOptions(@NonNull TCPHeader header, @NonNull ByteBuffer packet, int optionsSize) {
 		int index = 0;
 
@@ -503,12 +597,14 @@ public class TCPPacketFactory {
 					break;
 				case WINDOW_SCALE:
 					header.setWindowScale(packet.get());
+					header.setWindowScaleOption(true);
 					index++;
 					break;
 				case SELECTIVE_ACK_PERMITTED:
 					header.setSelectiveAckPermitted(true);
 					break;
 				case TIME_STAMP:
+					header.setTimestampOption(true);
 					header.setTimeStampSender(packet.getInt());
 					header.setTimeStampReplyTo(packet.getInt());
 					index += 8;
@@ -1,7 +1,9 @@
 package tech.httptoolkit.android.vpn.transport.udp;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
+import tech.httptoolkit.android.vpn.PacketBuffer;
 import tech.httptoolkit.android.vpn.transport.ip.IPAddress;
 import tech.httptoolkit.android.vpn.transport.PacketHeaderException;
 import tech.httptoolkit.android.vpn.transport.ip.IPHeader;
@@ -35,14 +37,32 @@ public class UDPPacketFactory {
 	 * @return array of byte
 	 */
 	public static byte[] createResponsePacket(IPHeader ip, UDPHeader udp, byte[] packetData){
+		return createResponsePacket(ip, udp, packetData, 0, packetData == null ? 0 : packetData.length, null);
+	}
+
+	/**
+	 * Like {@link #createResponsePacket(IPHeader, UDPHeader, byte[])}, but takes the body from
+	 * a slice of an array and encodes the packet into a buffer from the writer's pool.
+	 */
+	public static void writeResponsePacket(@NonNull PacketBuffer out, IPHeader ip, UDPHeader udp,
+										   byte[] packetData, int dataOffset, int dataLength){
+		createResponsePacket(ip, udp, packetData, dataOffset, dataLength, out);
+	}
+
+	/** Size of the response {@link #createResponsePacket} would build for a body of dataLength bytes. */
+	public static int responsePacketLength(IPHeader ip, int dataLength){
+		return ip.getHeaderLength() + 8 + dataLength;
+	}
+
+	private static byte[] createResponsePacket(IPHeader ip, UDPHeader udp, byte[] packetData,
+											   int dataOffset, int dataLength, @Nullable PacketBuffer out){
 		byte[] buffer;
-		int udpLen = 8;
-		if(packetData != null){
-			udpLen += packetData.length;
+		if(packetData == null){
+			dataLength = 0;
 		}
+		int udpLen = 8 + dataLength;
 		int srcPort = udp.getDestinationPort();
 		int destPort = udp.getSourcePort();
-		short checksum = 0;
 
 		IPHeader ipHeader = ip.clone();
 
@@ -54,42 +74,40 @@ public class UDPPacketFactory {
 		//ip's length is the length of the entire packet => IP header length + UDP header length (8) + UDP body length
 		ipHeader.setPayloadLength(udpLen);
 		int totalLength = ipHeader.getTotalLength();
-		
-		buffer = new byte[totalLength];
-		byte[] ipData = ipHeader.headerData();
+
+		if (out == null) {
+			buffer = new byte[totalLength];
+		} else {
+			out.setLength(totalLength);
+			buffer = out.array();
+		}
+		ipHeader.writeHeaderData(buffer);
+		int ipHeaderLength = ipHeader.getHeaderLength();
 
 		// clear IP checksum
-		ipData[10] = ipData[11] = 0;
+		buffer[10] = buffer[11] = 0;
 
 		//calculate checksum for IP header
-		byte[] ipChecksum = PacketUtil.calculateChecksum(ipData, 0, ipData.length);
+		byte[] ipChecksum = PacketUtil.calculateChecksum(buffer, 0, ipHeaderLength);
 		//write result of checksum back to buffer
-		System.arraycopy(ipChecksum, 0, ipData, 10, 2);
-		System.arraycopy(ipData, 0, buffer, 0, ipData.length);
-		
-		//copy UDP header to buffer
-		int start = ipData.length;
-		byte[] intContainer = new byte[4];
-		PacketUtil.writeIntToBytes(srcPort, intContainer, 0);
-		//extract the last two bytes of int value
-		System.arraycopy(intContainer,2,buffer,start,2);
-		start += 2;
-		
-		PacketUtil.writeIntToBytes(destPort, intContainer, 0);
-		System.arraycopy(intContainer, 2, buffer, start, 2);
-		start += 2;
-		
-		PacketUtil.writeIntToBytes(udpLen, intContainer, 0);
-		System.arraycopy(intContainer, 2, buffer, start, 2);
-		start += 2;
+		System.arraycopy(ipChecksum, 0, buffer, 10, 2);
 		
-		PacketUtil.writeIntToBytes(checksum, intContainer, 0);
-		System.arraycopy(intContainer, 2, buffer, start, 2);
-		start += 2;
+		//write UDP header to buffer
+		int start = ipHeaderLength;
+		buffer[start] = (byte) (srcPort >> 8);
+		buffer[start + 1] = (byte) srcPort;
+		buffer[start + 2] = (byte) (destPort >> 8);
+		buffer[start + 3] = (byte) destPort;
+		buffer[start + 4] = (byte) (udpLen >> 8);
+		buffer[start + 5] = (byte) udpLen;
+		//checksum is optional, leave it zero
+		buffer[start + 6] = 0;
+		buffer[start + 7] = 0;
+		start += 8;
 		
 		//now copy udp data
-		if (packetData != null) {
-			System.arraycopy(packetData, 0, buffer, start, packetData.length);
+		if (dataLength > 0) {
+			System.arraycopy(packetData, dataOffset, buffer, start, dataLength);
 		}
 
 		return buffer;
@@ -21,7 +21,6 @@ import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.Enumeration;
 
 import androidx.annotation.NonNull;
@@ -219,27 +218,45 @@ public class PacketUtil {
 	}
 
 	public static byte[] calculateTCPHeaderChecksum(byte[] data, int offset, int tcplength, IPHeader ipHeader){
-		// TODO: Optmize getting/setting the TCP pseudo header
-		byte[] pseudoTcpHeader = ipHeader.getTcpPseudoHeader((short)tcplength).array();
-		int buffersize = tcplength + pseudoTcpHeader.length;
-		boolean odd = false;
-		if(buffersize % 2 != 0){
-			buffersize++;
-			odd = true;
-		}
-		ByteBuffer buffer = ByteBuffer.allocate(buffersize);
-		buffer.order(ByteOrder.BIG_ENDIAN);
-		buffer.put(pseudoTcpHeader);
+		int checksum = calculateTCPChecksum(data, offset, tcplength, ipHeader);
+		return new byte[]{(byte)(checksum >> 8), (byte)checksum};
+	}
 
-		//add actual header + data
-		buffer.put(data, offset, tcplength);
+	/**
+	 * TCP checksum of the segment at data[offset, offset + tcplength), including the pseudo
+	 * header for ipHeader's addresses. The segment is summed in place rather than copied.
+	 * @return the checksum in the low 16 bits
+	 */
+	public static int calculateTCPChecksum(byte[] data, int offset, int tcplength, IPHeader ipHeader){
+		byte[] source = ipHeader.getSourceIP().getBytes();
+		byte[] destination = ipHeader.getDestinationIP().getBytes();
 
-		//padding last byte to zero
-		if(odd){
-			buffer.put((byte)0);
+		// The pseudo header's zero padding doesn't change the sum, for IPv4 or IPv6
+		long sum = sumWords(source, 0, source.length)
+				+ sumWords(destination, 0, destination.length)
+				+ 6 //tcp protocol => 6
+				+ tcplength
+				+ sumWords(data, offset, tcplength);
+
+		//carry over one's complement
+		while((sum >> 16) > 0){
+			sum = (sum & 0xffff) + (sum >> 16);
+		}
+		//flip the bit to get one' complement
+		return (int) ~sum & 0xffff;
+	}
+
+	private static long sumWords(byte[] data, int offset, int length){
+		long sum = 0;
+		int end = offset + (length & ~1);
+		for (int i = offset; i < end; i += 2) {
+			sum += ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+		}
+		if ((length & 1) != 0) {
+			//pad the last byte with zero
+			sum += (data[end] & 0xFF) << 8;
 		}
-		byte[] tcparray = buffer.array();
-		return calculateChecksum(tcparray, 0, buffersize);
+		return sum;
 	}
 
 	/**
@@ -1,13 +1,59 @@
 #include <ndpi_api.h>
 #include <jni.h>
+#include <pthread.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+// Return codes of _doDPI, mirrored in VPNRunnable.Companion
+#define DPI_DONE 0
+#define DPI_NEED_MORE_PACKETS 1
+#define DPI_ERROR_NO_STATE (-1)
+#define DPI_ERROR_BAD_BUFFER (-2)
+
+#define DPI_PROTOCOL_NAME_LEN 64
+
+// Give up (and guess) after this many packets of a flow without a final verdict
+#define DPI_MAX_PACKETS_PER_FLOW 16
 
-struct ndpi_detection_module_struct *ndpi_module = NULL;
 NDPI_PROTOCOL_BITMASK ndpi_protocols_bitmask;
 
-struct ndpi_flow_struct ndpi_flow;
-static ndpi_serializer json_serializer = {};
+// Per-session detection state. A handle to this is kept on the Java Session, so every packet of
+// a flow is fed into the same ndpi_flow_struct until nDPI has a verdict.
+struct lanshield_dpi_flow {
+    struct ndpi_flow_struct ndpi_flow;
+    u_int16_t packets_processed;
+};
+
+// Detection scratch owned by a single thread. nDPI keeps the packet being dissected inside the
+// detection module, so a module can't be shared by threads running DPI concurrently. Each thread
+// that calls _doDPI lazily gets its own module and name buffer, which makes the JNI entry points
+// reentrant without a lock. The state is released when the thread exits.
+struct lanshield_dpi_thread_state {
+    struct ndpi_detection_module_struct *ndpi_module;
+    char protocol_name[DPI_PROTOCOL_NAME_LEN];
+};
+
+// Start of the direct result buffer that _doDPI fills in on DPI_DONE, decoded by
+// VPNRunnable.readDpiResult. Fields are in native byte order. The header is followed by the
+// protocol name, hostname, TLS SNI and JA3 client hash, none of them NUL-terminated.
+struct lanshield_dpi_result_header {
+    u_int16_t master_protocol;
+    u_int16_t app_protocol;
+    u_int16_t category;
+    u_int8_t protocol_name_len;
+    u_int8_t hostname_len;
+    u_int8_t sni_len;
+    u_int8_t ja3_len;
+};
+
+// Enough for the header plus every string at its nDPI maximum
+#define DPI_RESULT_MIN_CAPACITY 512
 
-static char protocol_name[64];
+static pthread_key_t thread_state_key;
+static pthread_once_t thread_state_key_once = PTHREAD_ONCE_INIT;
+// nDPI module setup touches library-wide tables, so modules are created one at a time
+static pthread_mutex_t module_init_lock = PTHREAD_MUTEX_INITIALIZER;
 
 // protocols which are not application protocols
 static void init_ndpi_protocols_bitmask(ndpi_protocol_bitmask_struct_t *b) {
@@ -92,83 +138,192 @@ static void init_ndpi_protocols_bitmask(ndpi_protocol_bitmask_struct_t *b) {
 }
 
 
-static int init_dpi(){
-    if (ndpi_module != NULL) {
-        return -1;
+static void free_thread_state(void *ptr) {
+    struct lanshield_dpi_thread_state *state = ptr;
+    if (state == NULL) return;
+    if (state->ndpi_module != NULL) {
+        ndpi_exit_detection_module(state->ndpi_module);
     }
+    free(state);
+}
+
+static void init_thread_state_key() {
+    init_ndpi_protocols_bitmask(&ndpi_protocols_bitmask);
+    pthread_key_create(&thread_state_key, free_thread_state);
+}
+
+static struct lanshield_dpi_thread_state *get_thread_state() {
+    pthread_once(&thread_state_key_once, init_thread_state_key);
 
-    if(ndpi_init_serializer(&json_serializer, ndpi_serialization_format_json) != 0) {
-        return -1;
+    struct lanshield_dpi_thread_state *state = pthread_getspecific(thread_state_key);
+    if (state != NULL) {
+        return state;
     }
 
-    ndpi_module = ndpi_init_detection_module(ndpi_no_prefs);
-    if (ndpi_module == NULL) {
-        return -1;
+    state = calloc(1, sizeof(struct lanshield_dpi_thread_state));
+    if (state == NULL) {
+        return NULL;
     }
-    init_ndpi_protocols_bitmask(&ndpi_protocols_bitmask);
-    ndpi_set_protocol_detection_bitmask2(ndpi_module, &ndpi_protocols_bitmask);
-    ndpi_finalize_initialization(ndpi_module);
 
-    return 0;
+    pthread_mutex_lock(&module_init_lock);
+    state->ndpi_module = ndpi_init_detection_module(ndpi_no_prefs);
+    if (state->ndpi_module != NULL) {
+        ndpi_set_protocol_detection_bitmask2(state->ndpi_module, &ndpi_protocols_bitmask);
+        ndpi_finalize_initialization(state->ndpi_module);
+    }
+    pthread_mutex_unlock(&module_init_lock);
+
+    if (state->ndpi_module == NULL) {
+        free_thread_state(state);
+        return NULL;
+    }
+
+    pthread_setspecific(thread_state_key, state);
+    return state;
 }
 
 static void free_dpi() {
-    if (ndpi_module != NULL) {
-        ndpi_exit_detection_module(ndpi_module);
-        ndpi_module = NULL;
+    pthread_once(&thread_state_key_once, init_thread_state_key);
+
+    struct lanshield_dpi_thread_state *state = pthread_getspecific(thread_state_key);
+    if (state != NULL) {
+        pthread_setspecific(thread_state_key, NULL);
+        free_thread_state(state);
     }
 }
 
+static u_int64_t now_ms() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (u_int64_t) ts.tv_sec * 1000 + ts.tv_nsec / 1000000;
+}
+
+static struct lanshield_dpi_flow *new_flow() {
+    return calloc(1, sizeof(struct lanshield_dpi_flow));
+}
+
+static void free_flow(struct lanshield_dpi_flow *flow) {
+    if (flow == NULL) return;
+    ndpi_free_flow_data(&flow->ndpi_flow);
+    free(flow);
+}
+
+static int is_detection_complete(struct lanshield_dpi_thread_state *state, struct lanshield_dpi_flow *flow,
+                                 ndpi_protocol detected_protocol) {
+    if (detected_protocol.app_protocol == NDPI_PROTOCOL_UNKNOWN
+        && detected_protocol.master_protocol == NDPI_PROTOCOL_UNKNOWN) {
+        return 0;
+    }
+    // e.g. TLS is known from the ClientHello, but keep dissecting for SNI/JA3 while nDPI wants to
+    return !ndpi_extra_dissection_possible(state->ndpi_module, &flow->ndpi_flow);
+}
+
+static int is_tls_or_quic(u_int16_t protocol) {
+    return protocol == NDPI_PROTOCOL_TLS || protocol == NDPI_PROTOCOL_DTLS || protocol == NDPI_PROTOCOL_QUIC;
+}
+
+// Append a NUL-terminated string to the result, returning its length. Strings are bounded by
+// their nDPI field sizes, which DPI_RESULT_MIN_CAPACITY accounts for.
+static u_int8_t append_string(u_int8_t **out, const char *value, size_t max_len) {
+    size_t len = strnlen(value, max_len);
+    if (len > UINT8_MAX) len = UINT8_MAX;
+    memcpy(*out, value, len);
+    *out += len;
+    return (u_int8_t) len;
+}
+
+static void write_dpi_result(struct lanshield_dpi_thread_state *state, struct lanshield_dpi_flow *flow,
+                             ndpi_protocol selected_protocol, u_int8_t *result) {
+    struct lanshield_dpi_result_header header = {0};
+    u_int8_t *out = result + sizeof(header);
+    struct ndpi_flow_struct *ndpi_flow = &flow->ndpi_flow;
+
+    header.master_protocol = selected_protocol.master_protocol;
+    header.app_protocol = selected_protocol.app_protocol;
+    header.category = selected_protocol.category;
+
+    char *protocol_name = state->protocol_name;
+    memset(protocol_name, 0, sizeof(state->protocol_name));
+    ndpi_protocol2name(state->ndpi_module, selected_protocol, protocol_name, sizeof(state->protocol_name));
+    header.protocol_name_len = append_string(&out, protocol_name, sizeof(state->protocol_name) - 1);
+
+    // host_server_name holds the SNI for TLS/QUIC and e.g. the DNS query or HTTP host otherwise.
+    // protos is a union, so the JA3 hash is only meaningful for TLS/QUIC flows.
+    if (is_tls_or_quic(ndpi_get_lower_proto(selected_protocol))) {
+        header.sni_len = append_string(&out, ndpi_flow->host_server_name, sizeof(ndpi_flow->host_server_name));
+        header.ja3_len = append_string(&out, ndpi_flow->protos.tls_quic.ja3_client,
+                                       sizeof(ndpi_flow->protos.tls_quic.ja3_client));
+    } else {
+        header.hostname_len = append_string(&out, ndpi_flow->host_server_name, sizeof(ndpi_flow->host_server_name));
+    }
+
+    memcpy(result, &header, sizeof(header));
+}
+
+JNIEXPORT jlong JNICALL
+Java_org_distrinet_lanshield_vpnservice_VPNRunnable_00024Companion__1newDpiFlow(JNIEnv *env, jobject thiz) {
+    return (jlong) (intptr_t) new_flow();
+}
+
+JNIEXPORT void JNICALL
+Java_org_distrinet_lanshield_vpnservice_VPNRunnable_00024Companion__1freeDpiFlow(JNIEnv *env, jobject thiz,
+                                                                                jlong flow_handle) {
+    free_flow((struct lanshield_dpi_flow *) (intptr_t) flow_handle);
+}
+
+/*
+ * Feed one packet into the flow behind flow_handle. The packet is read in place from the direct
+ * ByteBuffer packet, at packet_offset. Returns DPI_NEED_MORE_PACKETS while nDPI has no verdict
+ * yet, or DPI_DONE once the direct ByteBuffer result has been filled in (see
+ * lanshield_dpi_result_header); the caller frees the flow then. A zero flow_handle classifies the
+ * packet on its own (used for packets without a session).
+ */
 JNIEXPORT jint JNICALL
 Java_org_distrinet_lanshield_vpnservice_VPNRunnable_00024Companion__1doDPI(JNIEnv *env, jobject thiz,
-                                                                           jbyteArray packet,
+                                                                           jlong flow_handle,
+                                                                           jobject packet,
                                                                            jint packet_size,
                                                                            jint packet_offset,
-                                                                           jobject dpi_result) {
+                                                                           jobject result) {
     uint8_t protocol_was_guessed;
 
-    if (ndpi_module == NULL) {
-        int err = init_dpi();
-        if(err) return err;
+    u_int8_t *packet_data = (*env)->GetDirectBufferAddress(env, packet);
+    jlong packet_capacity = (*env)->GetDirectBufferCapacity(env, packet);
+    u_int8_t *result_data = (*env)->GetDirectBufferAddress(env, result);
+    jlong result_capacity = (*env)->GetDirectBufferCapacity(env, result);
+    if (packet_data == NULL || result_data == NULL
+        || packet_offset < 0 || packet_size <= 0
+        || (jlong) packet_offset + packet_size > packet_capacity
+        || result_capacity < (jlong) DPI_RESULT_MIN_CAPACITY) {
+        return DPI_ERROR_BAD_BUFFER;
     }
 
-    jbyte *pkt_data_no_offset = (*env)->GetByteArrayElements(env, packet, NULL);
-    jbyte *pkt_data = pkt_data_no_offset + packet_offset;
+    struct lanshield_dpi_thread_state *state = get_thread_state();
+    if (state == NULL) return DPI_ERROR_NO_STATE;
 
-    memset(&ndpi_flow, 0, SIZEOF_FLOW_STRUCT);
-    memset(&protocol_name, 0, sizeof(protocol_name));
-    ndpi_reset_serializer(&json_serializer);
+    int one_shot = flow_handle == 0;
+    struct lanshield_dpi_flow *flow = one_shot ? new_flow() : (struct lanshield_dpi_flow *) (intptr_t) flow_handle;
+    if (flow == NULL) return DPI_ERROR_NO_STATE;
 
-    ndpi_protocol detected_protocol = ndpi_detection_process_packet(ndpi_module, &ndpi_flow, (unsigned char*) pkt_data, packet_size, 0);
-    ndpi_protocol guessed_protocol = ndpi_detection_giveup(ndpi_module, &ndpi_flow, 1,  &protocol_was_guessed);
+    ndpi_protocol detected_protocol = ndpi_detection_process_packet(state->ndpi_module, &flow->ndpi_flow,
+                                                                    packet_data + packet_offset, packet_size,
+                                                                    now_ms());
+    flow->packets_processed++;
 
-    ndpi_protocol selected_protocol = protocol_was_guessed ? guessed_protocol : detected_protocol;
-    ndpi_dpi2json(ndpi_module, &ndpi_flow, selected_protocol, &json_serializer);
-    ndpi_protocol2name(ndpi_module, selected_protocol, (char *) &protocol_name, sizeof(protocol_name));
-
-    protocol_name[sizeof(protocol_name) - 1] = '\0';
-
-    u_int32_t json_buffer_len = 0;
-    char *json_buffer = ndpi_serializer_get_buffer(&json_serializer, &json_buffer_len);
-
-    ndpi_free_flow_data(&ndpi_flow);
-
-    (*env)->ReleaseByteArrayElements(env, packet, pkt_data_no_offset, JNI_ABORT);
+    ndpi_protocol selected_protocol = detected_protocol;
+    if (!is_detection_complete(state, flow, detected_protocol)) {
+        if (!one_shot && flow->packets_processed < DPI_MAX_PACKETS_PER_FLOW) {
+            return DPI_NEED_MORE_PACKETS;
+        }
+        ndpi_protocol guessed_protocol = ndpi_detection_giveup(state->ndpi_module, &flow->ndpi_flow, 1, &protocol_was_guessed);
+        if (protocol_was_guessed) selected_protocol = guessed_protocol;
+    }
 
-    // Find and set the `jsonBuffer` field
-    jclass dpiResultClass = (*env)->GetObjectClass(env, dpi_result);
-    jfieldID jsonBufferField = (*env)->GetFieldID(env, dpiResultClass, "jsonBuffer", "Ljava/lang/String;");
-    jstring jsonBufferJava = (*env)->NewStringUTF(env, json_buffer);
-    (*env)->SetObjectField(env, dpi_result, jsonBufferField, jsonBufferJava);
-    (*env)->DeleteLocalRef(env, jsonBufferJava);
+    write_dpi_result(state, flow, selected_protocol, result_data);
 
-    // Find and set the `protocolName` field
-    jfieldID protocolNameField = (*env)->GetFieldID(env, dpiResultClass, "protocolName", "Ljava/lang/String;");
-    jstring protocolNameJava = (*env)->NewStringUTF(env, protocol_name);
-    (*env)->SetObjectField(env, dpi_result, protocolNameField, protocolNameJava);
-    (*env)->DeleteLocalRef(env, protocolNameJava);
+    if (one_shot) free_flow(flow);
 
-    return 0;
+    return DPI_DONE;
 }
 
 JNIEXPORT void JNICALL
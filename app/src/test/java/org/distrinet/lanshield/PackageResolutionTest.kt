@@ -1,14 +1,21 @@
 package org.distrinet.lanshield
 
 import android.app.Application
+import android.content.Intent
 import android.content.pm.ApplicationInfo
 import android.content.pm.PackageManager
+import android.net.Uri
+import android.os.Looper
+import androidx.test.core.app.ApplicationProvider
 import com.google.common.truth.Truth.assertThat
 import io.mockk.every
 import io.mockk.mockk
+import io.mockk.verify
+import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
 import org.robolectric.RobolectricTestRunner
+import org.robolectric.Shadows.shadowOf
 import org.robolectric.annotation.Config
 
 @RunWith(RobolectricTestRunner::class)
@@ -17,6 +24,12 @@ class PackageResolutionTest {
 
     private val pm: PackageManager = mockk(relaxed = true)
 
+    @Before
+    fun setUp() {
+        // The cache is process-wide, so don't let lookups from other tests answer for this one
+        packageInfoCache.invalidateAll()
+    }
+
     private fun appInfo(flagBits: Int, pkg: String? = "com.example"): ApplicationInfo =
         ApplicationInfo().apply { flags = flagBits; packageName = pkg }
 
@@ -107,4 +120,60 @@ class PackageResolutionTest {
         assertThat(metadata.packageLabel).isEqualTo(name)
         assertThat(metadata.isSystem).isFalse()
     }
+
+    // ---- PackageInfoCache ----
+
+    @Test
+    fun `uid and metadata lookups reach the package manager once`() {
+        val name = "com.test.cached"
+        every { pm.getPackagesForUid(130) } returns arrayOf(name)
+        every { pm.getApplicationInfo(name, PackageManager.GET_META_DATA) } returns appInfo(0, name)
+        every { pm.getApplicationLabel(any()) } returns "Cached"
+
+        repeat(3) {
+            assertThat(getPackageNameFromUid(130, pm)).isEqualTo(name)
+            assertThat(getPackageMetadata(name, pm).packageLabel).isEqualTo("Cached")
+        }
+        verify(exactly = 1) { pm.getPackagesForUid(130) }
+        verify(exactly = 1) { pm.getApplicationInfo(name, PackageManager.GET_META_DATA) }
+    }
+
+    @Test
+    fun `unknown uids are cached as well`() {
+        every { pm.getPackagesForUid(131) } returns null
+        every { pm.getNameForUid(131) } returns null
+
+        assertThat(getPackageNameFromUid(131, pm)).isEqualTo(PACKAGE_NAME_UNKNOWN)
+        assertThat(getPackageNameFromUid(131, pm)).isEqualTo(PACKAGE_NAME_UNKNOWN)
+        verify(exactly = 1) { pm.getPackagesForUid(131) }
+    }
+
+    @Test
+    fun `a package broadcast invalidates the cached lookups`() {
+        val cache = PackageInfoCache()
+        val context = ApplicationProvider.getApplicationContext<Application>()
+        cache.registerPackageChangeReceiver(context)
+
+        assertThat(cache.packageNameForUid(132) { PACKAGE_NAME_UNKNOWN }).isEqualTo(PACKAGE_NAME_UNKNOWN)
+        assertThat(cache.metadataForPackage("com.new.app") { PackageMetadata(it, it, false) }.packageLabel)
+            .isEqualTo("com.new.app")
+
+        context.sendBroadcast(Intent(Intent.ACTION_PACKAGE_ADDED, Uri.parse("package:com.new.app")))
+        shadowOf(Looper.getMainLooper()).idle()
+
+        assertThat(cache.packageNameForUid(132) { "com.new.app" }).isEqualTo("com.new.app")
+        assertThat(cache.metadataForPackage("com.new.app") { PackageMetadata(it, "New App", false) }.packageLabel)
+            .isEqualTo("New App")
+    }
+
+    @Test
+    fun `the cache is cleared instead of growing past its bound`() {
+        val cache = PackageInfoCache(maxEntries = 2)
+        for (uid in 140..144) cache.packageNameForUid(uid) { "com.app$it" }
+
+        var lookups = 0
+        cache.packageNameForUid(144) { lookups++; "com.app$it" }
+        cache.packageNameForUid(140) { lookups++; "com.app$it" }
+        assertThat(lookups).isEqualTo(1)
+    }
 }
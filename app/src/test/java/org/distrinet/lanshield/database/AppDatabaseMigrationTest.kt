@@ -0,0 +1,60 @@
+package org.distrinet.lanshield.database
+
+import android.app.Application
+import androidx.room.testing.MigrationTestHelper
+import androidx.test.platform.app.InstrumentationRegistry
+import com.google.common.truth.Truth.assertThat
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [34], application = Application::class)
+class AppDatabaseMigrationTest {
+
+    private val dbName = "migration-test"
+
+    @get:Rule
+    val helper = MigrationTestHelper(
+        InstrumentationRegistry.getInstrumentation(),
+        AppDatabase::class.java,
+    )
+
+    @Test
+    fun `migrating 3 to 4 keeps flows and leaves the new DPI columns empty`() {
+        helper.createDatabase(dbName, 3).apply {
+            execSQL(
+                """
+                INSERT INTO flow (appId, uuid, remoteEndpoint, localEndpoint, transportLayerProtocol,
+                    timeStart, timeEnd, packetCountEgress, packetCountIngress, dataIngress, dataEgress,
+                    tcpEstablishedReached, appliedPolicy, protocols, timeEndAtLastSync,
+                    scheduledForDeletion, dpiReport, dpiProtocol)
+                VALUES ('com.example.app', X'00112233445566778899AABBCCDDEEFF', '192.168.1.10:443',
+                    '10.0.0.2:40000', 'TCP', 100, 200, 3, 4, 1400, 700, 1, 'ALLOW', '', 0, 0,
+                    '{"ndpi":{}}', 'TLS')
+                """.trimIndent()
+            )
+            close()
+        }
+
+        val db = helper.runMigrationsAndValidate(dbName, 4, true, MIGRATION_3_4)
+
+        db.query(
+            "SELECT appId, dataIngress, dpiReport, dpiProtocol, dpiMasterProtocol, dpiAppProtocol, " +
+                "dpiCategory, dpiHostname, dpiSni, dpiJa3 FROM flow"
+        ).use { cursor ->
+            assertThat(cursor.count).isEqualTo(1)
+            cursor.moveToFirst()
+            assertThat(cursor.getString(0)).isEqualTo("com.example.app")
+            assertThat(cursor.getLong(1)).isEqualTo(1400)
+            assertThat(cursor.getString(2)).isEqualTo("{\"ndpi\":{}}")
+            assertThat(cursor.getString(3)).isEqualTo("TLS")
+            for (column in 4..9) {
+                assertThat(cursor.isNull(column)).isTrue()
+            }
+        }
+        db.close()
+    }
+}
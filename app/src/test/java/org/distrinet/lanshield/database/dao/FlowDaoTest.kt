@@ -119,4 +119,21 @@ class FlowDaoTest {
         assertThat(dao.getFlowById(keep.uuid)).isNotNull()
         assertThat(dao.getFlowById(drop.uuid)).isNull()
     }
+
+    @Test
+    fun `updateFlowDpi stores the typed DPI result by uuid`() {
+        val flow = makeFlow("a", timeEnd = 100)
+        dao.insertFlow(flow)
+
+        dao.updateFlowDpi(flow.uuid, "TLS.Google", 91, 126, 5, null, "www.google.com", "0123456789abcdef0123456789abcdef")
+
+        val stored = dao.getFlowById(flow.uuid)!!
+        assertThat(stored.dpiProtocol).isEqualTo("TLS.Google")
+        assertThat(stored.dpiMasterProtocol).isEqualTo(91)
+        assertThat(stored.dpiAppProtocol).isEqualTo(126)
+        assertThat(stored.dpiCategory).isEqualTo(5)
+        assertThat(stored.dpiHostname).isNull()
+        assertThat(stored.dpiSni).isEqualTo("www.google.com")
+        assertThat(stored.dpiJa3).isEqualTo("0123456789abcdef0123456789abcdef")
+    }
 }
@@ -53,4 +53,27 @@ class LANFlowJsonTest {
         assertThat(json.getString("transport_layer_protocol")).isEqualTo("TCP")
         assertThat(json.getBoolean("tcp_established_reached")).isFalse()
     }
+
+    @Test
+    fun `typed dpi result is exported as a dpi report`() {
+        val lanFlow = flow("TCP").apply {
+            dpiProtocol = "TLS.Google"
+            dpiMasterProtocol = 91
+            dpiAppProtocol = 126
+            dpiCategory = 5
+            dpiSni = "www.google.com"
+            dpiJa3 = "0123456789abcdef0123456789abcdef"
+        }
+
+        val report = JSONObject(lanFlow.toJSON().getString("dpi_report"))
+        assertThat(report.getJSONObject("ndpi").getString("proto")).isEqualTo("TLS.Google")
+        assertThat(report.getJSONObject("ndpi").getString("proto_id")).isEqualTo("91.126")
+        assertThat(report.getJSONObject("tls").getString("client_requested_server_name")).isEqualTo("www.google.com")
+        assertThat(report.getJSONObject("tls").getString("ja3")).isEqualTo("0123456789abcdef0123456789abcdef")
+        assertThat(report.has("hostname")).isFalse()
+
+        val out = StringWriter()
+        JsonWriter(out).use { lanFlow.writeJson(it) }
+        assertThat(JSONObject(out.toString()).getString("dpi_report")).isEqualTo(report.toString())
+    }
 }
@@ -0,0 +1,99 @@
+package org.distrinet.lanshield.vpnservice
+
+import android.app.Application
+import androidx.room.Room
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import org.distrinet.lanshield.Policy
+import org.distrinet.lanshield.database.AppDatabase
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import tech.httptoolkit.android.vpn.TestPackets
+import tech.httptoolkit.android.vpn.transport.PacketView
+import java.nio.ByteBuffer
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [34], application = Application::class)
+class BlockedFlowTrackerTest {
+
+    private lateinit var db: AppDatabase
+    private lateinit var store: FlowStore
+    private lateinit var tracker: BlockedFlowTracker
+    private var now = 0L
+
+    private val ssdp = TestPackets.udpPacket("10.0.0.2", 40000, "239.255.255.250", 1900, "M-SEARCH".toByteArray())
+
+    private fun view(packet: ByteArray): PacketView = PacketView().apply { wrap(ByteBuffer.wrap(packet)) }
+
+    @Before
+    fun setUp() {
+        db = Room.inMemoryDatabaseBuilder(
+            ApplicationProvider.getApplicationContext(),
+            AppDatabase::class.java,
+        ).allowMainThreadQueries().build()
+        store = FlowStore(db)
+        tracker = BlockedFlowTracker(store, windowMs = 1_000, maxFlows = 8, clock = { now })
+    }
+
+    @After
+    fun tearDown() = db.close()
+
+    @Test
+    fun `repeated blocked packets are counted on one stored flow`() {
+        val flow = tracker.record(view(ssdp), "com.example.app")
+        assertThat(flow).isNotNull()
+        repeat(99) {
+            now += 100
+            assertThat(tracker.record(view(ssdp), "com.example.app")).isNull()
+        }
+
+        store.flushNow()
+        assertThat(db.FlowDao().countNotSyncedFlows()).isEqualTo(1)
+        val stored = db.FlowDao().getFlowById(flow!!.uuid)!!
+        assertThat(stored.packetCountEgress).isEqualTo(100L)
+        assertThat(stored.dataEgress).isEqualTo(100L * ssdp.size)
+        assertThat(stored.appliedPolicy).isEqualTo(Policy.BLOCK)
+        assertThat(stored.transportLayerProtocol).isEqualTo("UDP")
+    }
+
+    @Test
+    fun `a flow idle for longer than the window is followed by a new one`() {
+        val first = tracker.record(view(ssdp), "com.example.app")
+        now += 1_001
+        val second = tracker.record(view(ssdp), "com.example.app")
+
+        assertThat(second).isNotNull()
+        assertThat(second!!.uuid).isNotEqualTo(first!!.uuid)
+    }
+
+    @Test
+    fun `different tuples and protocols are separate flows`() {
+        val otherPort = TestPackets.udpPacket("10.0.0.2", 40001, "239.255.255.250", 1900, "M-SEARCH".toByteArray())
+        val syn = TestPackets.tcpPacket("10.0.0.2", 40000, "239.255.255.250", 1900, 1, 0, 0x02)
+        val ping = TestPackets.icmpPacket("10.0.0.2", "192.168.1.1", 8, 0, 1, 1)
+
+        assertThat(tracker.record(view(ssdp), "com.example.app")).isNotNull()
+        assertThat(tracker.record(view(otherPort), "com.example.app")).isNotNull()
+        assertThat(tracker.record(view(syn), "com.example.app")).isNotNull()
+        assertThat(tracker.record(view(ping), "Unknown")).isNotNull()
+        // ICMP has no ports, but repeats still land on the same flow
+        assertThat(tracker.record(view(ping), "Unknown")).isNull()
+        assertThat(tracker.size).isEqualTo(4)
+    }
+
+    @Test
+    fun `the table stays within its bound`() {
+        for (port in 40000 until 40020) {
+            now += 10
+            tracker.record(
+                view(TestPackets.udpPacket("10.0.0.2", port, "192.168.1.20", 1900, "x".toByteArray())),
+                "com.example.app"
+            )
+        }
+        assertThat(tracker.size).isAtMost(8)
+    }
+}
@@ -0,0 +1,111 @@
+package org.distrinet.lanshield.vpnservice
+
+import com.google.common.truth.Truth.assertThat
+import org.distrinet.lanshield.Policy
+import org.distrinet.lanshield.Policy.ALLOW
+import org.distrinet.lanshield.Policy.BLOCK
+import org.distrinet.lanshield.Policy.DEFAULT
+import org.junit.Test
+
+class CompiledPolicyTest {
+
+    private val booleans = listOf(false, true)
+
+    private fun allSettings(): List<PolicySettings> {
+        val settings = ArrayList<PolicySettings>()
+        for (defaultPolicy in Policy.entries)
+            for (systemAppsPolicy in Policy.entries)
+                for (allowMulticast in booleans)
+                    for (allowDns in booleans)
+                        for (hideDns in booleans)
+                            for (hideMulticast in booleans)
+                                settings.add(
+                                    PolicySettings(
+                                        appPolicies = mapOf("com.block" to BLOCK, "com.allow" to ALLOW),
+                                        defaultForwardPolicy = defaultPolicy,
+                                        systemAppsForwardPolicy = systemAppsPolicy,
+                                        allowMulticast = allowMulticast,
+                                        allowDns = allowDns,
+                                        hideDnsNotifications = hideDns,
+                                        hideMulticastNotifications = hideMulticast,
+                                    )
+                                )
+        return settings
+    }
+
+    @Test
+    fun `compiled verdicts match PolicyEngine for every input`() {
+        val packages = listOf("com.block", "com.allow", "com.other")
+        var checked = 0
+        for (settings in allSettings()) {
+            val compiled = CompiledPolicy.compile(settings)
+            for (isTcpOrUdp in booleans)
+                for (hasValidUid in booleans)
+                    for (isMulticast in booleans)
+                        for (destPort in listOf(53, 80, 5353))
+                            for (packageName in packages)
+                                for (isSystemApp in booleans) {
+                                    val expected = PolicyEngine.decide(
+                                        PacketDecisionInput(
+                                            isTcpOrUdp = isTcpOrUdp,
+                                            hasValidUid = hasValidUid,
+                                            isMulticastDest = isMulticast,
+                                            destPort = destPort,
+                                            perAppPolicy = settings.appPolicies[packageName] ?: DEFAULT,
+                                            isSystemApp = isSystemApp,
+                                            defaultForwardPolicy = settings.defaultForwardPolicy,
+                                            systemAppsForwardPolicy = settings.systemAppsForwardPolicy,
+                                            allowMulticast = settings.allowMulticast,
+                                            allowDns = settings.allowDns,
+                                            hideDnsNotifications = settings.hideDnsNotifications,
+                                            hideMulticastNotifications = settings.hideMulticastNotifications,
+                                        )
+                                    )
+
+                                    val profile = when {
+                                        !isTcpOrUdp -> CompiledPolicy.PROFILE_NOT_TCP_OR_UDP
+                                        !hasValidUid -> CompiledPolicy.PROFILE_NO_VALID_UID
+                                        else -> compiled.appProfile(packageName, isSystemApp)
+                                    }
+                                    val verdict = compiled.verdict(
+                                        profile,
+                                        CompiledPolicy.destinationClass(isMulticast, destPort)
+                                    )
+
+                                    val actual = PacketDecision(
+                                        CompiledPolicy.appliedPolicy(verdict),
+                                        CompiledPolicy.shouldForward(verdict),
+                                        CompiledPolicy.shouldNotify(verdict),
+                                    )
+                                    assertThat(actual).isEqualTo(expected)
+                                    checked++
+                                }
+        }
+        assertThat(checked).isEqualTo(allSettings().size * 2 * 2 * 2 * 3 * 3 * 2)
+    }
+
+    @Test
+    fun `uid profiles are resolved once per app id and again after package changes`() {
+        val compiled = CompiledPolicy.compile(PolicySettings(appPolicies = mapOf("com.block" to BLOCK)))
+        var resolved = 0
+        val resolve = { _: Int -> resolved++; compiled.appProfile("com.block", false) }
+
+        val profile = compiled.uidProfile(10123, 0, resolve)
+        assertThat(compiled.uidProfile(10123, 0, resolve)).isEqualTo(profile)
+        // The same app in a secondary user shares the app id
+        assertThat(compiled.uidProfile(1010123, 0, resolve)).isEqualTo(profile)
+        assertThat(resolved).isEqualTo(1)
+
+        compiled.uidProfile(10123, 1, resolve)
+        assertThat(resolved).isEqualTo(2)
+
+        // Uids outside the app range go through the fallback map
+        compiled.uidProfile(1013, 1, resolve)
+        compiled.uidProfile(1013, 1, resolve)
+        assertThat(resolved).isEqualTo(3)
+
+        val verdict = compiled.verdict(profile, CompiledPolicy.destinationClass(false, 443))
+        assertThat(CompiledPolicy.appliedPolicy(verdict)).isEqualTo(BLOCK)
+        assertThat(CompiledPolicy.shouldForward(verdict)).isFalse()
+    }
+}
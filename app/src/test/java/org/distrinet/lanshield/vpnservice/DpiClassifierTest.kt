@@ -0,0 +1,140 @@
+package org.distrinet.lanshield.vpnservice
+
+import android.app.Application
+import androidx.room.Room
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import io.mockk.every
+import io.mockk.mockkObject
+import io.mockk.unmockkObject
+import org.distrinet.lanshield.Policy
+import org.distrinet.lanshield.database.AppDatabase
+import org.distrinet.lanshield.database.model.LANFlow
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import tech.httptoolkit.android.vpn.TestPackets
+import java.net.InetAddress
+import java.net.InetSocketAddress
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [34], application = Application::class)
+class DpiClassifierTest {
+
+    private lateinit var db: AppDatabase
+
+    private val dpiResult = DpiResult(masterProtocol = 12, appProtocol = 12, category = 14, protocolName = "SSDP")
+
+    private val packet = TestPackets.udpPacket("10.0.0.2", 40000, "192.168.1.10", 53, "query".toByteArray())
+
+    private fun makeFlow(): LANFlow = LANFlow.createFlow(
+        "com.example.app",
+        InetSocketAddress(InetAddress.getByName("192.168.1.10"), 53),
+        InetSocketAddress(InetAddress.getByName("10.0.0.2"), 40000),
+        "UDP",
+        Policy.BLOCK
+    )
+
+    @Before
+    fun setUp() {
+        db = Room.inMemoryDatabaseBuilder(
+            ApplicationProvider.getApplicationContext(),
+            AppDatabase::class.java,
+        ).allowMainThreadQueries().build()
+    }
+
+    @After
+    fun tearDown() = db.close()
+
+    @Test
+    fun `full queue drops and counts packets instead of blocking`() {
+        // Not started, so nothing drains the queue
+        val classifier = DpiClassifier(db, workerCount = 1, queueCapacity = 2)
+
+        assertThat(classifier.classifyAndInsertFlow(makeFlow(), packet, packet.size, 0)).isTrue()
+        assertThat(classifier.classifyAndInsertFlow(makeFlow(), packet, packet.size, 0)).isTrue()
+        assertThat(classifier.classifyAndInsertFlow(makeFlow(), packet, packet.size, 0)).isFalse()
+        assertThat(classifier.classifyAndInsertFlow(makeFlow(), packet, packet.size, 0)).isFalse()
+
+        assertThat(classifier.droppedCount).isEqualTo(2)
+    }
+
+    @Test
+    fun `queued flow is stored once classified`() {
+        // Without the native library DPI yields no result, but the flow must still be stored
+        val classifier = DpiClassifier(db, workerCount = 2, queueCapacity = 16)
+        classifier.start()
+        try {
+            val flow = makeFlow()
+            assertThat(classifier.classifyAndInsertFlow(flow, packet, packet.size, 0)).isTrue()
+
+            val deadline = System.currentTimeMillis() + 5_000
+            while (db.FlowDao().getFlowById(flow.uuid) == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10)
+            }
+            assertThat(db.FlowDao().getFlowById(flow.uuid)).isNotNull()
+        } finally {
+            classifier.shutdown()
+        }
+    }
+
+    @Test
+    fun `with a flow store, classified flows are handed to the store`() {
+        mockkObject(VPNRunnable.Companion)
+        every { VPNRunnable.doDpi(any(), any(), any()) } returns dpiResult
+        val store = FlowStore(db)
+        val classifier = DpiClassifier(db, workerCount = 1, queueCapacity = 16, flowStore = store)
+        classifier.start()
+        try {
+            // The blocked flow tracker marks its new flows itself
+            val flow = makeFlow()
+            store.markNew(flow)
+            assertThat(classifier.classifyAndInsertFlow(flow, packet, packet.size, 0)).isTrue()
+
+            awaitClassified(flow, store)
+            // Written with the store's next batch, not by the DPI worker
+            assertThat(db.FlowDao().getFlowById(flow.uuid)).isNull()
+            store.flushNow()
+            assertThat(db.FlowDao().getFlowById(flow.uuid)!!.dpiProtocol).isEqualTo("SSDP")
+        } finally {
+            classifier.shutdown()
+            unmockkObject(VPNRunnable.Companion)
+        }
+    }
+
+    @Test
+    fun `a result that comes after the flow was first stored still reaches its row`() {
+        mockkObject(VPNRunnable.Companion)
+        every { VPNRunnable.doDpi(any(), any(), any()) } returns dpiResult
+        val store = FlowStore(db)
+        val classifier = DpiClassifier(db, workerCount = 1, queueCapacity = 16, flowStore = store)
+        try {
+            val flow = makeFlow()
+            store.markNew(flow)
+            assertThat(classifier.classifyAndInsertFlow(flow, packet, packet.size, 0)).isTrue()
+            // The store flushes before the worker gets to the packet
+            store.flushNow()
+            assertThat(db.FlowDao().getFlowById(flow.uuid)!!.dpiProtocol).isNull()
+
+            classifier.start()
+            awaitClassified(flow, store)
+            store.flushNow()
+            assertThat(db.FlowDao().getFlowById(flow.uuid)!!.dpiProtocol).isEqualTo("SSDP")
+        } finally {
+            classifier.shutdown()
+            unmockkObject(VPNRunnable.Companion)
+        }
+    }
+
+    /** Wait until the worker has applied a result and handed the flow back to the store. */
+    private fun awaitClassified(flow: LANFlow, store: FlowStore) {
+        val deadline = System.currentTimeMillis() + 5_000
+        while ((flow.dpiProtocol == null || store.dirtyCount == 0) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        assertThat(flow.dpiProtocol).isEqualTo("SSDP")
+    }
+}
@@ -0,0 +1,169 @@
+package org.distrinet.lanshield.vpnservice
+
+import android.app.Application
+import androidx.room.Room
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import org.distrinet.lanshield.Policy
+import org.distrinet.lanshield.database.AppDatabase
+import org.distrinet.lanshield.database.model.LANFlow
+import org.junit.After
+import org.junit.Assert.assertThrows
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.net.InetAddress
+import java.net.InetSocketAddress
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [34], application = Application::class)
+class FlowStoreTest {
+
+    private lateinit var db: AppDatabase
+
+    private fun makeFlow(): LANFlow = LANFlow.createFlow(
+        "com.example.app",
+        InetSocketAddress(InetAddress.getByName("192.168.1.10"), 443),
+        InetSocketAddress(InetAddress.getByName("10.0.0.2"), 40000),
+        "TCP",
+        Policy.ALLOW
+    )
+
+    @Before
+    fun setUp() {
+        db = Room.inMemoryDatabaseBuilder(
+            ApplicationProvider.getApplicationContext(),
+            AppDatabase::class.java,
+        ).allowMainThreadQueries().build()
+    }
+
+    @After
+    fun tearDown() = db.close()
+
+    private fun awaitStored(flow: LANFlow, condition: (LANFlow) -> Boolean): LANFlow? {
+        val deadline = System.currentTimeMillis() + 5_000
+        while (System.currentTimeMillis() < deadline) {
+            db.FlowDao().getFlowById(flow.uuid)?.takeIf(condition)?.let { return it }
+            Thread.sleep(10)
+        }
+        return null
+    }
+
+    @Test
+    fun `dirty flows are only written when flushed, in one batch`() {
+        val store = FlowStore(db)
+        val flows = List(3) { makeFlow() }
+        flows.forEach { store.markNew(it) }
+        // Marking the same flow again doesn't queue a second write
+        store.markDirty(flows[0])
+
+        assertThat(db.FlowDao().getFlowById(flows[0].uuid)).isNull()
+        assertThat(store.dirtyCount).isEqualTo(3)
+
+        store.flushNow()
+        flows.forEach { assertThat(db.FlowDao().getFlowById(it.uuid)).isNotNull() }
+        assertThat(store.flushCount).isEqualTo(1)
+        assertThat(store.flushedFlowCount).isEqualTo(3)
+        assertThat(store.dirtyCount).isEqualTo(0)
+
+        flows[1].increaseIngress(2, 1400)
+        store.markDirty(flows[1])
+        store.flushNow()
+        assertThat(db.FlowDao().getFlowById(flows[1].uuid)!!.dataIngress).isEqualTo(1400)
+    }
+
+    @Test
+    fun `a deleted flow isn't stored again by later updates`() {
+        val store = FlowStore(db)
+        val flow = makeFlow()
+        store.markNew(flow)
+        store.flushNow()
+        assertThat(db.FlowDao().getFlowById(flow.uuid)).isNotNull()
+
+        // The user clears the app's flows while its session is still live
+        db.FlowDao().deleteFlowsWithAppId(flow.appId)
+        flow.increaseIngress(1, 100)
+        store.markDirty(flow)
+        store.flushSoon(flow)
+        store.flushNow()
+
+        assertThat(db.FlowDao().getFlowById(flow.uuid)).isNull()
+    }
+
+    @Test
+    fun `a failed flush is retried by the next one`() {
+        val store = FlowStore(db)
+        val stored = makeFlow()
+        store.markNew(stored)
+        store.flushNow()
+
+        val sqlite = db.openHelper.writableDatabase
+        sqlite.execSQL("CREATE TEMP TRIGGER fail_insert BEFORE INSERT ON flow BEGIN SELECT RAISE(ABORT, 'disk full'); END")
+        val flow = makeFlow()
+        store.markNew(flow)
+        stored.increaseIngress(1, 100)
+        store.markDirty(stored)
+        assertThrows(Exception::class.java) { store.flushNow() }
+        assertThat(db.FlowDao().getFlowById(stored.uuid)!!.dataIngress).isEqualTo(0)
+        assertThat(store.dirtyCount).isEqualTo(2)
+
+        sqlite.execSQL("DROP TRIGGER fail_insert")
+        store.flushNow()
+        assertThat(db.FlowDao().getFlowById(flow.uuid)).isNotNull()
+        assertThat(db.FlowDao().getFlowById(stored.uuid)!!.dataIngress).isEqualTo(100)
+    }
+
+    @Test
+    fun `the writer flushes on its interval`() {
+        val store = FlowStore(db, flushIntervalMs = 20)
+        store.start()
+        try {
+            val flow = makeFlow()
+            store.markNew(flow)
+            assertThat(awaitStored(flow) { true }).isNotNull()
+
+            flow.increaseEgress(1, 100)
+            store.markDirty(flow)
+            assertThat(awaitStored(flow) { it.dataEgress == 100L }).isNotNull()
+        } finally {
+            store.shutdown()
+            store.awaitTermination(1000)
+        }
+    }
+
+    @Test
+    fun `enough dirty flows or a closed session flush without waiting for the interval`() {
+        val store = FlowStore(db, flushIntervalMs = 60_000, maxDirtyFlows = 2)
+        store.start()
+        try {
+            val first = makeFlow()
+            val second = makeFlow()
+            store.markNew(first)
+            store.markNew(second)
+            assertThat(awaitStored(second) { true }).isNotNull()
+
+            val closed = makeFlow()
+            store.markNew(closed)
+            store.flushSoon(closed)
+            assertThat(awaitStored(closed) { true }).isNotNull()
+        } finally {
+            store.shutdown()
+            store.awaitTermination(1000)
+        }
+    }
+
+    @Test
+    fun `shutdown writes out the remaining dirty flows`() {
+        val store = FlowStore(db, flushIntervalMs = 60_000)
+        store.start()
+        val flow = makeFlow()
+        store.markNew(flow)
+
+        store.shutdown()
+        store.awaitTermination(5_000)
+
+        assertThat(db.FlowDao().getFlowById(flow.uuid)).isNotNull()
+    }
+}
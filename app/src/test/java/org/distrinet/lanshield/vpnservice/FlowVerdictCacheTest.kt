@@ -0,0 +1,98 @@
+package org.distrinet.lanshield.vpnservice
+
+import com.google.common.truth.Truth.assertThat
+import org.distrinet.lanshield.Policy.ALLOW
+import org.distrinet.lanshield.Policy.BLOCK
+import org.junit.Test
+import tech.httptoolkit.android.vpn.FlowKey
+import tech.httptoolkit.android.vpn.SessionProtocol
+import tech.httptoolkit.android.vpn.TestPackets
+import tech.httptoolkit.android.vpn.transport.PacketView
+import tech.httptoolkit.android.vpn.transport.ip.IPAddress
+import java.nio.ByteBuffer
+
+class FlowVerdictCacheTest {
+
+    private var now = 0L
+    private val cache = FlowVerdictCache(maxEntries = 4, idleTimeoutMs = 1_000, clock = { now })
+
+    private val verdict = FlowVerdict(10123, "com.example.app", ALLOW, shouldForward = true, shouldNotify = false)
+
+    private fun udpView(srcPort: Int = 40000, dstPort: Int = 53): PacketView =
+        view(TestPackets.udpPacket("10.0.0.2", srcPort, "192.168.1.10", dstPort, "query".toByteArray()))
+
+    private fun view(packet: ByteArray): PacketView = PacketView().apply { wrap(ByteBuffer.wrap(packet)) }
+
+    @Test
+    fun `verdict is served for later packets of the same flow only`() {
+        assertThat(cache.get(udpView())).isNull()
+        cache.put(udpView(), cache.generation, verdict)
+
+        assertThat(cache.get(udpView())).isSameInstanceAs(verdict)
+        assertThat(cache.get(udpView(srcPort = 40001))).isNull()
+        assertThat(cache.get(udpView(dstPort = 54))).isNull()
+        assertThat(cache.hitCount).isEqualTo(1)
+        assertThat(cache.missCount).isEqualTo(3)
+    }
+
+    @Test
+    fun `tcp and udp flows with the same tuple are distinct`() {
+        cache.put(udpView(), cache.generation, verdict)
+        val tcp = view(TestPackets.tcpPacket("10.0.0.2", 40000, "192.168.1.10", 53, 1, 0, 0x10))
+
+        assertThat(cache.get(tcp)).isNull()
+    }
+
+    @Test
+    fun `other protocols are never cached`() {
+        val icmp = view(TestPackets.icmpPacket("10.0.0.2", "192.168.1.10", 8, 0, 1, 1))
+        cache.put(icmp, cache.generation, verdict)
+
+        assertThat(cache.get(icmp)).isNull()
+        assertThat(cache.size).isEqualTo(0)
+    }
+
+    @Test
+    fun `invalidation drops verdicts and rejects ones computed before it`() {
+        cache.put(udpView(), cache.generation, verdict)
+        val staleGeneration = cache.generation
+        cache.invalidate()
+
+        assertThat(cache.get(udpView())).isNull()
+        cache.put(udpView(), staleGeneration, verdict)
+        assertThat(cache.get(udpView())).isNull()
+    }
+
+    @Test
+    fun `closing the session removes its verdict`() {
+        cache.put(udpView(), cache.generation, verdict)
+        val sessionKey = FlowKey.of(
+            SessionProtocol.UDP,
+            IPAddress(TestPackets.ip("192.168.1.10")), 53,
+            IPAddress(TestPackets.ip("10.0.0.2")), 40000
+        )
+        cache.remove(sessionKey)
+
+        assertThat(cache.get(udpView())).isNull()
+    }
+
+    @Test
+    fun `idle verdicts expire and are evicted when the cache is full`() {
+        val blocked = FlowVerdict(10124, "com.example.other", BLOCK, shouldForward = false, shouldNotify = true)
+        cache.put(udpView(), cache.generation, blocked)
+
+        now = 500
+        assertThat(cache.get(udpView())).isSameInstanceAs(blocked)
+        now = 1_400
+        // Used at 500, so still within the idle timeout
+        assertThat(cache.get(udpView())).isSameInstanceAs(blocked)
+        now = 2_500
+        assertThat(cache.get(udpView())).isNull()
+
+        for (port in 40001..40004) {
+            cache.put(udpView(srcPort = port), cache.generation, verdict)
+        }
+        assertThat(cache.size).isAtMost(4)
+        assertThat(cache.get(udpView(srcPort = 40004))).isSameInstanceAs(verdict)
+    }
+}
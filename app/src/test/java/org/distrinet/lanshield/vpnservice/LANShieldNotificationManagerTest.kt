@@ -0,0 +1,90 @@
+package org.distrinet.lanshield.vpnservice
+
+import android.app.Application
+import android.app.NotificationManager
+import android.content.Context
+import android.os.Looper
+import androidx.core.app.NotificationCompat
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import org.distrinet.lanshield.Policy
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.Shadows.shadowOf
+import org.robolectric.annotation.Config
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.time.Duration
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [34], application = Application::class)
+class LANShieldNotificationManagerTest {
+
+    private lateinit var context: Application
+    private lateinit var manager: LANShieldNotificationManager
+
+    private fun peer(host: Int) = InetSocketAddress(InetAddress.getByName("192.168.1.$host"), 80)
+
+    private fun idle() = shadowOf(Looper.getMainLooper()).idle()
+
+    private fun postedLines(): List<CharSequence> {
+        val systemManager = context.getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager
+        val notification = shadowOf(systemManager).allNotifications.single()
+        return notification.extras.getCharSequenceArray(NotificationCompat.EXTRA_TEXT_LINES)!!.toList()
+    }
+
+    @Before
+    fun setUp() {
+        context = ApplicationProvider.getApplicationContext()
+        manager = LANShieldNotificationManager(context, Looper.getMainLooper(), coalesceIntervalMs = 1_000)
+        manager.createNotificationChannels()
+    }
+
+    @Test
+    fun `posting only queues the event`() {
+        manager.postNotification("com.example.app", Policy.BLOCK, peer(1))
+        assertThat(manager.notifyCount).isEqualTo(0L)
+
+        idle()
+        assertThat(manager.notifyCount).isEqualTo(1L)
+    }
+
+    @Test
+    fun `a burst of events for one package is one notification with deduplicated peers`() {
+        repeat(100) { manager.postNotification("com.example.app", Policy.BLOCK, peer(it % 3)) }
+        idle()
+
+        assertThat(manager.notifyCount).isEqualTo(1L)
+        assertThat(postedLines()).hasSize(3)
+    }
+
+    @Test
+    fun `updates within the interval are merged into one later notification`() {
+        manager.postNotification("com.example.app", Policy.BLOCK, peer(1))
+        idle()
+
+        for (host in 2..20) manager.postNotification("com.example.app", Policy.BLOCK, peer(host))
+        idle()
+        assertThat(manager.notifyCount).isEqualTo(1L)
+
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(1_000))
+        assertThat(manager.notifyCount).isEqualTo(2L)
+        val lines = postedLines()
+        assertThat(lines).hasSize(LANShieldNotificationManager.MAX_MESSAGE_LINES)
+        assertThat(lines.first().toString()).contains("192.168.1.20")
+    }
+
+    @Test
+    fun `repeating the latest peer posts nothing new`() {
+        manager.postNotification("com.example.app", Policy.BLOCK, peer(1))
+        idle()
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(1_000))
+
+        manager.postNotification("com.example.app", Policy.BLOCK, peer(1))
+        idle()
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(1_000))
+        assertThat(manager.notifyCount).isEqualTo(1L)
+    }
+}
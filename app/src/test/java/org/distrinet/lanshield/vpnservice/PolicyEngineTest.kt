@@ -32,7 +32,7 @@ class PolicyEngineTest {
     ) = PacketDecisionInput(
         isTcpOrUdp = isTcpOrUdp,
         hasValidUid = hasValidUid,
-        destAddress = destAddress,
+        isMulticastDest = PolicyEngine.isMulticastDest(destAddress),
         destPort = destPort,
         perAppPolicy = perAppPolicy,
         isSystemApp = isSystemApp,
@@ -0,0 +1,102 @@
+package tech.httptoolkit.android.vpn
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.io.FileOutputStream
+
+class ClientPacketWriterTest {
+
+    private lateinit var tempFile: File
+    private lateinit var writer: ClientPacketWriter
+    private lateinit var writerThread: Thread
+
+    @Before
+    fun setUp() {
+        tempFile = File.createTempFile("tun", ".bin").apply { deleteOnExit() }
+        writer = ClientPacketWriter(FileOutputStream(tempFile))
+        writerThread = Thread(writer, "tun-writer-test").apply { isDaemon = true; start() }
+    }
+
+    @After
+    fun tearDown() {
+        writer.shutdown()
+        writerThread.interrupt()
+        writerThread.join(2000)
+        tempFile.delete()
+    }
+
+    private fun pooledPacket(fill: Int, length: Int): PacketBuffer =
+        writer.obtainBuffer().apply {
+            array().fill(fill.toByte(), 0, length)
+            setLength(length)
+        }
+
+    private fun awaitFileSize(size: Long) {
+        val deadline = System.currentTimeMillis() + 2000
+        while (tempFile.length() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5)
+        }
+    }
+
+    @Test
+    fun `only the packet bytes of a pooled buffer reach the TUN, in order`() {
+        writer.write(pooledPacket(1, 3))
+        writer.write(byteArrayOf(2, 2))
+        writer.write(pooledPacket(3, 1))
+
+        awaitFileSize(6)
+        assertThat(tempFile.readBytes()).isEqualTo(byteArrayOf(1, 1, 1, 2, 2, 3))
+    }
+
+    @Test
+    fun `written buffers are reused instead of reallocated`() {
+        val first = pooledPacket(1, 10)
+        writer.write(first)
+        awaitFileSize(10)
+
+        // Give the writer thread a moment to hand the buffer back after its write returns
+        val deadline = System.currentTimeMillis() + 2000
+        var reused = false
+        while (!reused && System.currentTimeMillis() < deadline) {
+            val next = writer.obtainBuffer()
+            reused = next === first
+            if (!reused) Thread.sleep(5)
+        }
+        assertThat(reused).isTrue()
+    }
+
+    @Test
+    fun `obtained buffers are MTU sized and empty`() {
+        val buffer = writer.obtainBuffer()
+        assertThat(buffer.capacity()).isEqualTo(PacketBuffer.POOLED_CAPACITY)
+        assertThat(buffer.length()).isEqualTo(0)
+    }
+
+    @Test
+    fun `packets queued before a wakeup are written as one batch`() {
+        val file = File.createTempFile("tun", ".bin").apply { deleteOnExit() }
+        val batchingWriter = ClientPacketWriter(FileOutputStream(file))
+        repeat(10) { batchingWriter.write(byteArrayOf(it.toByte())) }
+        assertThat(batchingWriter.queueDepth).isEqualTo(10)
+
+        val thread = Thread(batchingWriter, "tun-batch-test").apply { isDaemon = true; start() }
+        try {
+            val deadline = System.currentTimeMillis() + 2000
+            while (file.length() < 10 && System.currentTimeMillis() < deadline) Thread.sleep(5)
+
+            assertThat(file.readBytes()).isEqualTo(ByteArray(10) { it.toByte() })
+            assertThat(batchingWriter.batchCount).isEqualTo(1)
+            assertThat(batchingWriter.writtenPacketCount).isEqualTo(10)
+            assertThat(batchingWriter.maxBatchSize).isEqualTo(10)
+            assertThat(batchingWriter.maxQueueDepth).isEqualTo(10)
+            assertThat(batchingWriter.queueDepth).isEqualTo(0)
+        } finally {
+            batchingWriter.shutdown()
+            thread.interrupt()
+            file.delete()
+        }
+    }
+}
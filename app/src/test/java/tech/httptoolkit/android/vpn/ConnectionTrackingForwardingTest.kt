@@ -91,7 +91,7 @@ class ConnectionTrackingForwardingTest {
             val session = harness.await {
                 harness.sessionByKey(udpKey(40003, peerPort))
             }
-            assertThat(harness.flowDao.countNotSyncedFlows()).isEqualTo(1)
+            assertThat(harness.storedFlowCount()).isEqualTo(1)
             harness.await { session.flow.takeIf { it.packetCountEgress >= 2 } }
         } finally {
             peer.close()
@@ -157,7 +157,7 @@ class ConnectionTrackingForwardingTest {
             // Two distinct sessions and two recorded flows.
             assertThat(harness.sessionByKey(tcpKey(40001, peerPort))).isNotNull()
             assertThat(harness.sessionByKey(tcpKey(40002, peerPort))).isNotNull()
-            assertThat(harness.flowDao.countNotSyncedFlows()).isEqualTo(2)
+            assertThat(harness.storedFlowCount()).isEqualTo(2)
 
             accept1.get(3, TimeUnit.SECONDS)
             accept2.get(3, TimeUnit.SECONDS)
@@ -185,7 +185,7 @@ class ConnectionTrackingForwardingTest {
         assertThat(tcp.destinationPort).isEqualTo(40009)
 
         assertThat(harness.sessionByKey(tcpKey(40009, 9))).isNull()
-        assertThat(harness.flowDao.countNotSyncedFlows()).isEqualTo(0)
+        assertThat(harness.storedFlowCount()).isEqualTo(0)
     }
 
     // --- helpers -------------------------------------------------------------
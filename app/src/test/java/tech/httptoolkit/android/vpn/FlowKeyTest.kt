@@ -0,0 +1,85 @@
+package tech.httptoolkit.android.vpn
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import tech.httptoolkit.android.vpn.transport.PacketView
+import tech.httptoolkit.android.vpn.transport.ip.IPAddress
+import java.nio.ByteBuffer
+
+/** Pure-JVM tests for [FlowKey] identity, used as the session table key. */
+class FlowKeyTest {
+
+    private val client = IPAddress(TestPackets.ip("10.0.0.2"))
+    private val peer = IPAddress(TestPackets.ip("192.168.1.1"))
+
+    private fun key(
+        protocol: SessionProtocol = SessionProtocol.TCP,
+        destIp: IPAddress = peer,
+        destPort: Int = 80,
+        sourceIp: IPAddress = client,
+        sourcePort: Int = 5555,
+    ) = FlowKey.of(protocol, destIp, destPort, sourceIp, sourcePort)
+
+    /** IPv4-compatible IPv6 address (::a.b.c.d): 12 zero bytes followed by the IPv4 address. */
+    private fun compatible(v4: String) = IPAddress(ByteArray(12) + TestPackets.ip(v4))
+
+    @Test
+    fun `keys for the same tuple are equal with equal hashes`() {
+        val a = key()
+        val b = FlowKey.of(
+            SessionProtocol.TCP, IPAddress(TestPackets.ip("192.168.1.1")), 80,
+            IPAddress(TestPackets.ip("10.0.0.2")), 5555,
+        )
+        assertThat(a).isEqualTo(b)
+        assertThat(a.hashCode()).isEqualTo(b.hashCode())
+    }
+
+    @Test
+    fun `every tuple component is part of the identity`() {
+        val base = key()
+        assertThat(key(protocol = SessionProtocol.UDP)).isNotEqualTo(base)
+        assertThat(key(destPort = 81)).isNotEqualTo(base)
+        assertThat(key(sourcePort = 5556)).isNotEqualTo(base)
+        assertThat(key(destIp = IPAddress(TestPackets.ip("192.168.1.2")))).isNotEqualTo(base)
+        assertThat(key(sourceIp = IPAddress(TestPackets.ip("10.0.0.3")))).isNotEqualTo(base)
+        // Swapping direction is a different session
+        assertThat(key(destIp = client, destPort = 5555, sourceIp = peer, sourcePort = 80)).isNotEqualTo(base)
+    }
+
+    @Test
+    fun `ipv6 keys compare by the full address and never equal ipv4 keys`() {
+        val v6Client = IPAddress(TestPackets.ipv6("fd00::2"))
+        val v6Peer = IPAddress(TestPackets.ipv6("fd00::1"))
+        val a = key(destIp = v6Peer, sourceIp = v6Client)
+
+        assertThat(a).isEqualTo(key(destIp = IPAddress(TestPackets.ipv6("fd00::1")), sourceIp = v6Client))
+        assertThat(a).isNotEqualTo(key(destIp = IPAddress(TestPackets.ipv6("fd01::1")), sourceIp = v6Client))
+        // ::c0a8:101 packs to the same words as 192.168.1.1, but is still an IPv6 session
+        assertThat(key(destIp = compatible("192.168.1.1"), sourceIp = compatible("10.0.0.2")))
+            .isNotEqualTo(key())
+    }
+
+    @Test
+    fun `a reused probe key finds sessions stored under their own key`() {
+        val table = HashMap<FlowKey, String>()
+        table[key(destPort = 80)] = "http"
+        table[key(destPort = 443)] = "https"
+
+        val probe = FlowKey()
+        assertThat(table[probe.set(SessionProtocol.TCP, peer, 443, client, 5555)]).isEqualTo("https")
+        assertThat(table[probe.set(SessionProtocol.TCP, peer, 80, client, 5555)]).isEqualTo("http")
+        assertThat(table[probe.set(SessionProtocol.UDP, peer, 80, client, 5555)]).isNull()
+    }
+
+    @Test
+    fun `keys read from a packet view equal keys built from addresses`() {
+        val view = PacketView()
+        view.wrap(ByteBuffer.wrap(TestPackets.tcpPacket("10.0.0.2", 5555, "192.168.1.1", 443, 1, 0, TestPackets.SYN)))
+        assertThat(FlowKey().set(SessionProtocol.TCP, view)).isEqualTo(key(destPort = 443))
+
+        view.wrap(ByteBuffer.wrap(TestPackets.icmpv6Packet("fd00::2", "fd00::1", TestPackets.ICMP_V6_ECHO_REQUEST, 0, 1, 1)))
+        val v6Key = key(destIp = IPAddress(TestPackets.ipv6("fd00::1")), destPort = 0,
+            sourceIp = IPAddress(TestPackets.ipv6("fd00::2")), sourcePort = 0)
+        assertThat(FlowKey().set(SessionProtocol.TCP, view)).isEqualTo(v6Key)
+    }
+}
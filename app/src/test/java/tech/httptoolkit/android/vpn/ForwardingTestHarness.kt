@@ -5,6 +5,8 @@ import androidx.room.Room
 import androidx.test.core.app.ApplicationProvider
 import org.distrinet.lanshield.database.AppDatabase
 import org.distrinet.lanshield.database.dao.FlowDao
+import org.distrinet.lanshield.vpnservice.DpiClassifier
+import org.distrinet.lanshield.vpnservice.FlowStore
 import tech.httptoolkit.android.vpn.socket.IProtectSocket
 import tech.httptoolkit.android.vpn.socket.SocketNIODataService
 import tech.httptoolkit.android.vpn.socket.SocketProtector
@@ -16,6 +18,7 @@ import tech.httptoolkit.android.vpn.transport.udp.UDPHeader
 import tech.httptoolkit.android.vpn.transport.udp.UDPPacketFactory
 import java.io.File
 import java.io.FileOutputStream
+import java.lang.management.ManagementFactory
 import java.net.DatagramSocket
 import java.net.Socket
 import java.nio.ByteBuffer
@@ -24,15 +27,18 @@ import java.util.concurrent.TimeUnit
 
 class CapturingClientPacketWriter(out: FileOutputStream) : ClientPacketWriter(out) {
     val queue = LinkedBlockingQueue<ByteArray>()
-    override fun write(data: ByteArray) {
-        queue.add(data)
+    override fun write(packet: PacketBuffer) {
+        queue.add(packet.toByteArray())
+        release(packet)
     }
 }
 
-class ForwardingTestHarness : AutoCloseable {
+/** Runs the engine against loopback sockets, with [nioShards] selector threads. */
+class ForwardingTestHarness(nioShards: Int = 1) : AutoCloseable {
 
     val db: AppDatabase
     val flowDao: FlowDao
+    val flowStore: FlowStore
     val writer: CapturingClientPacketWriter
     val nioService: SocketNIODataService
     val sessionManager: SessionManager
@@ -50,11 +56,14 @@ class ForwardingTestHarness : AutoCloseable {
         tempTunFile = File.createTempFile("tun", ".bin").apply { deleteOnExit() }
         writer = CapturingClientPacketWriter(FileOutputStream(tempTunFile))
 
-        nioService = SocketNIODataService(writer, db)
+        // Flushed often, so tests can read counters back from the database promptly
+        flowStore = FlowStore(db, flushIntervalMs = 20).apply { start() }
+        nioService = SocketNIODataService(writer, flowStore, nioShards)
         nioThread = Thread(nioService, "nio-test").apply { isDaemon = true; start() }
 
-        sessionManager = SessionManager(db)
-        sessionHandler = SessionHandler(sessionManager, nioService, writer, db)
+        sessionManager = SessionManager(DpiClassifier(db), flowStore)
+        nioService.setSessionManager(sessionManager)
+        sessionHandler = SessionHandler(sessionManager, nioService, writer)
     }
 
     /** Feed a raw IP packet into the engine, exactly as VPNRunnable.run() would. */
@@ -99,6 +108,17 @@ class ForwardingTestHarness : AutoCloseable {
 
     fun sessionByKey(key: String): Session? = sessionManager.getSessionByKey(key)
 
+    /** Bytes the NIO thread (the first shard's) has allocated so far, for comparing allocation rates. */
+    fun nioThreadAllocatedBytes(): Long =
+        (ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean)
+            .getThreadAllocatedBytes(nioThread.id)
+
+    /** Number of flows in the database, after writing out any the flow store still holds. */
+    fun storedFlowCount(): Int {
+        flowStore.flushNow()
+        return flowDao.countNotSyncedFlows()
+    }
+
     /** Poll [block] until it returns non-null, or fail. */
     fun <T : Any> await(timeoutMs: Long = 2000, intervalMs: Long = 10, block: () -> T?): T {
         val deadline = System.nanoTime() + timeoutMs * 1_000_000
@@ -112,6 +132,7 @@ class ForwardingTestHarness : AutoCloseable {
     override fun close() {
         runCatching { nioService.shutdown() }
         runCatching { nioThread.join(1000) }
+        runCatching { flowStore.shutdown(); flowStore.awaitTermination(1000) }
         runCatching { db.close() }
         runCatching { tempTunFile.delete() }
     }
@@ -140,7 +140,7 @@ class IcmpForwardingTest {
                 identifier = 9, seq = 9,
             )
         )
-        assertThat(harness.flowDao.countNotSyncedFlows()).isEqualTo(0)
+        assertThat(harness.storedFlowCount()).isEqualTo(0)
     }
 
     @Test
@@ -134,7 +134,7 @@ class MixedProtocolConcurrencyTest {
             // One session/flow per TCP and UDP flow; ICMP contributed none.
             tcpFlows.forEach { assertThat(harness.sessionByKey(tcpKey(it.clientPort, it.peerPort))).isNotNull() }
             udpPorts.forEach { assertThat(harness.sessionByKey(udpKey(it, udpPeerPort))).isNotNull() }
-            assertThat(harness.flowDao.countNotSyncedFlows())
+            assertThat(harness.storedFlowCount())
                 .isEqualTo((tcpPorts.size + udpPorts.size).toLong())
 
             echo.join(2000)
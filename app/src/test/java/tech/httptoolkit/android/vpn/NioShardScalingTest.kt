@@ -0,0 +1,223 @@
+package tech.httptoolkit.android.vpn
+
+import android.app.Application
+import com.google.common.truth.Truth.assertThat
+import org.junit.After
+import org.junit.Ignore
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import tech.httptoolkit.android.vpn.transport.ip.IPAddress
+import java.net.DatagramPacket
+import java.net.DatagramSocket
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [34], application = Application::class)
+class NioShardScalingTest {
+
+    private val executor = Executors.newCachedThreadPool()
+
+    private val clientIp = "10.0.0.2"
+    private val peerIp = "127.0.0.1"
+    private val mss = 1460
+    private val window = 65535
+    private val shards = 4
+
+    @After
+    fun tearDown() {
+        executor.shutdownNow()
+    }
+
+    @Test
+    fun `a batch over flows on every shard wakes each selector at most once`() {
+        val peer = DatagramSocket(0, InetAddress.getByName(peerIp)).apply { soTimeout = 3000 }
+        val ports = (43000 until 43032).toList()
+        ForwardingTestHarness(nioShards = shards).use { harness ->
+            try {
+                ports.forEach { harness.feed(udp(it, peer.localPort, "open")) }
+                repeat(ports.size) { peer.receive(DatagramPacket(ByteArray(64), 64)) }
+
+                val owners = ports.map { port ->
+                    val session = harness.await { harness.sessionManager.findUdpSession(port, peer.localPort) }
+                    harness.nioService.shardOf(session)
+                }
+                assertThat(owners.toSet().size).isGreaterThan(1)
+
+                val nio = harness.nioService
+                val wakeupsBefore = nio.selectorWakeups
+                nio.beginBatch()
+                ports.forEach { harness.feed(udp(it, peer.localPort, "batch")) }
+                nio.endBatch()
+                assertThat(nio.selectorWakeups - wakeupsBefore).isAtMost(shards.toLong())
+
+                repeat(ports.size) {
+                    val rx = DatagramPacket(ByteArray(64), 64)
+                    peer.receive(rx)
+                    assertThat(String(rx.data, 0, rx.length)).isEqualTo("batch")
+                }
+            } finally {
+                peer.close()
+            }
+        }
+    }
+
+    @Test
+    fun `concurrent downloads spread over selector shards all complete in order`() {
+        val flows = flows(count = 16, total = 256 * 1024)
+        ForwardingTestHarness(nioShards = shards).use { harness -> runDownloads(harness, flows) }
+        assertThat(flows.map { it.shard }.toSet().size).isGreaterThan(1)
+    }
+
+    @Ignore("Benchmark: run by hand to compare download throughput over one and several selector shards")
+    @Test
+    fun `concurrent downloads scale over selector shards`() {
+        val flowCount = 32
+        val total = 512 * 1024
+
+        val single = ForwardingTestHarness(nioShards = 1).use { runDownloads(it, flows(flowCount, total)) }
+        val sharded = ForwardingTestHarness(nioShards = shards).use { runDownloads(it, flows(flowCount, total)) }
+
+        val megabytes = flowCount * total / (1024.0 * 1024.0)
+        println(
+            "NIO shard scaling, $flowCount flows of ${total / 1024} KB: " +
+                "1 shard %.1f MB/s, $shards shards %.1f MB/s".format(
+                    megabytes * 1e9 / single, megabytes * 1e9 / sharded
+                )
+        )
+    }
+
+    // --- helpers -------------------------------------------------------------
+
+    private fun flows(count: Int, total: Int) = List(count) { Flow(clientPort = 53000 + it, total = total) }
+
+    /**
+     * Download each flow's total at once over [harness], checking each flow's data arrives in
+     * sequence, and return how long the data took in ns. Fails if any flow stalls before
+     * receiving all of it.
+     */
+    private fun runDownloads(harness: ForwardingTestHarness, flows: List<Flow>): Long {
+        val byPort = flows.associateBy { it.clientPort }
+        try {
+            flows.forEach { it.open() }
+            flows.forEach { feed(harness, it, seq = 1000L, ack = 0, flags = TestPackets.SYN) }
+            repeat(flows.size) {
+                val synAck = harness.awaitTunPacketMatching { val (_, t) = harness.parseTcp(it); t.isSYN && t.isACK }
+                val (_, tcp) = harness.parseTcp(synAck)
+                val flow = byPort.getValue(tcp.destinationPort)
+                flow.serverIsn = tcp.sequenceNumber
+                flow.expectedSeq = (tcp.sequenceNumber + 1) and 0xFFFFFFFFL
+            }
+            flows.forEach { feedAck(harness, it) }
+            flows.forEach { it.accept() }
+            flows.forEach { it.shard = harness.nioService.shardOf(harness.sessionByKey(tcpKey(it))!!) }
+
+            val started = System.nanoTime()
+            flows.forEach { flow ->
+                executor.submit {
+                    runCatching { flow.accepted.getOutputStream().apply { write(ByteArray(flow.total)); flush() } }
+                }
+            }
+
+            // Ack each flow at half its window, nudging idle flows in case the engine waits on an ACK
+            val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30)
+            while (flows.any { !it.complete }) {
+                if (System.nanoTime() > deadline) {
+                    throw AssertionError("Downloads stalled: " + flows.filter { !it.complete }
+                        .joinToString { "port ${it.clientPort} at ${it.received}/${it.total}" })
+                }
+                val pkt = harness.pollTunPacket(500)
+                if (pkt == null) {
+                    flows.filter { !it.complete }.forEach { feedAck(harness, it) }
+                    continue
+                }
+                val (_, tcp) = harness.parseTcp(pkt)
+                val flow = byPort.getValue(tcp.destinationPort)
+                val len = tcpPayloadLength(pkt)
+                if (len <= 0) continue
+
+                assertThat(tcp.sequenceNumber and 0xFFFFFFFFL).isEqualTo(flow.expectedSeq)
+                flow.expectedSeq = (flow.expectedSeq + len) and 0xFFFFFFFFL
+                flow.received += len
+                if (flow.received - flow.lastAck >= window / 2 || flow.complete) {
+                    feedAck(harness, flow)
+                }
+            }
+
+            val elapsed = System.nanoTime() - started
+
+            flows.forEach { assertThat(it.received).isEqualTo(it.total.toLong()) }
+            return elapsed
+        } finally {
+            flows.forEach { it.close() }
+        }
+    }
+
+    private inner class Flow(val clientPort: Int, val total: Int) {
+        lateinit var server: ServerSocket
+        var peerPort = 0
+        lateinit var accepted: Socket
+        private lateinit var acceptFuture: Future<Socket>
+        var serverIsn = 0L
+        var expectedSeq = 0L
+        var received = 0L
+        var lastAck = 0L
+        var shard = -1
+        val complete get() = received >= total
+
+        fun open() {
+            server = ServerSocket(0, 50, InetAddress.getByName(peerIp))
+            peerPort = server.localPort
+            acceptFuture = executor.submit<Socket> { server.accept() }
+        }
+
+        fun accept() { accepted = acceptFuture.get(3, TimeUnit.SECONDS) }
+
+        fun close() {
+            runCatching { if (this::accepted.isInitialized) accepted.close() }
+            runCatching { server.close() }
+        }
+    }
+
+    private fun feed(harness: ForwardingTestHarness, flow: Flow, seq: Long, ack: Long, flags: Int) = harness.feed(
+        TestPackets.tcpPacket(
+            clientIp, flow.clientPort, peerIp, flow.peerPort,
+            seq = seq, ack = ack, flags = flags, mss = mss.takeIf { flags == TestPackets.SYN }, windowSize = window,
+        )
+    )
+
+    private fun feedAck(harness: ForwardingTestHarness, flow: Flow) {
+        feed(harness, flow, seq = 1001L, ack = flow.serverIsn + 1 + flow.received, flags = TestPackets.ACK)
+        flow.lastAck = flow.received
+    }
+
+    private fun udp(clientPort: Int, peerPort: Int, payload: String): ByteArray =
+        TestPackets.udpPacket(clientIp, clientPort, peerIp, peerPort, payload.toByteArray())
+
+    private fun SessionManager.findUdpSession(clientPort: Int, peerPort: Int): Session? = getSessionByKey(
+        Session.getSessionKey(
+            SessionProtocol.UDP,
+            IPAddress(TestPackets.ip(peerIp)), peerPort,
+            IPAddress(TestPackets.ip(clientIp)), clientPort,
+        )
+    )
+
+    private fun tcpKey(flow: Flow): String = Session.getSessionKey(
+        SessionProtocol.TCP,
+        IPAddress(TestPackets.ip(peerIp)), flow.peerPort,
+        IPAddress(TestPackets.ip(clientIp)), flow.clientPort,
+    )
+
+    private fun tcpPayloadLength(packet: ByteArray): Int {
+        val ihl = (packet[0].toInt() and 0x0F) * 4
+        val totalLength = ((packet[2].toInt() and 0xFF) shl 8) or (packet[3].toInt() and 0xFF)
+        val dataOffset = ((packet[ihl + 12].toInt() shr 4) and 0x0F) * 4
+        return totalLength - ihl - dataOffset
+    }
+}
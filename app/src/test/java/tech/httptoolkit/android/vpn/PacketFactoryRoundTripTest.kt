@@ -8,6 +8,7 @@ import tech.httptoolkit.android.vpn.transport.tcp.TCPHeader
 import tech.httptoolkit.android.vpn.transport.tcp.TCPPacketFactory
 import tech.httptoolkit.android.vpn.transport.udp.UDPHeader
 import tech.httptoolkit.android.vpn.transport.udp.UDPPacketFactory
+import tech.httptoolkit.android.vpn.util.PacketUtil
 import java.nio.ByteBuffer
 
 class PacketFactoryRoundTripTest {
@@ -57,6 +58,43 @@ class PacketFactoryRoundTripTest {
         assertThat(ip2.destinationIP.toString()).isEqualTo("10.0.0.2")
     }
 
+    @Test
+    fun `a SYN-ACK offering window scaling keeps the MSS and carries our shift`() {
+        val (ip, tcp) = parseIpTcp(
+            TestPackets.tcpPacket("10.0.0.2", 50000, "8.8.8.8", 443, seq = 1000, ack = 0, flags = TestPackets.SYN, mss = 1460)
+        )
+        val (_, synAck) = parseIpTcp(TCPPacketFactory.createSynAckPacketData(ip, tcp, 65535, 5).buffer)
+
+        assertThat(synAck.windowSize).isEqualTo(65535)
+        assertThat(synAck.hasWindowScaleOption()).isTrue()
+        assertThat(synAck.windowScale).isEqualTo(5)
+        assertThat(synAck.maxSegmentSize).isEqualTo(1460)
+    }
+
+    @Test
+    fun `a SYN-ACK to a client offering every option echoes timestamps but not SACK`() {
+        val (ip, tcp) = parseIpTcp(
+            TestPackets.tcpPacket(
+                "10.0.0.2", 50000, "8.8.8.8", 443, seq = 1000, ack = 0, flags = TestPackets.SYN,
+                mss = 1460, windowScale = 7, timestamp = 0x01020304, sackPermitted = true,
+            )
+        )
+        val packet = TCPPacketFactory.createSynAckPacketData(ip, tcp, 65535, 5).buffer
+        val (_, synAck) = parseIpTcp(packet)
+
+        // MSS, NOP + window scale, NOP NOP + timestamps: 20 bytes of options, no SACK-permitted
+        assertThat(synAck.dataOffset).isEqualTo(10)
+        val options = packet.copyOfRange(40, 60)
+        assertThat(options.copyOfRange(0, 12).toList()).containsExactly(
+            0x02.toByte(), 0x04.toByte(), 0x05.toByte(), 0xB4.toByte(),
+            0x01.toByte(), 0x03.toByte(), 0x03.toByte(), 0x05.toByte(),
+            0x01.toByte(), 0x01.toByte(), 0x08.toByte(), 0x0A.toByte(),
+        ).inOrder()
+        // TSecr echoes the client's TSval
+        assertThat(ByteBuffer.wrap(options, 16, 4).int).isEqualTo(0x01020304)
+        assertThat(synAck.hasTimestampOption()).isTrue()
+    }
+
     @Test
     fun `createRstData produces a reset packet`() {
         val (ip, tcp) = parseIpTcp(
@@ -103,4 +141,40 @@ class PacketFactoryRoundTripTest {
         assertThat(udp2.destinationPort).isEqualTo(50000)
         assertThat(String(payload)).isEqualTo("REPLY")
     }
+
+    /** A pooled-size buffer full of junk, as left behind by an earlier, longer packet. */
+    private fun dirtyBuffer() = PacketBuffer(ByteArray(PacketBuffer.POOLED_CAPACITY) { 0x55 }, true)
+
+    @Test
+    fun `pooled tcp response matches the allocated one and has a valid checksum`() {
+        val (ip, tcp) = parseIpTcp(
+            TestPackets.tcpPacket("10.0.0.2", 50000, "8.8.8.8", 443, seq = 7, ack = 99, flags = TestPackets.ACK)
+        )
+        val body = "xxODD-LENGTHxx".toByteArray()
+        val expected = TCPPacketFactory.createResponsePacketData(ip, tcp, body.copyOfRange(2, 11), false, 5, 9, 0, 0)
+
+        val out = dirtyBuffer()
+        TCPPacketFactory.writeResponsePacketData(out, ip, tcp, body, 2, 9, false, 5, 9, 0, 0, tcp.windowSize)
+
+        assertThat(out.toByteArray()).isEqualTo(expected)
+        val (ip2, tcp2) = parseIpTcp(expected)
+        assertThat(
+            PacketUtil.isValidTCPChecksum(ip2.sourceIP, ip2.destinationIP, expected,
+                (tcp2.tcpHeaderLength + 9).toShort(), 20)
+        ).isTrue()
+    }
+
+    @Test
+    fun `pooled udp response matches the allocated one`() {
+        val (ip, udp, _) = parseIpUdp(
+            TestPackets.udpPacket("10.0.0.2", 50000, "8.8.8.8", 53, "q".toByteArray())
+        )
+        val expected = UDPPacketFactory.createResponsePacket(ip, udp, "REPLY".toByteArray())
+
+        val out = dirtyBuffer()
+        UDPPacketFactory.writeResponsePacket(out, ip, udp, "--REPLY--".toByteArray(), 2, 5)
+
+        assertThat(out.toByteArray()).isEqualTo(expected)
+        assertThat(UDPPacketFactory.responsePacketLength(ip, 5)).isEqualTo(expected.size)
+    }
 }
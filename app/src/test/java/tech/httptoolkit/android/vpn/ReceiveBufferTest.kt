@@ -0,0 +1,111 @@
+package tech.httptoolkit.android.vpn
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Assert.assertThrows
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.nio.channels.Channels
+
+class ReceiveBufferTest {
+
+    private fun bytes(from: Int, count: Int) = ByteArray(count) { (from + it).toByte() }
+
+    /** Drain the buffer the way pumpToClient does: contiguous runs of at most segment bytes. */
+    private fun drainInSegments(buffer: ReceiveBuffer, segment: Int): Pair<ByteArray, Int> {
+        val out = ByteArrayOutputStream()
+        var segments = 0
+        while (!buffer.isEmpty) {
+            val chunk = minOf(segment, buffer.contiguousSize())
+            out.write(buffer.array(), buffer.readOffset(), chunk)
+            buffer.consume(chunk)
+            segments++
+        }
+        return Pair(out.toByteArray(), segments)
+    }
+
+    @Test
+    fun `data comes out in the order it went in, across the wrap`() {
+        val buffer = ReceiveBuffer()
+        buffer.write(bytes(0, 10_000), 0, 10_000)
+        val capacity = buffer.capacity()
+
+        // Free the front of the ring, then write past its end so the data wraps around
+        val head = ByteArray(8_000)
+        assertThat(buffer.read(head, 0, head.size)).isEqualTo(8_000)
+        assertThat(head).isEqualTo(bytes(0, 8_000))
+        buffer.write(bytes(10_000, 10_000), 0, 10_000)
+
+        assertThat(buffer.capacity()).isEqualTo(capacity)
+        assertThat(buffer.contiguousSize()).isLessThan(buffer.size())
+        val (drained, _) = drainInSegments(buffer, 1400)
+        assertThat(drained).isEqualTo(bytes(8_000, 12_000))
+    }
+
+    @Test
+    fun `growing keeps wrapped data in order`() {
+        val buffer = ReceiveBuffer()
+        buffer.write(bytes(0, 12_000), 0, 12_000)
+        buffer.consume(10_000)
+        buffer.write(bytes(12_000, 6_000), 0, 6_000)    // wraps
+        buffer.write(bytes(18_000, 20_000), 0, 20_000)  // doesn't fit, so the ring grows
+
+        assertThat(buffer.size()).isEqualTo(28_000)
+        val (drained, _) = drainInSegments(buffer, 1400)
+        assertThat(drained).isEqualTo(bytes(10_000, 28_000))
+    }
+
+    @Test
+    fun `draining a full buffer in segments doesn't shift the rest`() {
+        val buffer = ReceiveBuffer()
+        val staged = 2 * 65535
+        buffer.write(bytes(0, staged), 0, staged)
+        val ring = buffer.array()
+
+        val (drained, segments) = drainInSegments(buffer, 1400)
+        assertThat(drained).isEqualTo(bytes(0, staged))
+        assertThat(segments).isEqualTo((staged + 1399) / 1400)
+        // Every segment was read from the same ring, in place
+        assertThat(buffer.array()).isSameInstanceAs(ring)
+    }
+
+    @Test
+    fun `reading from a channel fills the ring in place, up to the wrap`() {
+        val buffer = ReceiveBuffer()
+        buffer.write(bytes(0, 12_000), 0, 12_000)
+        buffer.consume(10_000)
+        val ring = buffer.array()
+
+        val source = Channels.newChannel(ByteArrayInputStream(bytes(12_000, 10_000)))
+        var read = 0
+        while (read < 10_000) read += buffer.readFrom(source, 10_000 - read)
+
+        assertThat(buffer.array()).isSameInstanceAs(ring)
+        assertThat(buffer.readFrom(source, 100)).isEqualTo(-1)
+        val (drained, _) = drainInSegments(buffer, 1400)
+        assertThat(drained).isEqualTo(bytes(10_000, 12_000))
+    }
+
+    @Test
+    fun `a read that stops at the wrap takes its whole span`() {
+        val buffer = ReceiveBuffer()
+        buffer.write(bytes(0, 12_000), 0, 12_000)
+        buffer.consume(10_000)
+        val span = buffer.readSpan(10_000)
+        assertThat(span).isEqualTo(buffer.capacity() - 12_000)
+
+        // The channel has more than the span, so the read is short of what was asked for but
+        // not of what it could take
+        val source = Channels.newChannel(ByteArrayInputStream(bytes(12_000, 10_000)))
+        assertThat(buffer.readFrom(source, 10_000)).isEqualTo(span)
+        // The rest fits at the front of the ring
+        assertThat(buffer.readSpan(10_000 - span)).isEqualTo(10_000 - span)
+    }
+
+    @Test
+    fun `consuming more than is buffered fails`() {
+        val buffer = ReceiveBuffer()
+        buffer.write(bytes(0, 10), 0, 10)
+        assertThrows(IllegalArgumentException::class.java) { buffer.consume(11) }
+    }
+}
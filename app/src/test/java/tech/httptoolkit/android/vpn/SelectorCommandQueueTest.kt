@@ -0,0 +1,75 @@
+package tech.httptoolkit.android.vpn
+
+import android.app.Application
+import com.google.common.truth.Truth.assertThat
+import io.mockk.mockk
+import org.distrinet.lanshield.vpnservice.FlowStore
+import org.junit.After
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import tech.httptoolkit.android.vpn.socket.ICloseSession
+import tech.httptoolkit.android.vpn.socket.SocketNIODataService
+import tech.httptoolkit.android.vpn.transport.ip.IPAddress
+import java.io.File
+import java.io.FileOutputStream
+
+/**
+ * The selector thread isn't started here, so queued commands are never applied and the queue
+ * never drains: only the first command can need a wakeup.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [34], application = Application::class)
+class SelectorCommandQueueTest {
+
+    private val clientIp = IPAddress(byteArrayOf(10, 0, 0, 2))
+    private val peerIp = IPAddress(byteArrayOf(192.toByte(), 168.toByte(), 1, 10))
+    private val closer = ICloseSession { }
+
+    private val tunFile = File.createTempFile("tun", ".bin").apply { deleteOnExit() }
+    private val nio = SocketNIODataService(
+        ClientPacketWriter(FileOutputStream(tunFile)), mockk<FlowStore>(relaxed = true)
+    )
+
+    private var nextPort = 40000
+    private fun session() = Session(SessionProtocol.TCP, clientIp, nextPort++, peerIp, 443, closer)
+
+    @After
+    fun tearDown() {
+        nio.shutdown()
+        tunFile.delete()
+    }
+
+    @Test
+    fun `commands only wake the selector when the queue was empty`() {
+        val sessions = List(10) { session() }
+        sessions.forEach { nio.registerSession(it) }
+        repeat(100) {
+            sessions.forEach { session ->
+                nio.enableWrite(session)
+                nio.pumpToClient(session)
+            }
+        }
+
+        assertThat(nio.selectorWakeups).isEqualTo(1L)
+    }
+
+    @Test
+    fun `commands in a batch wake the selector once the batch ends`() {
+        val session = session()
+        nio.beginBatch()
+        nio.registerSession(session)
+        repeat(10) { nio.enableWrite(session) }
+        assertThat(nio.selectorWakeups).isEqualTo(0L)
+
+        nio.endBatch()
+        assertThat(nio.selectorWakeups).isEqualTo(1L)
+        // Only the first command found the queue empty and needed a wakeup
+        assertThat(nio.deferredWakeups).isEqualTo(1L)
+
+        // Still queued, so later commands need no wakeup of their own
+        nio.unregisterSession(session)
+        assertThat(nio.selectorWakeups).isEqualTo(1L)
+    }
+}
@@ -0,0 +1,76 @@
+package tech.httptoolkit.android.vpn
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.GatheringByteChannel
+
+class SendQueueTest {
+
+    /** Takes at most [budget] bytes until it's given more, like a socket with a full send buffer. */
+    private class LimitedChannel(var budget: Int) : GatheringByteChannel {
+        val received = ByteArrayOutputStream()
+        var gatheringWrites = 0
+
+        override fun write(srcs: Array<ByteBuffer>, offset: Int, length: Int): Long {
+            gatheringWrites++
+            var written = 0L
+            for (i in offset until offset + length) {
+                while (budget > 0 && srcs[i].hasRemaining()) {
+                    received.write(srcs[i].get().toInt())
+                    budget--
+                    written++
+                }
+            }
+            return written
+        }
+
+        override fun write(srcs: Array<ByteBuffer>): Long = write(srcs, 0, srcs.size)
+        override fun write(src: ByteBuffer): Int = write(arrayOf(src)).toInt()
+        override fun isOpen() = true
+        override fun close() {}
+    }
+
+    private fun bytes(from: Int, count: Int) = ByteArray(count) { (from + it).toByte() }
+
+    @Test
+    fun `queued payloads are written in order with gathering writes`() {
+        val queue = SendQueue()
+        for (i in 0 until 10) queue.add(bytes(i * 100, 100), 0, 100)
+        assertThat(queue.size()).isEqualTo(1000L)
+
+        val channel = LimitedChannel(budget = Int.MAX_VALUE)
+        assertThat(queue.writeTo(channel)).isEqualTo(1000L)
+        assertThat(channel.received.toByteArray()).isEqualTo(bytes(0, 1000))
+        assertThat(channel.gatheringWrites).isEqualTo(1)
+        assertThat(queue.isEmpty).isTrue()
+    }
+
+    @Test
+    fun `an unwritten tail stays queued and is written next time`() {
+        val queue = SendQueue()
+        queue.add(bytes(0, 300), 0, 300)
+        queue.add(bytes(300, 300), 0, 300)
+
+        val channel = LimitedChannel(budget = 450)
+        assertThat(queue.writeTo(channel)).isEqualTo(450L)
+        assertThat(queue.size()).isEqualTo(150L)
+
+        queue.add(bytes(600, 100), 0, 100)
+        channel.budget = Int.MAX_VALUE
+        assertThat(queue.writeTo(channel)).isEqualTo(250L)
+        assertThat(channel.received.toByteArray()).isEqualTo(bytes(0, 700))
+    }
+
+    @Test
+    fun `adding copies the payload out of the caller's buffer`() {
+        val queue = SendQueue()
+        val packet = bytes(0, 50)
+        queue.add(packet, 20, 10)
+        packet.fill(0)
+
+        assertThat(queue.drain()).isEqualTo(bytes(20, 10))
+        assertThat(queue.isEmpty).isTrue()
+    }
+}
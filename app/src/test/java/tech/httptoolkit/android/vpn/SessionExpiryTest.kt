@@ -0,0 +1,109 @@
+package tech.httptoolkit.android.vpn
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import tech.httptoolkit.android.vpn.socket.ICloseSession
+import tech.httptoolkit.android.vpn.transport.ip.IPAddress
+
+class SessionExpiryTest {
+
+    private val clientIp = IPAddress(byteArrayOf(10, 0, 0, 2))
+    private val peerIp = IPAddress(byteArrayOf(192.toByte(), 168.toByte(), 1, 10))
+    private val closer = ICloseSession { }
+
+    private var nextPort = 40000
+    private val closed = HashSet<Session>()
+    private val reaped = ArrayList<Session>()
+
+    // DNS 5 s, UDP 30 s, TCP connecting 10 s, half-closed 20 s, established 600 s
+    private val expiry = SessionExpiry(0, 5_000, 30_000, 10_000, 20_000, 600_000)
+
+    private fun session(protocol: SessionProtocol, destPort: Int = 9999) =
+        Session(protocol, clientIp, nextPort++, peerIp, destPort, closer)
+
+    private fun advanceTo(seconds: Long): Int =
+        expiry.advance(seconds * 1000, { it !in closed }, { reaped.add(it); closed.add(it) })
+
+    /** The second at which a session tracked at 0 and never touched is reaped. */
+    private fun reapedAt(session: Session): Long {
+        expiry.track(session, 0)
+        for (second in 0L..2_000L) {
+            advanceTo(second)
+            if (session in reaped) return second
+        }
+        throw AssertionError("$session was never reaped")
+    }
+
+    @Test
+    fun `dns sessions expire after the dns timeout`() {
+        assertThat(reapedAt(session(SessionProtocol.UDP, 53))).isEqualTo(5)
+    }
+
+    @Test
+    fun `udp sessions expire after the udp timeout`() {
+        assertThat(reapedAt(session(SessionProtocol.UDP))).isEqualTo(30)
+    }
+
+    @Test
+    fun `unconnected tcp sessions expire after the connecting timeout`() {
+        assertThat(reapedAt(session(SessionProtocol.TCP))).isEqualTo(10)
+    }
+
+    @Test
+    fun `established tcp sessions outlive one turn of the wheel`() {
+        val session = session(SessionProtocol.TCP).apply { isConnected = true }
+        assertThat(reapedAt(session)).isEqualTo(600)
+    }
+
+    @Test
+    fun `activity keeps a session alive until it stops`() {
+        val session = session(SessionProtocol.UDP)
+        expiry.track(session, 0)
+        for (second in 0L..100L) {
+            advanceTo(second)
+            expiry.touch(session)
+        }
+        assertThat(reaped).isEmpty()
+
+        advanceTo(129)
+        assertThat(reaped).isEmpty()
+        advanceTo(130)
+        assertThat(reaped).containsExactly(session)
+        assertThat(expiry.reapedCount).isEqualTo(1L)
+        assertThat(expiry.isEmpty).isTrue()
+    }
+
+    @Test
+    fun `sessions closed elsewhere are dropped without being reaped`() {
+        val session = session(SessionProtocol.UDP)
+        expiry.track(session, 0)
+        advanceTo(1)
+        closed.add(session)
+
+        advanceTo(60)
+        assertThat(reaped).isEmpty()
+        assertThat(expiry.isEmpty).isTrue()
+    }
+
+    @Test
+    fun `a long gap between ticks reaps every idle session at once`() {
+        val sessions = List(100) { session(SessionProtocol.UDP) }
+        sessions.forEach { expiry.track(it, 0) }
+        advanceTo(1)
+
+        assertThat(advanceTo(10_000)).isEqualTo(100)
+        assertThat(reaped).containsExactlyElementsIn(sessions)
+    }
+
+    @Test
+    fun `tracking a session twice files it once`() {
+        val session = session(SessionProtocol.UDP)
+        expiry.track(session, 0)
+        advanceTo(1)
+        expiry.track(session, 0)
+        advanceTo(2)
+
+        advanceTo(40)
+        assertThat(reaped).containsExactly(session)
+    }
+}
@@ -6,18 +6,22 @@ import androidx.room.Room
 import androidx.test.core.app.ApplicationProvider
 import com.google.common.truth.Truth.assertThat
 import org.distrinet.lanshield.database.AppDatabase
+import org.distrinet.lanshield.vpnservice.DpiClassifier
+import org.distrinet.lanshield.vpnservice.FlowStore
 import org.junit.After
 import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
 import org.robolectric.RobolectricTestRunner
 import org.robolectric.annotation.Config
+import org.robolectric.shadows.ShadowSystemClock
 import tech.httptoolkit.android.vpn.transport.ip.IPAddress
 import java.net.InetAddress
 import java.net.InetSocketAddress
 import java.net.ServerSocket
 import java.net.Socket
 import java.nio.ByteBuffer
+import java.time.Duration
 import java.util.concurrent.Executors
 import java.util.concurrent.TimeUnit
 
@@ -27,6 +31,7 @@ import java.util.concurrent.TimeUnit
 class SessionManagerUnitTest {
 
     private lateinit var db: AppDatabase
+    private lateinit var flowStore: FlowStore
     private lateinit var manager: SessionManager
 
     private val srcIp = IPAddress(byteArrayOf(10, 0, 0, 2))
@@ -38,11 +43,22 @@ class SessionManagerUnitTest {
         db = Room.inMemoryDatabaseBuilder(
             ApplicationProvider.getApplicationContext(), AppDatabase::class.java,
         ).allowMainThreadQueries().build()
-        manager = SessionManager(db)
+        flowStore = FlowStore(db, flushIntervalMs = 20).apply { start() }
+        manager = SessionManager(DpiClassifier(db), flowStore)
     }
 
     @After
-    fun tearDown() = db.close()
+    fun tearDown() {
+        flowStore.shutdown()
+        flowStore.awaitTermination(1000)
+        db.close()
+    }
+
+    /** Flows are written behind, so flush them before counting what was stored. */
+    private fun storedFlowCount(): Int {
+        flowStore.flushNow()
+        return db.FlowDao().countNotSyncedFlows()
+    }
 
     private fun rawUdp(): ByteBuffer =
         ByteBuffer.wrap(TestPackets.udpPacket("10.0.0.2", 50000, "127.0.0.1", 9999, "x".toByteArray()))
@@ -66,7 +82,7 @@ class SessionManagerUnitTest {
         val first = createUdp()
         val second = createUdp()
         assertThat(second).isSameInstanceAs(first)
-        assertThat(db.FlowDao().countNotSyncedFlows()).isEqualTo(1)
+        assertThat(storedFlowCount()).isEqualTo(1)
     }
 
     @Test
@@ -79,7 +95,7 @@ class SessionManagerUnitTest {
             val second = manager.createNewTCPSession(dstIp, port, srcIp, 50000, 40, "pkg")
 
             assertThat(second).isSameInstanceAs(first)
-            assertThat(db.FlowDao().countNotSyncedFlows()).isEqualTo(1)
+            assertThat(storedFlowCount()).isEqualTo(1)
         } finally {
             server.close()
         }
@@ -104,7 +120,7 @@ class SessionManagerUnitTest {
                 .isSameInstanceAs(udp)
             assertThat(manager.getSession(SessionProtocol.TCP, dstIp, port, srcIp, 50000))
                 .isSameInstanceAs(tcp)
-            assertThat(db.FlowDao().countNotSyncedFlows()).isEqualTo(2)
+            assertThat(storedFlowCount()).isEqualTo(2)
         } finally {
             server.close()
         }
@@ -120,7 +136,7 @@ class SessionManagerUnitTest {
 
         assertThat(differentSrcPort).isNotSameInstanceAs(base)
         assertThat(differentDstPort).isNotSameInstanceAs(base)
-        assertThat(db.FlowDao().countNotSyncedFlows()).isEqualTo(3)
+        assertThat(storedFlowCount()).isEqualTo(3)
 
         assertThat(manager.getSession(SessionProtocol.UDP, dstIp, 9999, srcIp, 50000))
             .isSameInstanceAs(base)
@@ -151,6 +167,28 @@ class SessionManagerUnitTest {
         assertThat(manager.getSessionByKey(session.sessionKey)).isSameInstanceAs(session)
     }
 
+    @Test
+    fun `idle udp sessions are closed once their timeout passes`() {
+        val idle = createUdp(srcPort = 50000)
+        val active = createUdp(srcPort = 50001)
+        assertThat(manager.expireIdleSessions()).isEqualTo(0)
+
+        ShadowSystemClock.advanceBy(Duration.ofMillis(SessionExpiry.DEFAULT_UDP_TIMEOUT_MS / 2))
+        manager.expireIdleSessions()
+        manager.keepSessionAlive(active)
+        ShadowSystemClock.advanceBy(Duration.ofMillis(SessionExpiry.DEFAULT_UDP_TIMEOUT_MS / 2 + 1_000))
+
+        assertThat(manager.expireIdleSessions()).isEqualTo(1)
+        assertThat(manager.reapedSessionCount).isEqualTo(1L)
+        assertThat(manager.getSessionByKey(idle.sessionKey)).isNull()
+        assertThat(idle.channel.isOpen).isFalse()
+        assertThat(manager.getSessionByKey(active.sessionKey)).isSameInstanceAs(active)
+
+        // A datagram racing the expiry doesn't bring the closed session back
+        manager.keepSessionAlive(idle)
+        assertThat(manager.getSessionByKey(idle.sessionKey)).isNull()
+    }
+
     @Test
     fun `tcp port redirection connects to the redirected address`() {
         val redirectServer = ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"))
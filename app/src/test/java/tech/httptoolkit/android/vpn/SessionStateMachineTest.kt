@@ -2,6 +2,7 @@ package tech.httptoolkit.android.vpn
 
 import com.google.common.truth.Truth.assertThat
 import org.junit.Test
+import tech.httptoolkit.android.vpn.socket.DataConst
 import tech.httptoolkit.android.vpn.socket.ICloseSession
 import tech.httptoolkit.android.vpn.transport.ip.IPAddress
 import java.nio.ByteBuffer
@@ -29,6 +30,29 @@ class SessionStateMachineTest {
         assertThat(session.hasDataToSend()).isFalse()
     }
 
+    @Test
+    fun `client data beyond the receive window is trimmed and the window shrinks`() {
+        val session = newSession()
+        session.receiveWindowScale = 5
+        assertThat(session.advertiseReceiveWindow()).isEqualTo(DataConst.MAX_SEND_BUFFER_SIZE shr 5)
+
+        val added = session.setSendingData(ByteBuffer.wrap(ByteArray(DataConst.MAX_SEND_BUFFER_SIZE - 100)))
+        assertThat(added).isEqualTo(DataConst.MAX_SEND_BUFFER_SIZE - 100)
+        // The window field rounds down to whole units of the scale
+        assertThat(session.advertiseReceiveWindow()).isEqualTo(3)
+        assertThat(session.advertisedWindow).isEqualTo(96L)
+
+        assertThat(session.setSendingData(ByteBuffer.wrap(ByteArray(1000)))).isEqualTo(100)
+        assertThat(session.advertiseReceiveWindow()).isEqualTo(0)
+    }
+
+    @Test
+    fun `without window scaling the receive window fits the 16-bit field`() {
+        val session = newSession()
+        assertThat(session.advertiseReceiveWindow()).isEqualTo(0xFFFF)
+        assertThat(session.setSendingData(ByteBuffer.wrap(ByteArray(70_000)))).isEqualTo(0xFFFF)
+    }
+
     @Test
     fun `received buffer returns up to maxSize and keeps the remainder`() {
         val session = newSession()
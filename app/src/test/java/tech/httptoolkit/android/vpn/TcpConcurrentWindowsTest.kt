@@ -105,7 +105,7 @@ class TcpConcurrentWindowsTest {
                 assertThat(flow.peakInFlight).isAtMost(flow.window.toLong())
                 assertThat(harness.sessionByKey(tcpKey(flow.clientPort, flow.peerPort))).isNotNull()
             }
-            assertThat(harness.flowDao.countNotSyncedFlows()).isEqualTo(flows.size.toLong())
+            assertThat(harness.storedFlowCount()).isEqualTo(flows.size.toLong())
         } finally {
             flows.forEach { it.close() }
         }
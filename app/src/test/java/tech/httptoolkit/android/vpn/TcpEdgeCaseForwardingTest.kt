@@ -10,6 +10,7 @@ import org.robolectric.RobolectricTestRunner
 import org.robolectric.annotation.Config
 import tech.httptoolkit.android.vpn.transport.ip.IPAddress
 import java.net.InetAddress
+import java.net.InetSocketAddress
 import java.net.ServerSocket
 import java.net.Socket
 import java.net.SocketTimeoutException
@@ -79,6 +80,47 @@ class TcpEdgeCaseForwardingTest {
         assertThat(seg.seq).isEqualTo((serverIsn + 1) and 0xFFFFFFFFL)
     }
 
+    @Test
+    fun `a client that filled the receive window gets a window update once upstream drains`() {
+        // A small peer receive buffer, so upstream backs up into the send buffer quickly
+        server.close()
+        server = ServerSocket().apply { receiveBufferSize = 4096; bind(InetSocketAddress(peerIp, 0)) }
+        peerPort = server.localPort
+        val accept = executor.submit<Socket> { server.accept() }
+        val serverIsn = handshake(window = 65535)
+        val peer = accept.get(3, TimeUnit.SECONDS)
+
+        // The peer isn't reading, so sending a full window each time eventually closes it
+        var seq = clientIsn + 1
+        var window = 65535
+        var rounds = 0
+        while (window > 0) {
+            check(++rounds < 1000) { "Receive window never closed" }
+            harness.feed(
+                TestPackets.tcpPacket(
+                    clientIp, clientPort, peerIp, peerPort,
+                    seq = seq, ack = serverIsn + 1, flags = TestPackets.ACK or TestPackets.PSH,
+                    payload = ByteArray(window),
+                )
+            )
+            // Take the latest ACK, as a window update may follow the data's own ACK
+            var ack = harness.parseTcp(harness.awaitTunPacket()).second
+            while (true) ack = harness.parseTcp(harness.pollTunPacket(50) ?: break).second
+            seq = ack.ackNumber
+            window = ack.windowSize and 0xFFFF
+        }
+
+        executor.submit {
+            val buf = ByteArray(65536)
+            peer.getInputStream().use { while (it.read(buf) >= 0) Unit }
+        }
+        val update = harness.awaitTunPacketMatching(timeoutMs = 5000) {
+            val (_, tcp) = harness.parseTcp(it)
+            tcp.isACK && tcpPayloadLength(it) == 0 && (tcp.windowSize and 0xFFFF) >= 65535 / 2
+        }
+        assertThat(harness.parseTcp(update).second.ackNumber).isEqualTo(seq)
+    }
+
     @Test
     fun `a client RST marks the connection aborting`() {
         val accept = executor.submit<Socket> { server.accept() }
@@ -167,13 +209,13 @@ class TcpEdgeCaseForwardingTest {
         harness.feed(syn)
         harness.awaitTunPacketMatching { val (_, t) = harness.parseTcp(it); t.isSYN && t.isACK }
         accept.get(3, TimeUnit.SECONDS)
-        assertThat(harness.flowDao.countNotSyncedFlows()).isEqualTo(1)
+        assertThat(harness.storedFlowCount()).isEqualTo(1)
 
         // Retransmitted SYN: the engine re-acks rather than opening a second session/flow.
         harness.feed(syn)
         val reply = harness.awaitTunPacket()
         assertThat(harness.parseTcp(reply).second.isSYN).isFalse()
-        assertThat(harness.flowDao.countNotSyncedFlows()).isEqualTo(1)
+        assertThat(harness.storedFlowCount()).isEqualTo(1)
         assertThat(harness.sessionByKey(tcpKey())).isNotNull()
     }
 
@@ -0,0 +1,222 @@
+package tech.httptoolkit.android.vpn
+
+import android.app.Application
+import com.google.common.truth.Truth.assertThat
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.net.SocketTimeoutException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [34], application = Application::class)
+class TcpStreamingWriteTest {
+
+    private lateinit var harness: ForwardingTestHarness
+    private lateinit var server: ServerSocket
+    private val executor = Executors.newCachedThreadPool()
+    private var peerPort = 0
+
+    private val clientIp = "10.0.0.2"
+    private val peerIp = "127.0.0.1"
+    private var clientPort = 54000
+    private val clientIsn = 1000L
+
+    // Where the client's next segment starts, and how much of the peer's data it has seen
+    private var clientSeq = clientIsn + 1
+    private var serverIsn = 0L
+    private var received = 0L
+
+    @Before
+    fun setUp() {
+        harness = ForwardingTestHarness()
+        server = ServerSocket(0, 50, InetAddress.getByName(peerIp))
+        peerPort = server.localPort
+    }
+
+    @After
+    fun tearDown() {
+        executor.shutdownNow()
+        server.close()
+        harness.close()
+    }
+
+    @Test
+    fun `data without PSH is forwarded after the coalescing delay`() {
+        val peer = connect()
+
+        send("partial", psh = false)
+        val fromClient = ByteArray(7)
+        readFully(peer, fromClient)
+        assertThat(String(fromClient)).isEqualTo("partial")
+        assertThat(harness.sessionHandler.coalescedWrites).isEqualTo(1L)
+    }
+
+    @Test
+    fun `data past the threshold is forwarded without waiting for the delay`() {
+        harness.sessionHandler.setWriteCoalescing(100, 60_000)
+        val peer = connect()
+
+        send("x".repeat(200), psh = false)
+        readFully(peer, ByteArray(200))
+        assertThat(harness.sessionHandler.coalescedWrites).isEqualTo(0L)
+    }
+
+    @Test
+    fun `a negative delay waits for PSH as before`() {
+        harness.sessionHandler.setWriteCoalescing(SessionHandler.DEFAULT_WRITE_COALESCE_BYTES, -1)
+        val peer = connect()
+
+        send("held", psh = false)
+        peer.soTimeout = 300
+        var threw = false
+        try {
+            peer.getInputStream().read()
+        } catch (e: SocketTimeoutException) {
+            threw = true
+        }
+        assertThat(threw).isTrue()
+
+        peer.soTimeout = 3000
+        send("!", psh = true)
+        val fromClient = ByteArray(5)
+        readFully(peer, fromClient)
+        assertThat(String(fromClient)).isEqualTo("held!")
+    }
+
+    /**
+     * A client that writes a request's head, thinks, then writes its body, and only sets PSH on
+     * the body. The peer answers as soon as it has the head, so the response can only come
+     * before the body if the head was forwarded without waiting for the PSH.
+     */
+    @Test
+    fun `request-response latency with and without streaming writes`() {
+        val rounds = 20
+        val thinkMs = 30L
+
+        val waitingForPsh = measureRoundTrips(coalesceDelayMs = -1, rounds = rounds, thinkMs = thinkMs)
+        // Same engine, new connection
+        clientPort++
+        clientSeq = clientIsn + 1
+        received = 0
+        val streaming = measureRoundTrips(
+            coalesceDelayMs = SessionHandler.DEFAULT_WRITE_COALESCE_DELAY_MS, rounds = rounds, thinkMs = thinkMs
+        )
+
+        // Without streaming, the head can't reach the peer before the body's PSH
+        assertThat(waitingForPsh.first()).isAtLeast(TimeUnit.MILLISECONDS.toNanos(thinkMs))
+        // With it, the head goes after the coalescing delay, so the answer needn't wait for the body
+        assertThat(streaming[rounds / 2]).isLessThan(TimeUnit.MILLISECONDS.toNanos(thinkMs) / 2)
+    }
+
+    // --- helpers -------------------------------------------------------------
+
+    /** Sorted request/response times in ns, over [rounds] requests on one connection. */
+    private fun measureRoundTrips(coalesceDelayMs: Int, rounds: Int, thinkMs: Long): List<Long> {
+        harness.sessionHandler.setWriteCoalescing(SessionHandler.DEFAULT_WRITE_COALESCE_BYTES, coalesceDelayMs)
+        val peer = connect()
+        executor.submit {
+            runCatching {
+                val head = ByteArray(HEAD.length)
+                val body = ByteArray(BODY.length)
+                repeat(rounds) {
+                    readFully(peer, head)
+                    peer.getOutputStream().apply { write(RESPONSE.toByteArray()); flush() }
+                    readFully(peer, body)
+                }
+            }
+        }
+
+        return List(rounds) {
+            val started = System.nanoTime()
+            val bodyAt = started + TimeUnit.MILLISECONDS.toNanos(thinkMs)
+            send(HEAD, psh = false)
+
+            var bodySent = false
+            var answeredAt = 0L
+            while (answeredAt == 0L) {
+                val now = System.nanoTime()
+                if (!bodySent && now >= bodyAt) {
+                    send(BODY, psh = true)
+                    bodySent = true
+                }
+                val waitMs = if (bodySent) 2000 else ((bodyAt - now) / 1_000_000).coerceAtLeast(1)
+                val packet = harness.pollTunPacket(waitMs)
+                if (packet == null) {
+                    if (bodySent) throw AssertionError("No response within 2000ms")
+                    continue
+                }
+                val length = tcpPayloadLength(packet)
+                if (length > 0) {
+                    answeredAt = System.nanoTime()
+                    received += length
+                }
+            }
+            if (!bodySent) {
+                while (System.nanoTime() < bodyAt) Thread.sleep(1)
+                send(BODY, psh = true)
+            }
+            answeredAt - started
+        }.sorted()
+    }
+
+    private fun connect(): Socket {
+        val accept = executor.submit<Socket> { server.accept() }
+        harness.feed(
+            TestPackets.tcpPacket(
+                clientIp, clientPort, peerIp, peerPort,
+                seq = clientIsn, ack = 0, flags = TestPackets.SYN, mss = 1460,
+            )
+        )
+        val synAck = harness.awaitTunPacketMatching { val (_, t) = harness.parseTcp(it); t.isSYN && t.isACK }
+        serverIsn = harness.parseTcp(synAck).second.sequenceNumber
+        harness.feed(
+            TestPackets.tcpPacket(
+                clientIp, clientPort, peerIp, peerPort,
+                seq = clientSeq, ack = serverIsn + 1, flags = TestPackets.ACK,
+            )
+        )
+        return accept.get(3, TimeUnit.SECONDS).apply { soTimeout = 3000 }
+    }
+
+    private fun send(payload: String, psh: Boolean) {
+        val flags = if (psh) TestPackets.PSH or TestPackets.ACK else TestPackets.ACK
+        harness.feed(
+            TestPackets.tcpPacket(
+                clientIp, clientPort, peerIp, peerPort,
+                seq = clientSeq, ack = serverIsn + 1 + received, flags = flags, payload = payload.toByteArray(),
+            )
+        )
+        clientSeq += payload.length
+    }
+
+    private fun readFully(socket: Socket, buffer: ByteArray) {
+        val input = socket.getInputStream()
+        var read = 0
+        while (read < buffer.size) {
+            val n = input.read(buffer, read, buffer.size - read)
+            if (n < 0) break
+            read += n
+        }
+    }
+
+    private fun tcpPayloadLength(packet: ByteArray): Int {
+        val ihl = (packet[0].toInt() and 0x0F) * 4
+        val totalLength = ((packet[2].toInt() and 0xFF) shl 8) or (packet[3].toInt() and 0xFF)
+        val dataOffset = ((packet[ihl + 12].toInt() shr 4) and 0x0F) * 4
+        return totalLength - ihl - dataOffset
+    }
+
+    private companion object {
+        const val HEAD = "POST /upload HTTP/1.1\r\n\r\n"
+        const val BODY = "body"
+        const val RESPONSE = "HTTP/1.1 100 Continue\r\n\r\n"
+    }
+}
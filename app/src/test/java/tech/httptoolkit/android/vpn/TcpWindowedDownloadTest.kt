@@ -8,10 +8,13 @@ import org.junit.Test
 import org.junit.runner.RunWith
 import org.robolectric.RobolectricTestRunner
 import org.robolectric.annotation.Config
+import tech.httptoolkit.android.vpn.transport.PacketView
 import tech.httptoolkit.android.vpn.transport.ip.IPAddress
+import java.lang.management.ManagementFactory
 import java.net.InetAddress
 import java.net.ServerSocket
 import java.net.Socket
+import java.nio.ByteBuffer
 import java.util.concurrent.Executors
 import java.util.concurrent.Future
 import java.util.concurrent.TimeUnit
@@ -124,6 +127,28 @@ class TcpWindowedDownloadTest {
         writeFuture.get(3, TimeUnit.SECONDS)                        // upstream completes once drained
     }
 
+    @Test
+    fun `reading a download allocates far less than the bytes it moves`() {
+        val window = 32 * 1024
+        val total = 1024 * 1024
+        val serverIsn = handshake(window, mss)
+        val allocatedBefore = harness.nioThreadAllocatedBytes()
+
+        executor.submit { accepted.getOutputStream().apply { write(ByteArray(total)); flush() } }
+        var received = 0L
+        var guard = 0
+        while (received < total && guard++ < 1000) {
+            received += drain().sumOf { it.len.toLong() }
+            clientAck(serverIsn + 1 + received, window)
+        }
+        assertThat(received).isEqualTo(total.toLong())
+
+        // Reads used to allocate a 64 KB buffer each, plus a copy of what they read, plus a
+        // copy of the whole staging buffer per segment sent. Now they go straight into the ring.
+        val allocated = harness.nioThreadAllocatedBytes() - allocatedBefore
+        assertThat(allocated).isLessThan(total / 2L)
+    }
+
     @Test
     fun `FIN is not sent ahead of unsent data and follows the last byte`() {
         val window = 1000
@@ -152,6 +177,45 @@ class TcpWindowedDownloadTest {
         assertThat(segs[finIdx].seq).isEqualTo((serverIsn + 1 + total) and 0xFFFFFFFFL)
     }
 
+    @Test
+    fun `pure ACKs with nothing staged neither wake the selector nor allocate`() {
+        val window = 8 * 1024
+        val serverIsn = handshake(window)
+        accepted.getOutputStream().apply { write(ByteArray(4000)); flush() }
+        val received = drain().sumOf { it.len.toLong() }
+        assertThat(received).isEqualTo(4000L)
+        clientAck(serverIsn + 1 + received, window)
+        drain(timeoutMs = 200)
+
+        val ack = ByteBuffer.wrap(
+            TestPackets.tcpPacket(
+                clientIp, clientPort, peerIp, peerPort,
+                seq = clientIsn + 1, ack = serverIsn + 1 + received, flags = TestPackets.ACK, windowSize = window,
+            )
+        )
+        val view = PacketView()
+        fun feedAck() {
+            ack.position(0)
+            view.wrap(ack)
+            harness.sessionHandler.handlePacket(ack, view, "test.app")
+        }
+        repeat(1000) { feedAck() } // warm up
+
+        val threads = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val threadId = Thread.currentThread().id
+        val fastPathBefore = harness.sessionHandler.fastPathAcks
+        val wakeupsBefore = harness.nioService.selectorWakeups
+        val allocatedBefore = threads.getThreadAllocatedBytes(threadId)
+        val acks = 10_000
+        repeat(acks) { feedAck() }
+        val allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore
+
+        assertThat(harness.sessionHandler.fastPathAcks - fastPathBefore).isEqualTo(acks.toLong())
+        assertThat(harness.nioService.selectorWakeups).isEqualTo(wakeupsBefore)
+        // The full path parsed an IP and a TCP header object for every one of them
+        assertThat(allocated).isLessThan(acks * 8L)
+    }
+
     // --- helpers -------------------------------------------------------------
 
     private data class Seg(val seq: Long, val len: Int, val fin: Boolean)
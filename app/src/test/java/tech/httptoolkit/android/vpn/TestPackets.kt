@@ -1,6 +1,7 @@
 package tech.httptoolkit.android.vpn
 
 import tech.httptoolkit.android.vpn.util.PacketUtil
+import java.io.ByteArrayOutputStream
 import java.net.InetAddress
 import java.nio.ByteBuffer
 
@@ -78,10 +79,25 @@ object TestPackets {
     fun tcpPacket(
         srcIp: String, srcPort: Int, dstIp: String, dstPort: Int,
         seq: Long, ack: Long, flags: Int, payload: ByteArray = ByteArray(0), mss: Int? = null,
-        windowSize: Int = 65535,
+        windowSize: Int = 65535, windowScale: Int? = null, timestamp: Int? = null, sackPermitted: Boolean = false,
     ): ByteArray {
-        val optionBytes = if (mss != null) 4 else 0          // MSS option = kind(1)+len(1)+value(2)
-        val tcpHeaderLen = 20 + optionBytes
+        // Each option is padded with NOPs to a 4-byte boundary, as Linux and Android send them
+        val options = ByteArrayOutputStream()
+        if (mss != null) {
+            options.write(byteArrayOf(0x02, 0x04, (mss shr 8).toByte(), mss.toByte()))
+        }
+        if (windowScale != null) {
+            options.write(byteArrayOf(0x01, 0x03, 0x03, windowScale.toByte()))
+        }
+        if (timestamp != null) {
+            options.write(byteArrayOf(0x01, 0x01, 0x08, 0x0A))
+            options.write(ByteBuffer.allocate(8).putInt(timestamp).putInt(0).array())
+        }
+        if (sackPermitted) {
+            options.write(byteArrayOf(0x01, 0x01, 0x04, 0x02))
+        }
+        val optionBytes = options.toByteArray()
+        val tcpHeaderLen = 20 + optionBytes.size
         val dataOffsetWords = tcpHeaderLen / 4
         val total = 20 + tcpHeaderLen + payload.size
         val buf = ByteArray(total)
@@ -97,11 +113,7 @@ object TestPackets {
         buf.putShort(t + 14, windowSize)   // window size
         buf.putShort(t + 16, 0)       // checksum (not verified)
         buf.putShort(t + 18, 0)       // urgent pointer
-        if (mss != null) {
-            buf[t + 20] = 0x02        // MSS option kind
-            buf[t + 21] = 0x04        // length
-            buf.putShort(t + 22, mss)
-        }
+        System.arraycopy(optionBytes, 0, buf, t + 20, optionBytes.size)
         System.arraycopy(payload, 0, buf, t + tcpHeaderLen, payload.size)
         return buf
     }
@@ -56,7 +56,7 @@ class UdpConcurrentFlowsTest {
             assertThat(byPort).isEqualTo(ports.associateWith { "msg-$it" })
 
             ports.forEach { assertThat(harness.sessionByKey(udpKey(it, peerPort))).isNotNull() }
-            assertThat(harness.flowDao.countNotSyncedFlows()).isEqualTo(ports.size.toLong())
+            assertThat(harness.storedFlowCount()).isEqualTo(ports.size.toLong())
         } finally {
             peer.close()
         }
@@ -87,7 +87,7 @@ class UdpConcurrentFlowsTest {
             // Two independent sessions, keyed by the full tuple.
             assertThat(harness.sessionByKey(udpKey(clientPort, peerA.localPort))).isNotNull()
             assertThat(harness.sessionByKey(udpKey(clientPort, peerB.localPort))).isNotNull()
-            assertThat(harness.flowDao.countNotSyncedFlows()).isEqualTo(2)
+            assertThat(harness.storedFlowCount()).isEqualTo(2)
         } finally {
             peerA.close()
             peerB.close()
@@ -115,13 +115,40 @@ class UdpConcurrentFlowsTest {
             }
 
             val session = harness.await { harness.sessionByKey(udpKey(clientPort, peerPort)) }
-            assertThat(harness.flowDao.countNotSyncedFlows()).isEqualTo(1)
+            assertThat(harness.storedFlowCount()).isEqualTo(1)
             harness.await { session.flow.takeIf { it.packetCountEgress >= sizes.size } }
         } finally {
             peer.close()
         }
     }
 
+    @Test
+    fun `replies are read without allocating a buffer per read`() {
+        val peer = DatagramSocket(0, InetAddress.getByName(peerIp)).apply { soTimeout = 3000 }
+        val peerPort = peer.localPort
+        val clientPort = 41300
+        val rounds = 50
+        try {
+            // Set the flow up first, so only the replies' reads are measured
+            harness.feed(udp(clientPort, peerPort, "hello"))
+            echoOnce(peer)
+            harness.awaitTunPacket()
+
+            val allocatedBefore = harness.nioThreadAllocatedBytes()
+            repeat(rounds) {
+                harness.feed(udp(clientPort, peerPort, "msg-$it"))
+                echoOnce(peer)
+                harness.awaitTunPacket()
+            }
+
+            // Every read used to allocate a fresh 64 KB buffer
+            val allocated = harness.nioThreadAllocatedBytes() - allocatedBefore
+            assertThat(allocated).isLessThan(rounds * 65535L / 4)
+        } finally {
+            peer.close()
+        }
+    }
+
     // --- helpers -------------------------------------------------------------
 
     private fun echoOnce(peer: DatagramSocket) {
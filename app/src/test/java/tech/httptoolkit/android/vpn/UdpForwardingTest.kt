@@ -76,4 +76,33 @@ class UdpForwardingTest {
         assertThat(persisted.packetCountEgress).isAtLeast(1)
         assertThat(persisted.dataIngress).isAtLeast(4)
     }
+
+    @Test
+    fun `a batch of datagrams wakes the selector at most once`() {
+        harness.feed(TestPackets.udpPacket(clientIp, clientPort, peerIp, peerPort, "first".toByteArray()))
+        val received = DatagramPacket(ByteArray(64), 64)
+        peer.receive(received)
+
+        val nio = harness.nioService
+        val wakeupsBefore = nio.selectorWakeups
+        val deferredBefore = nio.deferredWakeups
+
+        nio.beginBatch()
+        for (i in 0 until 10) {
+            harness.feed(TestPackets.udpPacket(clientIp, clientPort, peerIp, peerPort, "batch$i".toByteArray()))
+        }
+        // Nothing woke the selector while the batch was open
+        assertThat(nio.selectorWakeups).isEqualTo(wakeupsBefore)
+        nio.endBatch()
+
+        // The batch's first datagram queued a command and needed the wakeup, the rest joined it
+        assertThat(nio.deferredWakeups - deferredBefore).isAtLeast(1)
+        assertThat(nio.selectorWakeups - wakeupsBefore).isAtMost(1)
+
+        val payloads = (0 until 10).map {
+            peer.receive(received)
+            String(received.data, 0, received.length)
+        }
+        assertThat(payloads).containsExactlyElementsIn((0 until 10).map { "batch$it" })
+    }
 }
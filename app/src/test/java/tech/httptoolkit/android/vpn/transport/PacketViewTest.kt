@@ -0,0 +1,103 @@
+package tech.httptoolkit.android.vpn.transport
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Assert.assertThrows
+import org.junit.Test
+import tech.httptoolkit.android.vpn.TestPackets
+import tech.httptoolkit.android.vpn.TestPackets.ACK
+import tech.httptoolkit.android.vpn.TestPackets.PSH
+import tech.httptoolkit.android.vpn.transport.ip.IPPacketFactory
+import tech.httptoolkit.android.vpn.transport.tcp.TCPPacketFactory
+import java.net.InetAddress
+import java.nio.ByteBuffer
+
+/** Pure-JVM tests for [PacketView], checked against the header factories where they overlap. */
+class PacketViewTest {
+
+    private fun view(packet: ByteArray) = PacketView().apply { wrap(ByteBuffer.wrap(packet)) }
+
+    @Test
+    fun `tcp fields match the header factories`() {
+        val packet = TestPackets.tcpPacket(
+            "10.0.0.2", 40000, "192.168.1.10", 443,
+            seq = 1, ack = 1, flags = ACK or PSH, payload = "hello".toByteArray(), mss = 1400,
+        )
+        val v = view(packet)
+
+        val buffer = ByteBuffer.wrap(packet)
+        val ip = IPPacketFactory.createIPHeader(buffer)
+        val tcp = TCPPacketFactory.createTCPHeader(buffer)
+
+        assertThat(v.version).isEqualTo(4)
+        assertThat(v.isTcp).isTrue()
+        assertThat(v.sourcePort).isEqualTo(tcp.sourcePort)
+        assertThat(v.destinationPort).isEqualTo(tcp.destinationPort)
+        assertThat(v.totalLength).isEqualTo(ip.totalLength)
+        assertThat(v.payloadOffset).isEqualTo(buffer.position())
+        assertThat(v.tcpFlags).isEqualTo(ACK or PSH)
+        assertThat(v.copySourceAddress().bytes).isEqualTo(ip.sourceIP.bytes)
+        assertThat(v.copyDestinationAddress().bytes).isEqualTo(ip.destinationIP.bytes)
+        assertThat(v.hasPayloadForDpi()).isTrue()
+    }
+
+    @Test
+    fun `ipv4 addresses are packed into the low word`() {
+        val v = view(TestPackets.udpPacket("10.0.0.2", 40000, "192.168.1.10", 53, ByteArray(4)))
+
+        assertThat(v.sourceAddressHigh).isEqualTo(0)
+        assertThat(v.sourceAddressLow).isEqualTo(0x0A000002L)
+        assertThat(v.destinationAddressLow).isEqualTo(0xC0A8010AL)
+        assertThat(v.payloadOffset).isEqualTo(28)
+        assertThat(v.destinationSocketAddress.address).isEqualTo(InetAddress.getByName("192.168.1.10"))
+        assertThat(v.destinationSocketAddress.port).isEqualTo(53)
+    }
+
+    @Test
+    fun `ipv6 addresses use both words`() {
+        val v = view(TestPackets.icmpv6Packet("fd00::2", "ff02::1", TestPackets.ICMP_V6_ECHO_REQUEST, 0, 1, 1))
+
+        assertThat(v.isIPv6).isTrue()
+        assertThat(v.isIcmp).isTrue()
+        assertThat(v.sourceAddressHigh).isEqualTo(0xfd00000000000000uL.toLong())
+        assertThat(v.sourceAddressLow).isEqualTo(2L)
+        assertThat(v.isMulticastDestination).isTrue()
+        assertThat(v.sourcePort).isEqualTo(0)
+    }
+
+    @Test
+    fun `multicast and broadcast destinations are recognised`() {
+        fun udpTo(ip: String) = view(TestPackets.udpPacket("10.0.0.2", 5353, ip, 5353, ByteArray(0)))
+
+        assertThat(udpTo("224.0.0.251").isMulticastDestination).isTrue()
+        assertThat(udpTo("239.255.255.250").isMulticastDestination).isTrue()
+        assertThat(udpTo("255.255.255.255").isMulticastDestination).isTrue()
+        assertThat(udpTo("192.168.1.255").isMulticastDestination).isFalse()
+        assertThat(udpTo("240.0.0.1").isMulticastDestination).isFalse()
+    }
+
+    @Test
+    fun `bare tcp ack has no payload for dpi`() {
+        val v = view(TestPackets.tcpPacket("10.0.0.2", 40000, "192.168.1.10", 443, seq = 1, ack = 1, flags = ACK))
+        assertThat(v.hasPayloadForDpi()).isFalse()
+    }
+
+    @Test
+    fun `rewrapping replaces every field`() {
+        val v = view(TestPackets.tcpPacket("10.0.0.2", 40000, "192.168.1.10", 443, seq = 1, ack = 1, flags = ACK))
+        v.wrap(ByteBuffer.wrap(TestPackets.icmpPacket("10.0.0.2", "10.0.0.1", TestPackets.ICMP_V4_ECHO_REQUEST, 0, 1, 1)))
+
+        assertThat(v.isIcmp).isTrue()
+        assertThat(v.payloadOffset).isEqualTo(20)
+        assertThat(v.destinationPort).isEqualTo(0)
+        assertThat(v.tcpFlags).isEqualTo(0)
+    }
+
+    @Test
+    fun `truncated headers are rejected`() {
+        val tcp = TestPackets.tcpPacket("10.0.0.2", 40000, "192.168.1.10", 443, seq = 1, ack = 1, flags = ACK)
+        assertThrows(PacketHeaderException::class.java) { view(tcp.copyOf(30)) }
+        assertThrows(PacketHeaderException::class.java) { view(tcp.copyOf(12)) }
+        assertThrows(PacketHeaderException::class.java) { view(byteArrayOf(0x20)) }
+        assertThrows(PacketHeaderException::class.java) { view(ByteArray(0)) }
+    }
+}